@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Wraps a Dispatcher, caching the responses to idempotent requests (getChannel, getEvent,
+ * getDiskSpace, getSysTime and getProfiles by default).
+ *
+ * * Identical requests made while one is already in flight share it's response, rather than
+ *   each going to the server
+ * * Responses are kept for a per method TTL. Failures, including replies carrying an error,
+ *   aren't kept at all
+ * * Responses are dropped early when an async update for the same thing arrives, e.g. a
+ *   channelUpdate drops the cached getChannel response for that channel
+ * * Each caller gets it's own copy of the response. Copies are shallow, so nested maps and lists
+ *   must not be modified
+ *
+ * Async metadata updates are only sent by the server once enableAsyncMetadata has been requested,
+ * without which cached responses live for their full TTL.
+ */
+public class CachingHtspDispatcher implements HtspMessage.Dispatcher, HtspMessage.Listener {
+    private static final String TAG = CachingHtspDispatcher.class.getSimpleName();
+
+    // Default TTLs, in milliseconds
+    private static final Map<String, Long> DEFAULT_TTLS = new HashMap<>();
+
+    static {
+        DEFAULT_TTLS.put("getChannel", 300000L);
+        DEFAULT_TTLS.put("getEvent", 300000L);
+        DEFAULT_TTLS.put("getDiskSpace", 30000L);
+        DEFAULT_TTLS.put("getSysTime", 1000L);
+        DEFAULT_TTLS.put("getProfiles", 600000L);
+    }
+
+    /**
+     * An async update which makes cached responses stale
+     */
+    private static class Invalidation {
+        final String mMethod;
+        // The field identifying what was updated, in both the update and the request, or null
+        // if the update makes every cached response for the method stale
+        final String mField;
+
+        Invalidation(String method, String field) {
+            mMethod = method;
+            mField = field;
+        }
+    }
+
+    private static final Map<String, Invalidation> INVALIDATIONS = new HashMap<>();
+
+    static {
+        Invalidation channel = new Invalidation("getChannel", "channelId");
+        INVALIDATIONS.put("channelAdd", channel);
+        INVALIDATIONS.put("channelUpdate", channel);
+        INVALIDATIONS.put("channelDelete", channel);
+
+        Invalidation event = new Invalidation("getEvent", "eventId");
+        INVALIDATIONS.put("eventAdd", event);
+        INVALIDATIONS.put("eventUpdate", event);
+        INVALIDATIONS.put("eventDelete", event);
+
+        // Recordings starting, finishing or being removed change the free space
+        Invalidation diskSpace = new Invalidation("getDiskSpace", null);
+        INVALIDATIONS.put("dvrEntryAdd", diskSpace);
+        INVALIDATIONS.put("dvrEntryUpdate", diskSpace);
+        INVALIDATIONS.put("dvrEntryDelete", diskSpace);
+    }
+
+    // Past this, expired entries are swept out before adding more
+    private static final int MAX_ENTRIES_PER_METHOD = 256;
+
+    private final HtspMessage.Dispatcher mDispatcher;
+    private final Map<String, Long> mTtls = new ConcurrentHashMap<>(DEFAULT_TTLS);
+
+    // Cached and in flight responses, by method and then request
+    private final ConcurrentMap<String, ConcurrentMap<String, Entry>> mCache = new ConcurrentHashMap<>();
+
+    public CachingHtspDispatcher(@NonNull HtspMessage.Dispatcher dispatcher) {
+        mDispatcher = dispatcher;
+        mDispatcher.addMessageListener(this, INVALIDATIONS.keySet().toArray(new String[INVALIDATIONS.size()]));
+    }
+
+    /**
+     * Sets how long responses for a method are cached
+     *
+     * @param method The request method
+     * @param ttl The TTL in milliseconds, or 0 to stop caching the method (identical in flight
+     *            requests are still shared)
+     */
+    public void setTtl(@NonNull String method, long ttl) {
+        mTtls.put(method, ttl);
+        invalidate(method);
+    }
+
+    /**
+     * Drops every cached response for a method
+     *
+     * @param method The request method
+     */
+    public void invalidate(@NonNull String method) {
+        Map<String, Entry> entries = mCache.get(method);
+        if (entries != null) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Drops every cached response
+     */
+    public void invalidateAll() {
+        mCache.clear();
+    }
+
+    // HtspMessage.Dispatcher Methods
+    @Override
+    public void addMessageListener(HtspMessage.Listener listener) {
+        mDispatcher.addMessageListener(listener);
+    }
+
+    @Override
+    public void addMessageListener(HtspMessage.Listener listener, String... methods) {
+        mDispatcher.addMessageListener(listener, methods);
+    }
+
+    @Override
+    public void registerSubscription(int subscriptionId, HtspMessage.Listener listener) {
+        mDispatcher.registerSubscription(subscriptionId, listener);
+    }
+
+    @Override
+    public void unregisterSubscription(int subscriptionId) {
+        mDispatcher.unregisterSubscription(subscriptionId);
+    }
+
+    @Override
+    public void removeMessageListener(HtspMessage.Listener listener) {
+        mDispatcher.removeMessageListener(listener);
+    }
+
+    @Override
+    public long sendMessage(@NonNull HtspMessage message) throws HtspNotConnectedException, HtspRateLimitedException {
+        // Nobody's waiting on the response, so there's nothing to cache or share
+        return mDispatcher.sendMessage(message);
+    }
+
+    @Override
+    public HtspMessage sendMessage(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException, HtspRateLimitedException {
+        return sendRequest(message, timeout).await(timeout);
+    }
+
+    @Override
+    public HtspFuture<HtspMessage> sendRequest(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException {
+        if (!isCacheable(message)) {
+            return mDispatcher.sendRequest(message, timeout);
+        }
+
+        final String method = message.getString("method");
+        final String key = getKey(message);
+        final ConcurrentMap<String, Entry> entries = getEntries(method);
+
+        while (true) {
+            Entry entry = entries.get(key);
+
+            if (entry != null && !entry.isExpired()) {
+                if (HtspConstants.DEBUG)
+                    Log.v(TAG, "Using cached or in flight response for " + method);
+                return copyOf(entry.mFuture);
+            }
+
+            if (entry == null && entries.size() >= MAX_ENTRIES_PER_METHOD) {
+                purgeExpired(entries);
+            }
+
+            Entry newEntry = new Entry(message);
+
+            if (entry == null) {
+                if (entries.putIfAbsent(key, newEntry) != null) {
+                    continue;
+                }
+            } else if (!entries.replace(key, entry, newEntry)) {
+                continue;
+            }
+
+            return copyOf(fetch(entries, key, newEntry, message, timeout));
+        }
+    }
+
+    @Override
+    public List<HtspFuture<HtspMessage>> sendRequests(@NonNull List<HtspMessage> messages, int timeout) throws HtspNotConnectedException {
+        // Cacheable requests go one by one, the rest still go as a batch
+        final List<HtspMessage> uncached = new ArrayList<>();
+        for (HtspMessage message : messages) {
+            if (!isCacheable(message)) {
+                uncached.add(message);
+            }
+        }
+
+        Iterator<HtspFuture<HtspMessage>> uncachedFutures = null;
+        if (!uncached.isEmpty()) {
+            uncachedFutures = mDispatcher.sendRequests(uncached, timeout).iterator();
+        }
+
+        final List<HtspFuture<HtspMessage>> futures = new ArrayList<>(messages.size());
+        for (HtspMessage message : messages) {
+            if (isCacheable(message)) {
+                futures.add(sendRequest(message, timeout));
+            } else {
+                futures.add(uncachedFutures.next());
+            }
+        }
+
+        return futures;
+    }
+
+    // HtspMessage.Listener Methods
+    @Override
+    public Handler getHandler() {
+        return null;
+    }
+
+    @Override
+    public void onMessage(@NonNull HtspMessage message) {
+        final Invalidation invalidation = INVALIDATIONS.get(message.getString("method", null));
+        if (invalidation == null) {
+            return;
+        }
+
+        final Map<String, Entry> entries = mCache.get(invalidation.mMethod);
+        if (entries == null || entries.isEmpty()) {
+            return;
+        }
+
+        if (invalidation.mField == null || !message.containsKey(invalidation.mField)) {
+            entries.clear();
+            return;
+        }
+
+        final String id = message.getString(invalidation.mField);
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (id.equals(iterator.next().mRequest.getString(invalidation.mField, null))) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // Internal Methods
+    private boolean isCacheable(HtspMessage message) {
+        final String method = message.getString("method", null);
+        // A caller supplied seq must get a reply carrying it, which a shared response won't
+        return method != null && mTtls.containsKey(method) && !message.containsKey("seq");
+    }
+
+    private ConcurrentMap<String, Entry> getEntries(String method) {
+        ConcurrentMap<String, Entry> entries = mCache.get(method);
+
+        if (entries == null) {
+            entries = new ConcurrentHashMap<>();
+            ConcurrentMap<String, Entry> existing = mCache.putIfAbsent(method, entries);
+            if (existing != null) {
+                entries = existing;
+            }
+        }
+
+        return entries;
+    }
+
+    private HtspFuture<HtspMessage> fetch(final ConcurrentMap<String, Entry> entries, final String key, final Entry entry,
+                                          HtspMessage message, int timeout) throws HtspNotConnectedException {
+        final long ttl = mTtls.get(message.getString("method"));
+
+        try {
+            // Send a copy, so the seq the Dispatcher injects doesn't end up in the cache key of
+            // the caller's message should it be resent
+            mDispatcher.sendRequest(new HtspMessage(message), timeout).addListener(new HtspFuture.Listener<HtspMessage>() {
+                @Override
+                public Handler getHandler() {
+                    return null;
+                }
+
+                @Override
+                public void onSuccess(HtspMessage result) {
+                    if (result.containsKey("error")) {
+                        // An error reply is a failure too, but those already waiting still get it
+                        entries.remove(key, entry);
+                    } else {
+                        entry.mExpiry = System.currentTimeMillis() + ttl;
+                    }
+                    entry.mFuture.complete(result);
+                }
+
+                @Override
+                public void onFailure(@NonNull Exception exception) {
+                    // Don't cache failures
+                    entries.remove(key, entry);
+                    entry.mFuture.fail(exception);
+                }
+            });
+        } catch (HtspNotConnectedException e) {
+            entries.remove(key, entry);
+            entry.mFuture.fail(e);
+            throw e;
+        }
+
+        return entry.mFuture;
+    }
+
+    private static void purgeExpired(Map<String, Entry> entries) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static HtspFuture<HtspMessage> copyOf(HtspFuture<HtspMessage> future) {
+        final HtspFuture<HtspMessage> copy = new HtspFuture<>();
+
+        future.addListener(new HtspFuture.Listener<HtspMessage>() {
+            @Override
+            public Handler getHandler() {
+                return null;
+            }
+
+            @Override
+            public void onSuccess(HtspMessage result) {
+                copy.complete(result == null ? null : new HtspMessage(result));
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception exception) {
+                copy.fail(exception);
+            }
+        });
+
+        return copy;
+    }
+
+    private static String getKey(HtspMessage message) {
+        // Sorted, so equal requests always give equal keys
+        final TreeMap<String, Object> fields = new TreeMap<>(message);
+        fields.remove("seq");
+        return fields.toString();
+    }
+
+    /**
+     * A cached or in flight response
+     */
+    private static class Entry {
+        final HtspMessage mRequest;
+        final HtspFuture<HtspMessage> mFuture = new HtspFuture<>();
+        // Long.MAX_VALUE until the response arrives
+        volatile long mExpiry = Long.MAX_VALUE;
+
+        Entry(HtspMessage request) {
+            mRequest = new HtspMessage(request);
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= mExpiry;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times each phase of the HtspConnection selector loop, and every listener callback run inline
+ * on it (i.e. listeners returning a null Handler), and warns when a loop iteration runs over
+ * budget.
+ *
+ * Every inline callback blocks all I/O on the connection while it runs, so one slow listener
+ * stalls everything. When an iteration exceeds the budget, the warning names the slowest
+ * listener seen during that iteration.
+ *
+ * All histograms are in microseconds.
+ */
+public class EventLoopMonitor {
+    private static final String TAG = EventLoopMonitor.class.getSimpleName();
+
+    private static final long DEFAULT_BUDGET = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final LatencyHistogram mSelectHistogram = new LatencyHistogram();
+    private final LatencyHistogram mReadHistogram = new LatencyHistogram();
+    private final LatencyHistogram mWriteHistogram = new LatencyHistogram();
+    private final LatencyHistogram mIterationHistogram = new LatencyHistogram();
+    private final LatencyHistogram mDispatchHistogram = new LatencyHistogram();
+    private final ConcurrentMap<Class<?>, LatencyHistogram> mListenerHistograms = new ConcurrentHashMap<>();
+
+    private volatile long mBudget = DEFAULT_BUDGET;
+
+    // Only touched by the loop thread, between beginIteration and endIteration
+    private Thread mLoopThread;
+    private long mIterationStart;
+    private Class<?> mSlowestListener;
+    private long mSlowestListenerTime;
+
+    public EventLoopMonitor() {
+    }
+
+    /**
+     * @return The budget for a single loop iteration, in milliseconds
+     */
+    public long getBudget() {
+        return TimeUnit.NANOSECONDS.toMillis(mBudget);
+    }
+
+    /**
+     * Sets the budget for a single loop iteration (excluding time spent waiting in select), and
+     * for any single listener callback.
+     *
+     * @param budget The budget in milliseconds
+     */
+    public void setBudget(long budget) {
+        mBudget = TimeUnit.MILLISECONDS.toNanos(budget);
+    }
+
+    public LatencyHistogram getSelectHistogram() {
+        return mSelectHistogram;
+    }
+
+    /**
+     * @return Time spent reading, which includes decoding and dispatching what was read
+     */
+    public LatencyHistogram getReadHistogram() {
+        return mReadHistogram;
+    }
+
+    public LatencyHistogram getWriteHistogram() {
+        return mWriteHistogram;
+    }
+
+    /**
+     * @return Time spent on each loop iteration, excluding time waiting in select
+     */
+    public LatencyHistogram getIterationHistogram() {
+        return mIterationHistogram;
+    }
+
+    /**
+     * @return Time spent in each inline listener callback, across all listeners
+     */
+    public LatencyHistogram getDispatchHistogram() {
+        return mDispatchHistogram;
+    }
+
+    /**
+     * @return Time spent in each inline listener callback, by listener class
+     */
+    public Map<Class<?>, LatencyHistogram> getListenerHistograms() {
+        return Collections.unmodifiableMap(mListenerHistograms);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+                .append("Select: [").append(mSelectHistogram).append("]")
+                .append(" Read: [").append(mReadHistogram).append("]")
+                .append(" Write: [").append(mWriteHistogram).append("]")
+                .append(" Iteration: [").append(mIterationHistogram).append("]")
+                .append(" Dispatch: [").append(mDispatchHistogram).append("]")
+                .toString();
+    }
+
+    // Methods called by the HtspConnection and Dispatchers
+    void recordSelect(long startTime) {
+        mSelectHistogram.record(toMicros(System.nanoTime() - startTime));
+    }
+
+    void recordRead(long startTime) {
+        mReadHistogram.record(toMicros(System.nanoTime() - startTime));
+    }
+
+    void recordWrite(long startTime) {
+        mWriteHistogram.record(toMicros(System.nanoTime() - startTime));
+    }
+
+    void beginIteration() {
+        mLoopThread = Thread.currentThread();
+        mIterationStart = System.nanoTime();
+        mSlowestListener = null;
+        mSlowestListenerTime = 0;
+    }
+
+    void endIteration() {
+        long elapsed = System.nanoTime() - mIterationStart;
+        mIterationHistogram.record(toMicros(elapsed));
+
+        if (elapsed > mBudget) {
+            StringBuilder builder = new StringBuilder()
+                    .append("HTSP event loop iteration took ")
+                    .append(TimeUnit.NANOSECONDS.toMillis(elapsed))
+                    .append("ms, over it's ")
+                    .append(getBudget())
+                    .append("ms budget");
+
+            if (mSlowestListener != null) {
+                builder.append(", slowest listener was ")
+                        .append(mSlowestListener.getName())
+                        .append(" at ")
+                        .append(TimeUnit.NANOSECONDS.toMillis(mSlowestListenerTime))
+                        .append("ms");
+            }
+
+            Log.w(TAG, builder.toString());
+        }
+
+        mLoopThread = null;
+    }
+
+    void recordListener(@NonNull Object listener, long startTime) {
+        final long elapsed = System.nanoTime() - startTime;
+        final long micros = toMicros(elapsed);
+        final Class<?> listenerClass = listener.getClass();
+
+        mDispatchHistogram.record(micros);
+
+        LatencyHistogram histogram = mListenerHistograms.get(listenerClass);
+        if (histogram == null) {
+            // Another thread may be recording the same listener for the first time too
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = mListenerHistograms.putIfAbsent(listenerClass, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        histogram.record(micros);
+
+        if (Thread.currentThread() == mLoopThread) {
+            if (elapsed > mSlowestListenerTime) {
+                mSlowestListener = listenerClass;
+                mSlowestListenerTime = elapsed;
+            }
+        } else if (elapsed > mBudget) {
+            // Not part of a loop iteration (e.g. a state change on another thread), so warn now.
+            Log.w(TAG, "Listener " + listenerClass.getName() + " took "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms, over the "
+                    + getBudget() + "ms budget");
+        }
+    }
+
+    // Internal Methods
+    private static long toMicros(long nanos) {
+        return nanos / 1000;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the fileRead chunk size, and the number of fileReads to keep in flight, for a file being
+ * streamed, based on what it's seen of the link so far.
+ *
+ * Much like TCP slow start, the chunk size starts small and doubles with each full read, up to
+ * the most TVHeadend will send in one message. From then on, the window is sized to cover the
+ * bandwidth-delay product, i.e. enough bytes in flight to keep the link busy for a round trip.
+ *
+ * Bandwidth is a moving average of the delivery rate of each read, and delay is the smallest
+ * round trip seen, which is the one least inflated by queueing behind other reads.
+ */
+class FileReadController {
+    // TVHeadend refuses messages over 1MB, leave room for the rest of the message
+    static final int MAX_CHUNK_SIZE = 1024000;
+    private static final int INITIAL_CHUNK_SIZE = 65536;
+    // Don't hold more than this many bytes in flight, however fast the link
+    private static final long MAX_IN_FLIGHT_BYTES = 16 * 1024 * 1024;
+    private static final double BANDWIDTH_GAIN = 0.25;
+
+    private final long mFileSize;
+    private final int mMaxWindow;
+
+    private int mChunkSize;
+    private int mWindow = 1;
+
+    private double mBandwidth = 0; // bytes per second
+    private long mMinRtt = Long.MAX_VALUE; // nanoseconds
+    private long mLastArrival = 0;
+
+    /**
+     * @param fileSize The file's size, or -1 if not known
+     * @param maxWindow The most fileReads to ever keep in flight
+     */
+    FileReadController(long fileSize, int maxWindow) {
+        mFileSize = fileSize;
+        mMaxWindow = Math.max(1, maxWindow);
+
+        if (fileSize != -1 && fileSize <= MAX_CHUNK_SIZE) {
+            // Small enough to fetch in one go, e.g. channel icons
+            mChunkSize = (int) Math.max(1, fileSize);
+        } else {
+            mChunkSize = INITIAL_CHUNK_SIZE;
+        }
+    }
+
+    int getChunkSize() {
+        return mChunkSize;
+    }
+
+    int getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * @return The measured bandwidth in bytes per second, or 0 if not yet known
+     */
+    long getBandwidth() {
+        return (long) mBandwidth;
+    }
+
+    /**
+     * Called as each fileRead response arrives
+     *
+     * @param requested The number of bytes requested
+     * @param received The number of bytes received
+     * @param sentTime When the request was sent, from System.nanoTime()
+     */
+    void onRead(long requested, long received, long sentTime) {
+        onRead(requested, received, sentTime, System.nanoTime());
+    }
+
+    /**
+     * As onRead(requested, received, sentTime), with the time the response arrived given rather
+     * than taken from the clock
+     *
+     * @param now When the response arrived, from System.nanoTime()
+     */
+    void onRead(long requested, long received, long sentTime, long now) {
+        mMinRtt = Math.min(mMinRtt, now - sentTime);
+
+        // Time since the previous response, or since we asked if that was later, so time spent
+        // with nothing requested doesn't count against the link
+        final long interval = now - Math.max(sentTime, mLastArrival);
+        mLastArrival = now;
+
+        if (received > 0 && interval > 0) {
+            final double rate = received * (double) TimeUnit.SECONDS.toNanos(1) / interval;
+            mBandwidth = mBandwidth == 0 ? rate : (1 - BANDWIDTH_GAIN) * mBandwidth + BANDWIDTH_GAIN * rate;
+        }
+
+        if (received < requested) {
+            // End of file, nothing to learn about sizing
+            return;
+        }
+
+        if (mChunkSize < MAX_CHUNK_SIZE) {
+            // Slow start
+            mChunkSize = Math.min(mChunkSize * 2, MAX_CHUNK_SIZE);
+            return;
+        }
+
+        final double bdp = mBandwidth * mMinRtt / TimeUnit.SECONDS.toNanos(1);
+        final long maxWindow = Math.min(mMaxWindow, MAX_IN_FLIGHT_BYTES / mChunkSize);
+
+        // One more than the BDP needs, so there's always a read queued at the server
+        mWindow = (int) Math.max(1, Math.min(maxWindow, (long) Math.ceil(bdp / mChunkSize) + 1));
+    }
+}
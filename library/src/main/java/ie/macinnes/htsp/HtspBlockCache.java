@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A persistent, on disk cache of blocks of files fetched over HTSP, keyed by server, file path
+ * and block offset, for use by HtspFileChannel.
+ *
+ * Each file gets a directory, holding one segment file per cached block, and a meta file holding
+ * the size and mtime the blocks were fetched at. Blocks are memory mapped when read. Before a
+ * file's blocks are used, they're validated against the size and mtime reported by the server,
+ * and dropped if either has changed.
+ *
+ * The cache is bounded by the total size of it's blocks, least recently used blocks are evicted
+ * first, along with the directory of a file once it's last block goes. Recency survives restarts,
+ * via the block files' modification times.
+ */
+public class HtspBlockCache {
+    private static final String TAG = HtspBlockCache.class.getSimpleName();
+
+    public static final int BLOCK_SIZE = 512 * 1024;
+
+    private static final String META_FILE = "meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    private final Object mLock = new Object();
+    // Block files, least recently used first, and their sizes
+    private final LinkedHashMap<File, Long> mBlocks = new LinkedHashMap<>(16, 0.75f, true);
+    private long mTotalBytes = 0;
+
+    /**
+     * @param directory The directory to keep the cache in, e.g. under Context.getCacheDir()
+     * @param maxBytes The most bytes of blocks to keep
+     */
+    public HtspBlockCache(@NonNull File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Failed to create cache directory " + mDirectory);
+        }
+
+        loadIndex();
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public long getTotalBytes() {
+        synchronized (mLock) {
+            return mTotalBytes;
+        }
+    }
+
+    /**
+     * Checks a file's cached blocks are still current, dropping them if not, and records the size
+     * and mtime for future checks.
+     *
+     * @param server Identifies the server, e.g. it's hostname and port
+     * @param path The file path, as given to fileOpen
+     * @param size The file's current size
+     * @param mtime The file's current modification time
+     */
+    public void validate(@NonNull String server, @NonNull String path, long size, long mtime) {
+        final File fileDirectory = getFileDirectory(server, path);
+        final File metaFile = new File(fileDirectory, META_FILE);
+        final String meta = size + " " + mtime;
+
+        synchronized (mLock) {
+            if (meta.equals(readString(metaFile))) {
+                return;
+            }
+
+            if (metaFile.exists()) {
+                Log.d(TAG, "Dropping stale cached blocks of " + path);
+            }
+
+            removeBlocks(fileDirectory);
+
+            if (!fileDirectory.isDirectory() && !fileDirectory.mkdirs()) {
+                Log.e(TAG, "Failed to create cache directory " + fileDirectory);
+                return;
+            }
+
+            writeString(metaFile, meta);
+        }
+    }
+
+    /**
+     * @param server Identifies the server, e.g. it's hostname and port
+     * @param path The file path, as given to fileOpen
+     * @param blockOffset The block's offset in the file, a multiple of BLOCK_SIZE
+     * @return The block, memory mapped and read only, or null if it's not cached. It may be
+     * shorter than BLOCK_SIZE if it's the last block in the file.
+     */
+    public ByteBuffer getBlock(@NonNull String server, @NonNull String path, long blockOffset) {
+        final File blockFile = getBlockFile(server, path, blockOffset);
+
+        synchronized (mLock) {
+            // Also marks the block as recently used
+            if (mBlocks.get(blockFile) == null) {
+                return null;
+            }
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(blockFile, "r")) {
+            // The mapping remains valid once the file is closed
+            ByteBuffer block = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+
+            if (!blockFile.setLastModified(System.currentTimeMillis())) {
+                Log.w(TAG, "Failed to update the modification time of " + blockFile);
+            }
+
+            return block;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read cached block " + blockFile, e);
+            removeBlock(blockFile);
+            return null;
+        }
+    }
+
+    /**
+     * Adds a block to the cache, evicting the least recently used blocks as needed. Blocks of files
+     * which haven't been validated are ignored, as they couldn't be validated later.
+     *
+     * @param server Identifies the server, e.g. it's hostname and port
+     * @param path The file path, as given to fileOpen
+     * @param blockOffset The block's offset in the file, a multiple of BLOCK_SIZE
+     * @param data The block's data, from it's position to it's limit, which is left unchanged
+     */
+    public void putBlock(@NonNull String server, @NonNull String path, long blockOffset, @NonNull ByteBuffer data) {
+        final File blockFile = getBlockFile(server, path, blockOffset);
+        final File tempFile = new File(blockFile.getPath() + TEMP_SUFFIX);
+        final long size = data.remaining();
+
+        if (size > mMaxBytes) {
+            return;
+        }
+
+        synchronized (mLock) {
+            if (!new File(blockFile.getParentFile(), META_FILE).exists()) {
+                return;
+            }
+
+            // Written to a temporary file, and renamed into place, so a crash never leaves a
+            // partial block behind
+            try (FileOutputStream output = new FileOutputStream(tempFile)) {
+                output.getChannel().write(data.duplicate());
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write cached block " + blockFile, e);
+                tempFile.delete();
+                return;
+            }
+
+            if (!tempFile.renameTo(blockFile)) {
+                Log.w(TAG, "Failed to move cached block into place " + blockFile);
+                tempFile.delete();
+                return;
+            }
+
+            Long previous = mBlocks.put(blockFile, size);
+            mTotalBytes += size - (previous == null ? 0 : previous);
+
+            evict();
+        }
+    }
+
+    /**
+     * Drops every cached block
+     */
+    public void clear() {
+        synchronized (mLock) {
+            File[] fileDirectories = mDirectory.listFiles();
+            if (fileDirectories != null) {
+                for (File fileDirectory : fileDirectories) {
+                    removeBlocks(fileDirectory);
+                    removeDirectoryIfEmpty(fileDirectory);
+                }
+            }
+        }
+    }
+
+    // Internal Methods
+    private void loadIndex() {
+        final List<File> blockFiles = new ArrayList<>();
+
+        File[] fileDirectories = mDirectory.listFiles();
+        if (fileDirectories == null) {
+            return;
+        }
+
+        for (File fileDirectory : fileDirectories) {
+            File[] files = fileDirectory.listFiles();
+            if (files == null) {
+                continue;
+            }
+
+            for (File file : files) {
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    // Left over from a crash
+                    file.delete();
+                } else if (!file.getName().equals(META_FILE)) {
+                    blockFiles.add(file);
+                }
+            }
+
+            removeDirectoryIfEmpty(fileDirectory);
+        }
+
+        // Least recently used first, matching mBlocks' order
+        Collections.sort(blockFiles, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long difference = lhs.lastModified() - rhs.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+
+        synchronized (mLock) {
+            for (File blockFile : blockFiles) {
+                long size = blockFile.length();
+                mBlocks.put(blockFile, size);
+                mTotalBytes += size;
+            }
+
+            evict();
+        }
+
+        Log.d(TAG, "Loaded " + blockFiles.size() + " cached blocks, " + mTotalBytes + " bytes");
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<File, Long>> iterator = mBlocks.entrySet().iterator();
+
+        while (mTotalBytes > mMaxBytes && iterator.hasNext()) {
+            Map.Entry<File, Long> entry = iterator.next();
+            iterator.remove();
+            mTotalBytes -= entry.getValue();
+
+            if (!entry.getKey().delete()) {
+                Log.w(TAG, "Failed to delete evicted block " + entry.getKey());
+            }
+
+            removeDirectoryIfEmpty(entry.getKey().getParentFile());
+        }
+    }
+
+    /**
+     * Removes a file's directory, and it's meta file, if it has no blocks left
+     */
+    private void removeDirectoryIfEmpty(File fileDirectory) {
+        String[] names = fileDirectory.list();
+        if (names == null) {
+            return;
+        }
+
+        for (String name : names) {
+            if (!name.equals(META_FILE)) {
+                return;
+            }
+        }
+
+        new File(fileDirectory, META_FILE).delete();
+
+        if (!fileDirectory.delete()) {
+            Log.w(TAG, "Failed to delete empty cache directory " + fileDirectory);
+        }
+    }
+
+    private void removeBlock(File blockFile) {
+        synchronized (mLock) {
+            Long size = mBlocks.remove(blockFile);
+            if (size != null) {
+                mTotalBytes -= size;
+            }
+            blockFile.delete();
+        }
+    }
+
+    private void removeBlocks(File fileDirectory) {
+        File[] files = fileDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            removeBlock(file);
+        }
+    }
+
+    private File getFileDirectory(String server, String path) {
+        return new File(mDirectory, sha1(server + "\n" + path));
+    }
+
+    private File getBlockFile(String server, String path, long blockOffset) {
+        return new File(getFileDirectory(server, path), Long.toString(blockOffset));
+    }
+
+    private static String sha1(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(String.format(Locale.US, "%02x", b & 0xff));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // Both are guaranteed to be available
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String readString(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (FileInputStream input = new FileInputStream(file)) {
+            byte[] bytes = new byte[(int) file.length()];
+            int length = input.read(bytes);
+            return new String(Arrays.copyOf(bytes, Math.max(length, 0)), "UTF-8");
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + file, e);
+            return null;
+        }
+    }
+
+    private static void writeString(File file, String value) {
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(value.getBytes("UTF-8"));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file, e);
+        }
+    }
+}
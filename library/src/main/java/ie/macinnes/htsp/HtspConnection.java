@@ -160,10 +160,14 @@ public class HtspConnection implements Runnable {
     private final Writer mWriter;
 
     private boolean mRunning = false;
+    // Set by failConnection, and acted on by the connection thread
+    private volatile boolean mFailRequested = false;
+    private volatile long mLastReadTime = System.nanoTime();
     private final Lock mLock = new ReentrantLock();
     private State mState = State.CLOSED;
 
     private final Set<Listener> mListeners = new CopyOnWriteArraySet<>();
+    private volatile EventLoopMonitor mEventLoopMonitor;
     private SocketChannel mSocketChannel;
     private Selector mSelector;
 
@@ -193,6 +197,9 @@ public class HtspConnection implements Runnable {
                 break;
             }
 
+            final EventLoopMonitor monitor = mEventLoopMonitor;
+            final long selectStartTime = System.nanoTime();
+
             try {
                 mSelector.select();
             } catch (IOException e) {
@@ -201,6 +208,16 @@ public class HtspConnection implements Runnable {
                 break;
             }
 
+            if (monitor != null) {
+                monitor.recordSelect(selectStartTime);
+            }
+
+            if (mFailRequested) {
+                mFailRequested = false;
+                closeConnection(State.FAILED);
+                break;
+            }
+
             if (mSelector == null || !mSelector.isOpen()) {
                 break;
             }
@@ -208,6 +225,10 @@ public class HtspConnection implements Runnable {
             Set<SelectionKey> keys = mSelector.selectedKeys();
             Iterator<SelectionKey> i = keys.iterator();
 
+            if (monitor != null) {
+                monitor.beginIteration();
+            }
+
             try {
                 while (i.hasNext()) {
                     SelectionKey selectionKey = i.next();
@@ -247,6 +268,10 @@ public class HtspConnection implements Runnable {
                 Log.e(TAG, "Something failed - shutting down", e);
                 closeConnection(State.FAILED);
                 break;
+            } finally {
+                if (monitor != null) {
+                    monitor.endIteration();
+                }
             }
         }
 
@@ -289,6 +314,7 @@ public class HtspConnection implements Runnable {
         }
 
         Log.i(TAG, "HTSP Connected");
+        mLastReadTime = System.nanoTime();
         setState(State.CONNECTED);
     }
 
@@ -298,8 +324,19 @@ public class HtspConnection implements Runnable {
 
         SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
 
+        mLastReadTime = System.nanoTime();
+
         if (!isClosedOrClosing()) {
-            if (!mReader.read(socketChannel)) {
+            final EventLoopMonitor monitor = mEventLoopMonitor;
+            final long startTime = System.nanoTime();
+
+            boolean success = mReader.read(socketChannel);
+
+            if (monitor != null) {
+                monitor.recordRead(startTime);
+            }
+
+            if (!success) {
                 Log.e(TAG, "Failed to process readable selection key");
                 closeConnection(State.FAILED);
             }
@@ -313,7 +350,16 @@ public class HtspConnection implements Runnable {
         SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
 
         if (!isClosedOrClosing()) {
-            if (!mWriter.write(socketChannel)) {
+            final EventLoopMonitor monitor = mEventLoopMonitor;
+            final long startTime = System.nanoTime();
+
+            boolean success = mWriter.write(socketChannel);
+
+            if (monitor != null) {
+                monitor.recordWrite(startTime);
+            }
+
+            if (!success) {
                 Log.e(TAG, "Failed to process writable selection key");
                 closeConnection(State.FAILED);
             }
@@ -337,6 +383,20 @@ public class HtspConnection implements Runnable {
         mListeners.remove(listener);
     }
 
+    public EventLoopMonitor getEventLoopMonitor() {
+        return mEventLoopMonitor;
+    }
+
+    /**
+     * Sets the EventLoopMonitor used to time the connection's selector loop, and connection
+     * listener callbacks.
+     *
+     * @param eventLoopMonitor The monitor, or null to disable timing
+     */
+    public void setEventLoopMonitor(EventLoopMonitor eventLoopMonitor) {
+        mEventLoopMonitor = eventLoopMonitor;
+    }
+
     public void setWritePending() {
         if (HtspConstants.DEBUG)
             Log.d(TAG, "Notified of available data to write");
@@ -397,6 +457,13 @@ public class HtspConnection implements Runnable {
         return mState;
     }
 
+    /**
+     * @return The number of milliseconds since data was last received on this connection
+     */
+    public long getIdleTime() {
+        return (System.nanoTime() - mLastReadTime) / 1000000;
+    }
+
     private void setState(final State state) {
         mLock.lock();
         try {
@@ -408,7 +475,14 @@ public class HtspConnection implements Runnable {
         for (final Listener listener : mListeners) {
             Handler handler = listener.getHandler();
             if (handler == null) {
+                final EventLoopMonitor monitor = mEventLoopMonitor;
+                final long startTime = System.nanoTime();
+
                 listener.onConnectionStateChange(state);
+
+                if (monitor != null) {
+                    monitor.recordListener(listener, startTime);
+                }
             } else {
                 handler.post(new Runnable() {
                     @Override
@@ -429,6 +503,7 @@ public class HtspConnection implements Runnable {
                 throw new HtspException("Attempting to connect while already connected");
             }
 
+            mFailRequested = false;
             setState(State.CONNECTING);
 
             try {
@@ -472,6 +547,29 @@ public class HtspConnection implements Runnable {
         closeConnection(State.CLOSED);
     }
 
+    /**
+     * Closes the connection, moving to State.FAILED rather than State.CLOSED. Used when something
+     * outside the connection (e.g. a LivenessMonitor) has decided the connection is dead.
+     *
+     * The connection thread is woken to do the closing, and returns immediately. Closing here
+     * would call the state listeners on this thread while holding mLock, and a listener which
+     * restarts the connection would then wait on the connection thread, which waits on mLock.
+     */
+    public void failConnection() {
+        mLock.lock();
+        try {
+            if (isClosedOrClosingOrFailed() || mSelector == null) {
+                return;
+            }
+
+            Log.w(TAG, "Failing HTSP Connection");
+            mFailRequested = true;
+            mSelector.wakeup();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
     private void closeConnection(State finalState) {
         if (isClosedOrClosingOrFailed()) {
             Log.w(TAG, "Attempting to close while already closed, closing or failed");
@@ -20,8 +20,11 @@ import android.support.annotation.NonNull;
 import android.util.Log;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Default implementation tying together most of the other HTSP classes
@@ -29,12 +32,26 @@ import java.nio.channels.SocketChannel;
 public class HtspDataHandler implements HtspConnection.Reader, HtspConnection.Writer, HtspConnection.Listener {
     private static final String TAG = HtspDataHandler.class.getSimpleName();
 
+    // The most messages we'll write in one go, so reads aren't starved during large batches
+    private static final int MAX_WRITE_MESSAGES = 128;
+
     private final HtspMessageSerializer mMessageSerializer;
     private final HtspMessage.DispatcherInternal mMessageDispatcher;
 
     private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(5242880); // 5MB
     private final ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(1024 * 1024); // 1024 * 1024 = Max TVH will accept
 
+    // Messages decoded during a read, waiting to be dispatched. Only used by the reading thread.
+    private final List<HtspMessage> mDeferredMessages = new ArrayList<>();
+
+    // BIN fields at least this large, at the start of a message, are streamed
+    private static final int STREAMED_FIELD_THRESHOLD = 65536;
+    // Matches the sanity limit in HtspMessageSerializer
+    private static final int MAX_STREAMED_FIELD_SIZE = 50000000;
+
+    // The streamed field currently being read, if any. Only used by the reading thread.
+    private StreamedField mStreamedField;
+
     public HtspDataHandler(HtspMessageSerializer messageSerializer, HtspMessage.DispatcherInternal messageDispatcher) {
         mMessageSerializer = messageSerializer;
         mMessageDispatcher = messageDispatcher;
@@ -56,6 +73,14 @@ public class HtspDataHandler implements HtspConnection.Reader, HtspConnection.Wr
         if (state == HtspConnection.State.CLOSED) {
             // TODO..
         }
+
+        if (state == HtspConnection.State.CLOSED || state == HtspConnection.State.FAILED) {
+            // Anything partially written or read is meaningless on a new connection
+            mWriteBuffer.clear();
+            mReadBuffer.clear();
+            mStreamedField = null;
+            mDeferredMessages.clear();
+        }
     }
 
     // HtspConnection.Reader Methods
@@ -63,11 +88,31 @@ public class HtspDataHandler implements HtspConnection.Reader, HtspConnection.Wr
      * Data read off the connection is passed here, the HtspMessageSerializer is used to build
      * HtspMessage  instances which are given to the HtspMessageDispatcher for handling
      *
+     * Every complete message in the buffer is decoded first. Replies to pending requests are
+     * completed as they're found, ahead of any other messages read alongside them, which are
+     * then dispatched in arrival order.
+     *
+     * Messages starting with a large BIN field (i.e. fileRead replies) are streamed: once the
+     * field's header is read, the rest of it is read from the socket straight into the byte array
+     * handed to the message's consumer, rather than via mReadBuffer. Such messages needn't fit in
+     * mReadBuffer, and their payload is copied once instead of twice.
+     *
      * @param socketChannel The SocketChannel from which to read data
      * @return true on success, false on error
      */
     @Override
     public boolean read(@NonNull SocketChannel socketChannel) {
+        if (mStreamedField != null && mStreamedField.mData.hasRemaining()) {
+            if (!readStreamedField(socketChannel)) {
+                return false;
+            }
+
+            if (mStreamedField.mData.hasRemaining()) {
+                // Wait for more of the payload
+                return true;
+            }
+        }
+
         int bufferStartPosition = mReadBuffer.position();
         int bytesRead;
 
@@ -83,42 +128,52 @@ public class HtspDataHandler implements HtspConnection.Reader, HtspConnection.Wr
         if (bytesRead == -1) {
             Log.e(TAG, "Failed to read from SocketChannel, read -1 bytes");
             return false;
-        } else if (bytesRead == 0) {
+        } else if (bytesRead == 0 && !isStreamedFieldComplete(bufferStartPosition)) {
             // No data read, continue
             return true;
         }
 
         int bytesToBeConsumed = bufferStartPosition + bytesRead;
-        // Flip the buffer, limit=position, position=0
-        mReadBuffer.flip();
 
         // Read messages out of the buffer one by one, until we either:
         // * Consume 0 bytes, meaning we only have a partial message in the buffer.
         // * Have no remaining bytes left to consume.
-        int bytesConsumed = -1;
-
-        while (bytesConsumed != 0 && bytesToBeConsumed > 0) {
+        while (bytesToBeConsumed > 0 || isStreamedFieldComplete(bytesToBeConsumed)) {
             // Ensure the buffer is at the start each of iteration, as we'll always have the
             // start of a message at this point (or it'll be empty)
             mReadBuffer.position(0);
+            mReadBuffer.limit(bytesToBeConsumed);
+
+            HtspMessage message = null;
 
-            // Build a message
-            HtspMessage message = mMessageSerializer.read(mReadBuffer);
+            if (mStreamedField != null) {
+                if (!isStreamedFieldComplete(bytesToBeConsumed)) {
+                    // Waiting on more of the payload, or the fields after it
+                    break;
+                }
 
-            if (message == null) {
-                // We didn't have enough data to read a message.
-                bytesConsumed = 0;
-                continue;
+                message = finishStreamedField();
+            } else if (!startStreamedField()) {
+                // Build a message
+                message = mMessageSerializer.read(mReadBuffer);
+
+                if (message == null) {
+                    // We didn't have enough data to read a message.
+                    break;
+                }
             }
 
-            // Dispatch the Message to it's listeners
-            mMessageDispatcher.onMessage(message);
+            // Replies to pending requests are completed straight away, everything else waits
+            // until we've decoded all we can, so a reply isn't stuck behind a run of muxpkts.
+            if (message != null && !mMessageDispatcher.onReply(message)) {
+                mDeferredMessages.add(message);
+            }
 
-            // We've read a full message. Our position() is set to the end of the message, and
-            // out limit may also set to the position() / end of the message.
+            // Our position() is set to the end of whatever we consumed, and our limit may also
+            // be set to the end of the message.
 
             // Figure out how much data we consumed
-            bytesConsumed = mReadBuffer.position();
+            int bytesConsumed = mReadBuffer.position();
 
             // Reset the limit to the known full amount of data we had
             mReadBuffer.limit(bytesToBeConsumed);
@@ -128,17 +183,22 @@ public class HtspDataHandler implements HtspConnection.Reader, HtspConnection.Wr
 
             // Figure out how much data is left to consume
             bytesToBeConsumed = bytesToBeConsumed - bytesConsumed;
-
-            // Reset the limit to the known full amount of data we have remaining
-            mReadBuffer.limit(bytesToBeConsumed);
         }
 
         // Place ourselves back at the right spot in the buffer, so that new reads append
         // rather than override the as yet unconsumed data.
+        mReadBuffer.limit(mReadBuffer.capacity());
         mReadBuffer.position(bytesToBeConsumed);
 
-        // Ensure we have space to add data for the next iteration
-        mReadBuffer.limit(mReadBuffer.capacity());
+        // Dispatch everything else to it's listeners, in the order it arrived. If a listener
+        // throws, the rest are dropped rather than redelivered by the next read.
+        try {
+            for (int i = 0; i < mDeferredMessages.size(); i++) {
+                mMessageDispatcher.onMessage(mDeferredMessages.get(i));
+            }
+        } finally {
+            mDeferredMessages.clear();
+        }
 
         return true;
     }
@@ -146,36 +206,184 @@ public class HtspDataHandler implements HtspConnection.Reader, HtspConnection.Wr
     // HtspConnection.Writer Methods
     @Override
     public boolean hasPendingData() {
-        return mMessageDispatcher.hasPendingMessages();
+        // Either a partially written message, or more messages to write
+        return mWriteBuffer.position() > 0 || mMessageDispatcher.hasPendingMessages();
     }
 
     /**
+     * Writes as many queued messages as the SocketChannel will take, up to MAX_WRITE_MESSAGES,
+     * so a batch of requests goes out from a single writer wakeup. Anything the SocketChannel
+     * doesn't accept is kept, and written first next time around.
      *
      * @param socketChannel The SocketChannel to write to
      * @return true on success, false on error
      */
     @Override
     public boolean write(@NonNull SocketChannel socketChannel) {
-        // Clear the buffer out, ready for a new message.
-        mWriteBuffer.clear();
+        int messagesWritten = 0;
+
+        // Between calls, mWriteBuffer holds any unwritten bytes from position 0 up to position()
+        while (messagesWritten < MAX_WRITE_MESSAGES) {
+            if (mWriteBuffer.position() == 0) {
+                if (!mMessageDispatcher.hasPendingMessages()) {
+                    break;
+                }
+
+                HtspMessage message = mMessageDispatcher.getMessage();
+
+                // Write the message to the buffer
+                messagesWritten++;
+                try {
+                    mMessageSerializer.write(mWriteBuffer, message);
+                } catch (BufferOverflowException e) {
+                    Log.e(TAG, "Failed to serialize message, it's larger than the write buffer");
+                    mWriteBuffer.clear();
+                    mMessageDispatcher.onMessageFailed(message, new HtspException(
+                            "Message larger than the " + mWriteBuffer.capacity() + " byte write buffer", e));
+                    continue;
+                }
+
+                mMessageDispatcher.onMessageWritten(message, mWriteBuffer.position());
+            }
 
-        HtspMessage message = mMessageDispatcher.getMessage();
+            // Flip the buffer, limit=position, position=0.
+            mWriteBuffer.flip();
+
+            try {
+                int bytesWritten = socketChannel.write(mWriteBuffer);
+                if (HtspConstants.DEBUG)
+                    Log.v(TAG, "Wrote " + bytesWritten + " bytes to SocketChannel");
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write buffer to SocketChannel", e);
+                mWriteBuffer.clear();
+                return false;
+            }
 
-        // Write the message to the buffer
-        mMessageSerializer.write(mWriteBuffer, message);
+            // Compact the buffer, moving anything unwritten to the start - position=unwritten bytes
+            mWriteBuffer.compact();
 
-        // Flip the buffer, limit=position, position=0.
-        mWriteBuffer.flip();
+            if (mWriteBuffer.position() > 0) {
+                // The SocketChannel is full, we'll be called again once it's writable.
+                break;
+            }
+        }
+
+        return true;
+    }
 
+    // Internal Methods
+    private boolean readStreamedField(SocketChannel socketChannel) {
         try {
-            int bytesWritten = socketChannel.write(mWriteBuffer);
+            int bytesRead = socketChannel.read(mStreamedField.mData);
             if (HtspConstants.DEBUG)
-                Log.v(TAG, "Wrote " + bytesWritten + " bytes to SocketChannel");
+                Log.v(TAG, "Read " + bytesRead + " bytes of streamed field " + mStreamedField.mKey);
+
+            if (bytesRead == -1) {
+                Log.e(TAG, "Failed to read from SocketChannel, read -1 bytes");
+                return false;
+            }
         } catch (IOException e) {
-            Log.e(TAG, "Failed to write buffer to SocketChannel", e);
+            Log.e(TAG, "Failed to read from SocketChannel", e);
             return false;
         }
 
         return true;
     }
+
+    /**
+     * @param bytesAvailable The number of bytes in mReadBuffer
+     * @return true if a streamed field's payload is complete, and the fields after it are in
+     * mReadBuffer
+     */
+    private boolean isStreamedFieldComplete(int bytesAvailable) {
+        return mStreamedField != null
+                && !mStreamedField.mData.hasRemaining()
+                && bytesAvailable >= mStreamedField.mTrailerLength;
+    }
+
+    /**
+     * Starts streaming the message at the start of mReadBuffer, if it begins with a large BIN
+     * field and isn't already entirely buffered. Consumes the message's header, the field's
+     * header, and whatever of the payload is buffered.
+     *
+     * @return true if streaming was started, false if the message should be decoded as usual
+     */
+    private boolean startStreamedField() {
+        final int available = mReadBuffer.limit();
+
+        // Message length, field type, key length and value length
+        if (available < 10) {
+            return false;
+        }
+
+        final long length = mReadBuffer.getInt(0) & 0xffffffffL;
+        final byte fieldType = mReadBuffer.get(4);
+        final int keyLength = mReadBuffer.get(5) & 0xff;
+        final long valueLength = mReadBuffer.getInt(6) & 0xffffffffL;
+        final int headerLength = 10 + keyLength;
+
+        if (available >= length + 4
+                || fieldType != HtspMessageSerializer.FIELD_BIN
+                || keyLength == 0
+                || valueLength < STREAMED_FIELD_THRESHOLD
+                || valueLength > MAX_STREAMED_FIELD_SIZE
+                || 6 + keyLength + valueLength > length
+                || available < headerLength) {
+            return false;
+        }
+
+        final byte[] keyBytes = new byte[keyLength];
+        mReadBuffer.position(10);
+        mReadBuffer.get(keyBytes);
+
+        final ByteBuffer data = ByteBuffer.wrap(new byte[(int) valueLength]);
+
+        // Take whatever of the payload we've already got
+        final ByteBuffer buffered = mReadBuffer.duplicate();
+        buffered.limit((int) Math.min(available, headerLength + valueLength));
+        data.put(buffered);
+
+        mReadBuffer.position(buffered.limit());
+
+        mStreamedField = new StreamedField(
+                new String(keyBytes), data, (int) (length - 6 - keyLength - valueLength));
+
+        if (HtspConstants.DEBUG)
+            Log.v(TAG, "Streaming " + valueLength + " byte field " + mStreamedField.mKey);
+
+        return true;
+    }
+
+    /**
+     * Builds the streamed message from it's payload, and the rest of it's fields which are at
+     * the start of mReadBuffer
+     */
+    private HtspMessage finishStreamedField() {
+        final ByteBuffer trailer = mReadBuffer.slice();
+        trailer.limit(mStreamedField.mTrailerLength);
+
+        final HtspMessage message = HtspMessageSerializer.deserialize(trailer);
+        message.put(mStreamedField.mKey, mStreamedField.mData.array());
+
+        mReadBuffer.position(mStreamedField.mTrailerLength);
+        mStreamedField = null;
+
+        return message;
+    }
+
+    /**
+     * A large BIN field being read straight from the socket
+     */
+    private static class StreamedField {
+        final String mKey;
+        final ByteBuffer mData;
+        // The length of the fields following this one
+        final int mTrailerLength;
+
+        StreamedField(String key, ByteBuffer data, int trailerLength) {
+            mKey = key;
+            mData = data;
+            mTrailerLength = trailerLength;
+        }
+    }
 }
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A shared, in memory cache of small files fetched over HTSP, e.g. channel logos and event artwork
+ * from imagecache/.
+ *
+ * Files are fetched asynchronously, with a fileOpen and a fileRead of the whole file, and a
+ * fileClose which isn't waited on. Concurrent requests for a file which isn't cached share a single
+ * fetch. The cache is bounded by the total size of the files it holds, least recently used files
+ * are evicted first, and files over an eighth of the budget aren't fetched at all, so one large
+ * file can't flush out hundreds of small ones. Fetches of them fail with an IOException.
+ *
+ * Returned arrays are shared between callers, and must not be modified.
+ */
+public class HtspFileCache {
+    private static final String TAG = HtspFileCache.class.getSimpleName();
+
+    private static final int TIMEOUT = 5000;
+
+    private final HtspMessage.Dispatcher mDispatcher;
+    private final long mMaxBytes;
+
+    private final Object mLock = new Object();
+    // Least recently used first
+    private final LinkedHashMap<String, byte[]> mFiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long mTotalBytes = 0;
+
+    private final ConcurrentMap<String, HtspFuture<byte[]>> mFetches = new ConcurrentHashMap<>();
+
+    /**
+     * @param dispatcher The Dispatcher to fetch files with
+     * @param maxBytes The most bytes of files to keep
+     */
+    public HtspFileCache(@NonNull HtspMessage.Dispatcher dispatcher, long maxBytes) {
+        mDispatcher = dispatcher;
+        mMaxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public long getTotalBytes() {
+        synchronized (mLock) {
+            return mTotalBytes;
+        }
+    }
+
+    /**
+     * @param path The file path, e.g. imagecache/3909
+     * @return The file's contents if cached, null otherwise
+     */
+    public byte[] getIfPresent(@NonNull String path) {
+        synchronized (mLock) {
+            return mFiles.get(path);
+        }
+    }
+
+    /**
+     * Gets a file, from the cache if it's there, otherwise from the server. If the file is already
+     * being fetched, the existing fetch is shared.
+     *
+     * @param path The file path, e.g. imagecache/3909
+     * @return A future for the file's contents, already complete if it was cached. Fails with
+     * FileNotFoundException if the server doesn't have the file, or an IOException or
+     * HtspNotConnectedException otherwise. Each caller gets it's own future, so cancelling it
+     * doesn't affect anyone else waiting on the same fetch.
+     */
+    public HtspFuture<byte[]> get(@NonNull String path) {
+        final byte[] cached = getIfPresent(path);
+        if (cached != null) {
+            return HtspFuture.completed(cached);
+        }
+
+        final HtspFuture<byte[]> future = new HtspFuture<>();
+        final HtspFuture<byte[]> existing = mFetches.putIfAbsent(path, future);
+        if (existing != null) {
+            return childOf(existing);
+        }
+
+        final HtspFuture<byte[]> child = childOf(future);
+        new Fetch(path, future).start();
+
+        return child;
+    }
+
+    /**
+     * Drops a file from the cache, e.g. because it's known to have changed
+     *
+     * @param path The file path
+     */
+    public void invalidate(@NonNull String path) {
+        synchronized (mLock) {
+            byte[] data = mFiles.remove(path);
+            if (data != null) {
+                mTotalBytes -= data.length;
+            }
+        }
+    }
+
+    /**
+     * Drops every cached file
+     */
+    public void clear() {
+        synchronized (mLock) {
+            mFiles.clear();
+            mTotalBytes = 0;
+        }
+    }
+
+    // Internal Methods
+    private long getMaxFileSize() {
+        return mMaxBytes / 8;
+    }
+
+    private void put(String path, byte[] data) {
+        if (data.length > getMaxFileSize()) {
+            return;
+        }
+
+        synchronized (mLock) {
+            byte[] previous = mFiles.put(path, data);
+            mTotalBytes += data.length - (previous == null ? 0 : previous.length);
+
+            Iterator<Map.Entry<String, byte[]>> iterator = mFiles.entrySet().iterator();
+            while (mTotalBytes > mMaxBytes && iterator.hasNext()) {
+                mTotalBytes -= iterator.next().getValue().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private static HtspFuture<byte[]> childOf(HtspFuture<byte[]> future) {
+        final HtspFuture<byte[]> child = new HtspFuture<>();
+
+        future.addListener(new HtspFuture.Listener<byte[]>() {
+            @Override
+            public Handler getHandler() {
+                return null;
+            }
+
+            @Override
+            public void onSuccess(byte[] result) {
+                child.complete(result);
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception exception) {
+                child.fail(exception);
+            }
+        });
+
+        return child;
+    }
+
+    /**
+     * A single fetch of a file: fileOpen, then as many fileReads as it takes, then fileClose
+     */
+    private class Fetch implements HtspFuture.Listener<HtspMessage> {
+        private final String mPath;
+        private final HtspFuture<byte[]> mFuture;
+
+        private int mFileId = -1;
+        private long mFileSize = -1;
+        private long mOffset = 0;
+        private long mRequestedSize;
+        private ByteArrayOutputStream mData;
+
+        Fetch(String path, HtspFuture<byte[]> future) {
+            mPath = path;
+            mFuture = future;
+        }
+
+        void start() {
+            HtspMessage fileOpenRequest = new HtspMessage();
+
+            fileOpenRequest.put("method", "fileOpen");
+            fileOpenRequest.put("file", mPath);
+
+            send(fileOpenRequest);
+        }
+
+        // HtspFuture.Listener Methods
+        @Override
+        public Handler getHandler() {
+            return null;
+        }
+
+        @Override
+        public void onSuccess(HtspMessage response) {
+            if (response.containsKey("error")) {
+                String error = response.getString("error");
+
+                if (mFileId == -1) {
+                    Log.e(TAG, "Received error when opening file: " + error);
+                    fail(new FileNotFoundException(error));
+                } else {
+                    Log.e(TAG, "Received error when reading file: " + error);
+                    fail(new IOException(error));
+                }
+                return;
+            }
+
+            // HtspFuture only logs exceptions thrown by listeners, which would leave the fetch hung
+            try {
+                if (mFileId == -1) {
+                    onFileOpen(response);
+                } else {
+                    onFileRead(response);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to handle response for " + mPath, e);
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onFailure(@NonNull Exception exception) {
+            fail(exception);
+        }
+
+        private void onFileOpen(HtspMessage response) {
+            mFileId = response.getInteger("id");
+            mFileSize = response.getLong("size", -1);
+
+            if (mFileSize > getMaxFileSize()) {
+                // It wouldn't be kept, don't read it all into memory just to throw it away
+                fail(new IOException("File " + mPath + " is too large to cache: " + mFileSize + " bytes"));
+                return;
+            }
+
+            mData = new ByteArrayOutputStream(mFileSize == -1 ? 32768 : (int) mFileSize);
+
+            sendFileRead();
+        }
+
+        private void onFileRead(HtspMessage response) {
+            final byte[] data = response.getByteArray("data");
+            mData.write(data, 0, data.length);
+            mOffset += data.length;
+
+            if (mOffset > getMaxFileSize()) {
+                fail(new IOException("File " + mPath + " is too large to cache"));
+                return;
+            }
+
+            if (data.length < mRequestedSize || (mFileSize != -1 && mOffset >= mFileSize)) {
+                sendFileClose();
+                succeed(mData.toByteArray());
+            } else {
+                sendFileRead();
+            }
+        }
+
+        private void sendFileRead() {
+            if (mFileSize == 0) {
+                sendFileClose();
+                succeed(new byte[0]);
+                return;
+            }
+
+            mRequestedSize = mFileSize == -1
+                    ? FileReadController.MAX_CHUNK_SIZE
+                    : Math.min(mFileSize - mOffset, FileReadController.MAX_CHUNK_SIZE);
+
+            HtspMessage fileReadRequest = new HtspMessage();
+
+            fileReadRequest.put("method", "fileRead");
+            fileReadRequest.put("id", mFileId);
+            fileReadRequest.put("size", mRequestedSize);
+            fileReadRequest.put("offset", mOffset);
+
+            send(fileReadRequest);
+        }
+
+        private void sendFileClose() {
+            HtspMessage fileCloseRequest = new HtspMessage();
+
+            fileCloseRequest.put("method", "fileClose");
+            fileCloseRequest.put("id", mFileId);
+
+            // We just go ahead and send the close without waiting for a response, if it fails, oh well.
+            try {
+                mDispatcher.sendMessage(fileCloseRequest);
+            } catch (HtspException e) {
+                Log.w(TAG, "Failed to send fileClose request for " + mPath);
+            }
+        }
+
+        private void send(HtspMessage request) {
+            try {
+                mDispatcher.sendRequest(request, TIMEOUT).addListener(this);
+            } catch (HtspNotConnectedException e) {
+                fail(e);
+            }
+        }
+
+        private void succeed(byte[] data) {
+            put(mPath, data);
+            mFetches.remove(mPath, mFuture);
+            mFuture.complete(data);
+        }
+
+        private void fail(Exception exception) {
+            if (mFileId != -1) {
+                sendFileClose();
+            }
+
+            mFetches.remove(mPath, mFuture);
+            mFuture.fail(exception);
+        }
+    }
+}
@@ -0,0 +1,778 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A seekable, read only channel over a file fetched with the HTSP file API.
+ *
+ * It has the same position(), position(long), size() and read(ByteBuffer, long) methods as
+ * SeekableByteChannel and FileChannel, but only implements ReadableByteChannel as
+ * SeekableByteChannel isn't available until API 24.
+ *
+ * Sequential reads are pipelined, with a window of fileRead requests for consecutive chunks kept
+ * in flight (see FileReadController). Seeking is cheap: data already fetched or in flight is
+ * reused where it covers the new position, and otherwise the read-ahead is cancelled and restarted
+ * at the new position, costing one round trip. Positioned reads go straight to the server without
+ * disturbing the read-ahead.
+ *
+ * Optionally, reads can be served from a persistent HtspBlockCache, see setBlockCache.
+ *
+ * If the connection drops part way through, reads wait for it to come back, reopen the file,
+ * confirm it hasn't been replaced, and carry on from the same position, see setResumeTimeout.
+ */
+public class HtspFileChannel implements ReadableByteChannel {
+    private static final String TAG = HtspFileChannel.class.getSimpleName();
+
+    private static final int DEFAULT_READ_AHEAD = 8;
+    private static final int TIMEOUT = 5000;
+    private static final long DEFAULT_RESUME_TIMEOUT = 30000; // ms
+    private static final long RESUME_RETRY_DELAY = 1000; // ms
+
+    private final HtspMessage.Dispatcher mDispatcher;
+    private final String mFileName;
+    private final int mReadAhead;
+
+    private boolean mOpen = false;
+    private int mFileId = -1;
+    private long mFileSize = -1;
+    private long mFileMtime = -1;
+    private long mPosition = 0;
+
+    // Optional, see setBlockCache
+    private HtspBlockCache mBlockCache;
+    private String mServer;
+
+    // The cached block reads are currently being served from, and the file offset it starts at
+    private ByteBuffer mBlock;
+    private long mBlockOffset = -1;
+
+    private long mResumeTimeout = DEFAULT_RESUME_TIMEOUT;
+
+    // The most recently fetched chunk, and the file offset it starts at
+    private ByteBuffer mBuffer = ByteBuffer.allocate(0);
+    private long mBufferOffset = 0;
+
+    // fileRead requests in flight, contiguous and in offset order, and the offset the next one
+    // will read from
+    private final Deque<PendingRead> mPendingReads = new ArrayDeque<>();
+    private long mRequestOffset = 0;
+    private boolean mEndOfFile = false;
+    // Nothing at or past this offset is requested, see setReadLimit
+    private long mReadLimit = Long.MAX_VALUE;
+    private FileReadController mController;
+
+    public HtspFileChannel(@NonNull HtspMessage.Dispatcher dispatcher, @NonNull String fileName) throws IOException {
+        this(dispatcher, fileName, DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * @param dispatcher The Dispatcher to fetch the file with
+     * @param fileName The file to fetch
+     * @param readAhead The most fileRead requests to keep in flight at once, 1 disables read-ahead
+     * @throws IOException if the file can't be opened
+     */
+    public HtspFileChannel(@NonNull HtspMessage.Dispatcher dispatcher, @NonNull String fileName, int readAhead) throws IOException {
+        mDispatcher = dispatcher;
+        mFileName = fileName;
+        mReadAhead = Math.max(1, readAhead);
+
+        Log.i(TAG, "Opening HtspFileChannel for " + mFileName);
+
+        sendFileOpen();
+        mController = new FileReadController(mFileSize, mReadAhead);
+        mOpen = true;
+    }
+
+    /**
+     * Serves reads from a HtspBlockCache where possible, fetching and caching only the blocks it's
+     * missing. The cached blocks are first validated against the file's current size and mtime.
+     *
+     * Positioned reads, with read(ByteBuffer, long), always go to the server.
+     *
+     * @param blockCache The cache, or null to stop using one
+     * @param server Identifies the server in the cache, e.g. it's hostname and port
+     * @throws IOException if the channel is closed, or the file's size and mtime can't be found
+     */
+    public synchronized void setBlockCache(HtspBlockCache blockCache, @NonNull String server) throws IOException {
+        ensureOpen();
+
+        if (blockCache != null) {
+            if (mFileSize == -1 || mFileMtime == -1) {
+                sendFileStat();
+            }
+
+            if (mFileMtime == -1) {
+                Log.w(TAG, "Server didn't report the mtime of " + mFileName + ", not caching it");
+                return;
+            }
+
+            blockCache.validate(server, mFileName, mFileSize, mFileMtime);
+        }
+
+        mBlockCache = blockCache;
+        mServer = server;
+        mBlock = null;
+    }
+
+    /**
+     * Sets how long reads wait for a lost connection to come back before failing. The file is
+     * reopened once it does, and considered replaced, failing the read, if it has shrunk.
+     *
+     * @param resumeTimeout The timeout in milliseconds, or 0 to fail straight away
+     */
+    public synchronized void setResumeTimeout(long resumeTimeout) {
+        mResumeTimeout = resumeTimeout;
+    }
+
+    public synchronized long getResumeTimeout() {
+        return mResumeTimeout;
+    }
+
+    /**
+     * Stops the read-ahead at an offset, e.g. the end of the part of the file this channel is
+     * fetching. Reads in flight starting at or past it are cancelled, and once the data already
+     * requested has been read, reads see the end of the file. That may run past the limit, up to
+     * the end of the chunk holding it.
+     *
+     * @param readLimit The offset to stop at, or Long.MAX_VALUE for no limit
+     */
+    synchronized void setReadLimit(long readLimit) {
+        mReadLimit = readLimit;
+
+        while (!mPendingReads.isEmpty() && mPendingReads.peekLast().mOffset >= readLimit) {
+            PendingRead pendingRead = mPendingReads.pollLast();
+            pendingRead.mFuture.cancel(false);
+            mRequestOffset = pendingRead.mOffset;
+        }
+    }
+
+    public String getFileName() {
+        return mFileName;
+    }
+
+    /**
+     * @return The size reported by fileOpen, or -1 if it didn't report one
+     */
+    public synchronized long getFileSize() {
+        return mFileSize;
+    }
+
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return mPosition;
+    }
+
+    /**
+     * Moves to a new position. Nothing is fetched until the next read.
+     *
+     * @param newPosition The new position, which may be past the end of the file
+     * @return This channel
+     * @throws IOException if the channel is closed
+     */
+    public synchronized HtspFileChannel position(long newPosition) throws IOException {
+        ensureOpen();
+
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+
+        mPosition = newPosition;
+
+        // Drop any reads in flight which end before the new position, and if that leaves none
+        // covering it, restart the read-ahead there.
+        while (!mPendingReads.isEmpty() && mPendingReads.peek().getEnd() <= newPosition) {
+            mPendingReads.poll().mFuture.cancel(false);
+        }
+
+        if (mPendingReads.isEmpty() || mPendingReads.peek().mOffset > newPosition) {
+            if (!isBuffered(newPosition)) {
+                cancelPendingReads();
+                mRequestOffset = newPosition;
+                mEndOfFile = false;
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * @return The size of the file, from fileOpen if it was reported, otherwise from fileStat
+     * @throws IOException if the channel is closed, or the size can't be found
+     */
+    public synchronized long size() throws IOException {
+        ensureOpen();
+
+        if (mFileSize == -1) {
+            sendFileStat();
+        }
+
+        return mFileSize;
+    }
+
+    /**
+     * Reads from the current position, as for ReadableByteChannel, then advances the position.
+     *
+     * @param dst The buffer to read into
+     * @return The number of bytes read, or -1 at the end of the file
+     * @throws IOException if the channel is closed, or the read fails
+     */
+    @Override
+    public synchronized int read(@NonNull ByteBuffer dst) throws IOException {
+        ensureOpen();
+
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+
+        final ByteBuffer source = getReadableBuffer();
+        if (source == null) {
+            return -1;
+        }
+
+        final int count = Math.min(source.remaining(), dst.remaining());
+        source.limit(source.position() + count);
+        dst.put(source);
+
+        mPosition += count;
+
+        return count;
+    }
+
+    /**
+     * Writes up to count bytes from the current position to a channel, then advances the
+     * position by the number of bytes written. Fetched chunks are written to the target as they
+     * are, with no intermediate copy.
+     *
+     * @param count The most bytes to transfer
+     * @param target The channel to write to
+     * @return The number of bytes transferred, which is less than count at the end of the file,
+     * or if a non-blocking target stops accepting data
+     * @throws IOException if the channel is closed, or the read or write fails
+     */
+    public synchronized long transferTo(long count, @NonNull WritableByteChannel target) throws IOException {
+        ensureOpen();
+
+        long transferred = 0;
+
+        while (transferred < count) {
+            final ByteBuffer source = getReadableBuffer();
+            if (source == null) {
+                break;
+            }
+
+            if (source.remaining() > count - transferred) {
+                source.limit(source.position() + (int) (count - transferred));
+            }
+
+            final int written = target.write(source);
+            if (written == 0) {
+                break;
+            }
+
+            mPosition += written;
+            transferred += written;
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Reads from a given position, without changing the channel's position or disturbing it's
+     * read-ahead. Costs one round trip, and reads at most one chunk.
+     *
+     * @param dst The buffer to read into
+     * @param position The file position to read from
+     * @return The number of bytes read, or -1 if position is at or past the end of the file
+     * @throws IOException if the channel is closed, or the read fails
+     */
+    public synchronized int read(@NonNull ByteBuffer dst, long position) throws IOException {
+        ensureOpen();
+
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: " + position);
+        }
+
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+
+        if (mFileSize != -1 && position >= mFileSize) {
+            return -1;
+        }
+
+        final long size = Math.min(dst.remaining(), FileReadController.MAX_CHUNK_SIZE);
+        byte[] data;
+
+        while (true) {
+            try {
+                data = getData(awaitResponse(sendFileRead(position, size)));
+                break;
+            } catch (IOException e) {
+                if (!isConnectionLost(e)) {
+                    throw e;
+                }
+                resume(e);
+            }
+        }
+
+        if (data.length == 0) {
+            return -1;
+        }
+
+        dst.put(data);
+        return data.length;
+    }
+
+    /**
+     * @return The number of bytes which can be read without waiting on the server
+     */
+    public synchronized int available() {
+        if (!mOpen || !isBuffered(mPosition)) {
+            return 0;
+        }
+        return (int) (mBufferOffset + mBuffer.limit() - mPosition);
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return mOpen;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!mOpen) {
+            return;
+        }
+
+        mOpen = false;
+        cancelPendingReads();
+        mBuffer = ByteBuffer.allocate(0);
+        mBlock = null;
+
+        sendFileClose();
+    }
+
+    // Internal Methods
+    private void ensureOpen() throws ClosedChannelException {
+        if (!mOpen) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * @return A view of the data at mPosition, from the cache, a fetched chunk, or the server, or
+     * null at the end of the file
+     */
+    private ByteBuffer getReadableBuffer() throws IOException {
+        final ByteBuffer source;
+
+        if (mBlockCache != null) {
+            source = getBlock();
+        } else if (isBuffered(mPosition) || fetchNextChunk()) {
+            source = mBuffer.duplicate();
+            source.position((int) (mPosition - mBufferOffset));
+        } else {
+            source = null;
+        }
+
+        return source;
+    }
+
+    /**
+     * @return A view of the cached block holding mPosition, fetching and caching it first if
+     * necessary, or null at the end of the file. The block is kept until reads move past it, so
+     * it's only looked up in the cache, and it's recency updated, once.
+     */
+    private ByteBuffer getBlock() throws IOException {
+        final long position = mPosition;
+        final long blockOffset = position - position % HtspBlockCache.BLOCK_SIZE;
+
+        if (mFileSize != -1 && position >= mFileSize) {
+            return null;
+        }
+
+        ByteBuffer block;
+
+        if (mBlock != null && mBlockOffset == blockOffset) {
+            block = mBlock.duplicate();
+        } else {
+            mBlock = null;
+            block = mBlockCache.getBlock(mServer, mFileName, blockOffset);
+        }
+
+        if (block == null) {
+            // Fetch the whole block through the read-ahead, so a run of missing blocks is still
+            // fetched as a pipelined stream
+            block = ByteBuffer.allocate(HtspBlockCache.BLOCK_SIZE);
+            position(blockOffset);
+
+            while (block.hasRemaining()) {
+                if (!isBuffered(mPosition) && !fetchNextChunk()) {
+                    break;
+                }
+
+                final ByteBuffer source = mBuffer.duplicate();
+                source.position((int) (mPosition - mBufferOffset));
+                source.limit(source.position() + Math.min(source.remaining(), block.remaining()));
+
+                mPosition += source.remaining();
+                block.put(source);
+            }
+
+            block.flip();
+            mPosition = position;
+
+            if (block.hasRemaining()) {
+                mBlockCache.putBlock(mServer, mFileName, blockOffset, block);
+            }
+        }
+
+        if (mBlock == null && block.hasRemaining()) {
+            mBlock = block.duplicate();
+            mBlockOffset = blockOffset;
+        }
+
+        final int offset = (int) (position - blockOffset);
+        if (offset >= block.limit()) {
+            // A short last block, and we're past it's end
+            return null;
+        }
+
+        block.position(offset);
+        return block;
+    }
+
+    private boolean isBuffered(long position) {
+        return position >= mBufferOffset && position < mBufferOffset + mBuffer.limit();
+    }
+
+    /**
+     * Fetches the chunk holding mPosition into mBuffer, resuming if the connection is lost
+     *
+     * @return true if data was fetched, false at the end of the file
+     */
+    private boolean fetchNextChunk() throws IOException {
+        while (true) {
+            try {
+                return fetchNextChunkOnce();
+            } catch (IOException e) {
+                if (!isConnectionLost(e)) {
+                    throw e;
+                }
+                resume(e);
+            }
+        }
+    }
+
+    private boolean fetchNextChunkOnce() throws IOException {
+        if (mFileSize != -1 && mPosition >= mFileSize) {
+            return false;
+        }
+
+        // Top up the window before waiting, so the server always has work queued
+        fillReadAheadWindow();
+
+        final PendingRead pendingRead = mPendingReads.poll();
+        if (pendingRead == null) {
+            // Nothing left to read
+            return false;
+        }
+
+        final byte[] data = getData(awaitResponse(pendingRead.mFuture));
+
+        if (HtspConstants.DEBUG)
+            Log.v(TAG, "Fetched " + data.length + " bytes of file at offset " + pendingRead.mOffset);
+
+        mController.onRead(pendingRead.mSize, data.length, pendingRead.mSentTime);
+
+        if (data.length < pendingRead.mSize) {
+            // A short read means we've hit the end of the file, anything after it is pointless
+            mEndOfFile = true;
+            cancelPendingReads();
+        }
+
+        mBuffer = ByteBuffer.wrap(data);
+        mBufferOffset = pendingRead.mOffset;
+
+        // The position may be part way through the chunk after a seek, or past it's end if it
+        // was a short read
+        return isBuffered(mPosition);
+    }
+
+    private void fillReadAheadWindow() throws IOException {
+        while (mPendingReads.size() < mController.getWindow() && !mEndOfFile) {
+            long size = mController.getChunkSize();
+
+            // Make sure we don't overrun the file, or the read limit
+            final long end = mFileSize != -1 ? Math.min(mFileSize, mReadLimit) : mReadLimit;
+            if (mRequestOffset >= end) {
+                return;
+            }
+            if (mRequestOffset + size > end) {
+                size = end - mRequestOffset;
+            }
+
+            mPendingReads.add(new PendingRead(mRequestOffset, size, sendFileRead(mRequestOffset, size)));
+            mRequestOffset += size;
+        }
+    }
+
+    private void cancelPendingReads() {
+        for (PendingRead pendingRead : mPendingReads) {
+            pendingRead.mFuture.cancel(false);
+        }
+        mPendingReads.clear();
+    }
+
+    /**
+     * Reopens the file after the connection was lost, and restarts the read-ahead at mPosition.
+     *
+     * The Dispatcher doesn't tell us when the connection is back and authenticated, so fileOpen is
+     * retried until it succeeds or the resume timeout passes, at which point the original failure
+     * is rethrown.
+     *
+     * @param cause The failure which showed the connection was lost
+     * @throws IOException if the file can't be reopened in time, or has been replaced
+     */
+    private void resume(IOException cause) throws IOException {
+        if (mResumeTimeout <= 0) {
+            throw cause;
+        }
+
+        Log.w(TAG, "Connection lost while reading " + mFileName + " at " + mPosition + ", resuming");
+
+        cancelPendingReads();
+
+        final long previousSize = mFileSize;
+        final long deadline = System.currentTimeMillis() + mResumeTimeout;
+
+        while (true) {
+            try {
+                Thread.sleep(RESUME_RETRY_DELAY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while resuming " + mFileName);
+            }
+
+            try {
+                // Errors are retried too, as the server refuses requests until we're
+                // authenticated again
+                sendFileOpen();
+            } catch (IOException e) {
+                if (System.currentTimeMillis() >= deadline) {
+                    Log.e(TAG, "Failed to resume " + mFileName, e);
+                    throw cause;
+                }
+                continue;
+            }
+
+            try {
+                sendFileStat();
+            } catch (IOException e) {
+                if (isConnectionLost(e) && System.currentTimeMillis() < deadline) {
+                    continue;
+                }
+                Log.w(TAG, "Failed to confirm the size of " + mFileName + ", using the size from fileOpen", e);
+            }
+
+            break;
+        }
+
+        // Recordings in progress grow, so only a smaller file means it's been replaced
+        if (previousSize != -1 && mFileSize != -1 && mFileSize < previousSize) {
+            throw new IOException(mFileName + " shrank from " + previousSize + " to " + mFileSize
+                    + " bytes while the connection was lost");
+        }
+
+        if (mBlockCache != null && mFileSize != -1 && mFileMtime != -1) {
+            mBlockCache.validate(mServer, mFileName, mFileSize, mFileMtime);
+            mBlock = null;
+        }
+
+        // A new connection, so start the throughput estimates over
+        mController = new FileReadController(mFileSize, mReadAhead);
+        mRequestOffset = mPosition;
+        mEndOfFile = false;
+
+        Log.i(TAG, "Resumed " + mFileName + " at " + mPosition);
+    }
+
+    private static boolean isConnectionLost(IOException e) {
+        return e.getCause() instanceof HtspNotConnectedException;
+    }
+
+    private HtspMessage awaitResponse(HtspFuture<HtspMessage> future) throws IOException {
+        try {
+            return future.get(getTimeout(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            // Keep the cause, so a lost connection can be told apart from other failures
+            throw new IOException("Failed to receive response to fileRead request", e.getCause());
+        } catch (TimeoutException | CancellationException e) {
+            throw new IOException("Failed to receive response to fileRead request", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for fileRead response");
+        }
+    }
+
+    private int getTimeout() {
+        // Later requests in the window queue behind earlier ones at the server
+        return TIMEOUT * mController.getWindow();
+    }
+
+    private byte[] getData(HtspMessage fileReadResponse) throws IOException {
+        if (fileReadResponse == null) {
+            throw new IOException("Failed to receive response to fileRead request");
+        } else if (fileReadResponse.containsKey("error")) {
+            String error = fileReadResponse.getString("error");
+            Log.e(TAG, "Received error when reading file: " + error);
+            throw new IOException(error);
+        }
+
+        return fileReadResponse.getByteArray("data");
+    }
+
+    private void sendFileOpen() throws IOException {
+        HtspMessage fileOpenRequest = new HtspMessage();
+
+        fileOpenRequest.put("method", "fileOpen");
+        fileOpenRequest.put("file", mFileName);
+
+        HtspMessage fileOpenResponse;
+        try {
+            fileOpenResponse = mDispatcher.sendMessage(fileOpenRequest, TIMEOUT);
+        } catch (HtspException e) {
+            throw new IOException("Failed to send fileOpen request", e);
+        }
+
+        if (fileOpenResponse == null) {
+            throw new IOException("Failed to receive response to fileOpen request");
+        } else if (fileOpenResponse.containsKey("error")) {
+            String error = fileOpenResponse.getString("error");
+            Log.e(TAG, "Received error when opening file: " + error);
+            throw new FileNotFoundException(error);
+        }
+
+        mFileId = fileOpenResponse.getInteger("id");
+
+        if (fileOpenResponse.containsKey("size")) {
+            // Size is optional
+            mFileSize = fileOpenResponse.getLong("size");
+            mFileMtime = fileOpenResponse.getLong("mtime", -1);
+            Log.v(TAG, "Opened file " + mFileName + " of size " + mFileSize + " successfully");
+        } else {
+            Log.v(TAG, "Opened file " + mFileName + " successfully");
+        }
+    }
+
+    private HtspFuture<HtspMessage> sendFileRead(long offset, long size) throws IOException {
+        HtspMessage fileReadRequest = new HtspMessage();
+
+        fileReadRequest.put("method", "fileRead");
+        fileReadRequest.put("id", mFileId);
+        fileReadRequest.put("size", size);
+        fileReadRequest.put("offset", offset);
+
+        if (HtspConstants.DEBUG)
+            Log.v(TAG, "Fetching " + size + " bytes of file at offset " + offset);
+
+        try {
+            return mDispatcher.sendRequest(fileReadRequest, getTimeout());
+        } catch (HtspNotConnectedException e) {
+            throw new IOException("Failed to send fileRead request", e);
+        }
+    }
+
+    private void sendFileStat() throws IOException {
+        HtspMessage fileStatRequest = new HtspMessage();
+
+        fileStatRequest.put("method", "fileStat");
+        fileStatRequest.put("id", mFileId);
+
+        HtspMessage fileStatResponse;
+        try {
+            fileStatResponse = mDispatcher.sendMessage(fileStatRequest, TIMEOUT);
+        } catch (HtspException e) {
+            throw new IOException("Failed to send fileStat request", e);
+        }
+
+        if (fileStatResponse == null) {
+            throw new IOException("Failed to receive response to fileStat request");
+        } else if (fileStatResponse.containsKey("error")) {
+            String error = fileStatResponse.getString("error");
+            Log.e(TAG, "Received error when stating file: " + error);
+            throw new IOException(error);
+        } else if (!fileStatResponse.containsKey("size")) {
+            throw new IOException("Server didn't report the size of " + mFileName);
+        }
+
+        mFileSize = fileStatResponse.getLong("size");
+        mFileMtime = fileStatResponse.getLong("mtime", -1);
+    }
+
+    private void sendFileClose() throws IOException {
+        Log.v(TAG, "Closing file " + mFileName);
+
+        HtspMessage fileCloseRequest = new HtspMessage();
+
+        fileCloseRequest.put("method", "fileClose");
+        fileCloseRequest.put("id", mFileId);
+
+        // We just go ahead and send the close without waiting for a response, if it fails, oh well.
+        try {
+            mDispatcher.sendMessage(fileCloseRequest);
+        } catch (HtspException e) {
+            throw new IOException("Failed to send fileClose request", e);
+        }
+    }
+
+    /**
+     * A fileRead request in flight
+     */
+    private static class PendingRead {
+        final long mOffset;
+        final long mSize;
+        final HtspFuture<HtspMessage> mFuture;
+        final long mSentTime = System.nanoTime();
+
+        PendingRead(long offset, long size, HtspFuture<HtspMessage> future) {
+            mOffset = offset;
+            mSize = size;
+            mFuture = future;
+        }
+
+        long getEnd() {
+            return mOffset + mSize;
+        }
+    }
+}
@@ -18,45 +18,54 @@ package ie.macinnes.htsp;
 
 import android.support.annotation.NonNull;
 import android.util.Log;
-import android.util.LongSparseArray;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.nio.channels.WritableByteChannel;
 
 
 /**
  * Fetches a file over a HTSP Connection
+ *
+ * This is a thin InputStream over a HtspFileChannel, which does the actual fetching, including
+ * read-ahead. skip() and mark()/reset() are seeks on the channel, rather than reading and
+ * discarding data. Reads survive the connection dropping, see HtspFileChannel.setResumeTimeout.
  */
 public class HtspFileInputStream extends InputStream {
     private static final String TAG = HtspFileInputStream.class.getSimpleName();
 
-    private final HtspMessage.Dispatcher mDispatcher;
-    private final String mFileName;
-
-    private ByteBuffer mBuffer;
-
-    private int mFileId = -1;
-    private long mFileSize = -1;
-    private long mFilePosition = 0;
+    private final HtspFileChannel mChannel;
+    private final byte[] mSingleByte = new byte[1];
+    private long mMark = -1;
 
     public HtspFileInputStream(@NonNull HtspMessage.Dispatcher dispatcher, String fileName) throws IOException {
-        mDispatcher = dispatcher;
-        mFileName = fileName;
+        this(new HtspFileChannel(dispatcher, fileName));
+    }
 
-        Log.i(TAG, "Opening HtspFileInputStream for " + mFileName);
+    /**
+     * @param dispatcher The Dispatcher to fetch the file with
+     * @param fileName The file to fetch
+     * @param readAhead The most fileRead requests to keep in flight at once, 1 disables read-ahead.
+     *                  The window used grows towards this as the link is measured
+     * @throws IOException if the file can't be opened
+     */
+    public HtspFileInputStream(@NonNull HtspMessage.Dispatcher dispatcher, String fileName, int readAhead) throws IOException {
+        this(new HtspFileChannel(dispatcher, fileName, readAhead));
+    }
 
-        sendFileOpen();
-        sendFileRead(1024000, 0);
+    public HtspFileInputStream(@NonNull HtspFileChannel channel) {
+        mChannel = channel;
     }
 
     public long getFileSize() {
-        return mFileSize;
+        return mChannel.getFileSize();
+    }
+
+    public HtspFileChannel getChannel() {
+        return mChannel;
     }
 
-    // InputStream Methods
     /**
      * Reads the next byte of data from the input stream. The value byte is
      * returned as an <code>int</code> in the range <code>0</code> to
@@ -73,23 +82,11 @@ public class HtspFileInputStream extends InputStream {
      */
     @Override
     public int read() throws IOException {
-        // If we've reached the end of the file, we're done :)
-        if (mFileSize == mFilePosition && !mBuffer.hasRemaining()) {
+        if (read(mSingleByte, 0, 1) == -1) {
             return -1;
         }
 
-        sendFileRead(1024000, mFilePosition);
-
-        if (!mBuffer.hasRemaining() && mFileSize == -1) {
-            // If we still don't have any data, and we don't have a known size, then we're done.
-            return -1;
-
-        } else if (!mBuffer.hasRemaining()) {
-            // If we don't have data here, something went wrong
-            throw new IOException("Failed to read data for " + mFileName);
-        }
-
-        return mBuffer.get() & 0xff;
+        return mSingleByte[0] & 0xff;
     }
 
     /**
@@ -151,133 +148,106 @@ public class HtspFileInputStream extends InputStream {
      */
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        // If we've reached the end of the file, we're done :)
-        if (mFileSize == mFilePosition && !mBuffer.hasRemaining()) {
-            return -1;
-        }
-
-        sendFileRead(1024000, mFilePosition);
-
-        if (!mBuffer.hasRemaining() && mFileSize == -1) {
-            // If we still don't have any data, and we don't have a known size, then we're done.
-            return -1;
-
-        } else if (!mBuffer.hasRemaining()) {
-            // If we don't have data here, something went wrong
-            throw new IOException("Failed to read data for " + mFileName);
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        } else if (len == 0) {
+            return 0;
         }
 
-        int startPos = mBuffer.position();
-
-        mBuffer.get(b, off, Math.min(len, mBuffer.remaining()));
-
-        return mBuffer.position() - startPos;
+        return mChannel.read(ByteBuffer.wrap(b, off, len));
     }
 
     /**
-     * Closes this stream and releases any system resources associated
-     * with it. If the stream is already closed then invoking this
-     * method has no effect.
+     * Reads into a ByteBuffer, copying straight from the fetched chunk with no intermediate array.
      *
-     * @throws IOException if an I/O error occurs
+     * @param dst The buffer to read into
+     * @return The number of bytes read, or -1 at the end of the file
+     * @throws IOException if the stream is closed, or the read fails
      */
-    @Override
-    public void close() throws IOException {
-        sendFileClose();
+    public int read(@NonNull ByteBuffer dst) throws IOException {
+        return mChannel.read(dst);
     }
 
-    // Internal Methods
-    private void sendFileOpen() throws IOException {
-        HtspMessage fileOpenRequest = new HtspMessage();
-
-        fileOpenRequest.put("method", "fileOpen");
-        fileOpenRequest.put("file", mFileName);
+    /**
+     * Writes the rest of the file to a channel, e.g. a FileChannel when exporting a recording.
+     * Fetched chunks are written to the target as they are, with no intermediate copy.
+     *
+     * @param target The channel to write to, which must be blocking
+     * @return The number of bytes transferred
+     * @throws IOException if the stream is closed, or the read or write fails
+     */
+    public long transferTo(@NonNull WritableByteChannel target) throws IOException {
+        return mChannel.transferTo(Long.MAX_VALUE, target);
+    }
 
-        HtspMessage fileOpenResponse;
-        try {
-            fileOpenResponse = mDispatcher.sendMessage(fileOpenRequest, 5000);
-        } catch (HtspNotConnectedException e) {
-            throw new IOException("Failed to send fileOpen request", e);
+    /**
+     * Skips forward by seeking the channel, rather than reading and discarding data. The file's
+     * size isn't fetched for this, so a file whose size isn't known (e.g. a recording in
+     * progress) can be skipped past it's end, in which case the next read returns -1.
+     *
+     * @param n The number of bytes to skip
+     * @return The number of bytes skipped, which is less than n only at the end of a file whose
+     * size is known
+     * @throws IOException if the stream is closed
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
         }
 
-        if (fileOpenResponse == null) {
-            throw new IOException("Failed to receive response to fileOpen request");
-        } else if (fileOpenResponse.containsKey("error")) {
-            String error = fileOpenResponse.getString("error");
-            Log.e(TAG, "Received error when opening file: " + error);
-            throw new FileNotFoundException(error);
-        }
+        final long position = mChannel.position();
+        final long size = mChannel.getFileSize();
+        final long skipped = size == -1 ? n : Math.max(0, Math.min(n, size - position));
 
-        mFileId = fileOpenResponse.getInteger("id");
+        mChannel.position(position + skipped);
 
-        if (fileOpenResponse.containsKey("size")) {
-            // Size is optional
-            mFileSize = fileOpenResponse.getLong("size");
-            Log.v(TAG, "Opened file " + mFileName + " of size " + mFileSize + " successfully");
-        } else {
-            Log.v(TAG, "Opened file " + mFileName + " successfully");
-        }
+        return skipped;
     }
 
-    private void sendFileRead(long size, long offset) throws IOException {
-        if (mBuffer != null && mBuffer.hasRemaining()) {
-            return;
-        }
-
-        if (mFileSize != -1) {
-            // Make sure we don't overrun the file
-            if (offset + size > mFileSize) {
-                size = mFileSize - offset;
-            }
-        }
-
-        HtspMessage fileReadRequest = new HtspMessage();
-
-        fileReadRequest.put("method", "fileRead");
-        fileReadRequest.put("id", mFileId);
-        fileReadRequest.put("size", size);
-        fileReadRequest.put("offset", offset);
+    @Override
+    public int available() throws IOException {
+        return mChannel.available();
+    }
 
-        if (HtspConstants.DEBUG)
-            Log.v(TAG, "Fetching " + size + " bytes of file at offset " + offset);
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
 
-        HtspMessage fileReadResponse;
+    /**
+     * Marks the current position. As reset() is a seek, readlimit is ignored and the mark never
+     * becomes invalid.
+     *
+     * @param readlimit Ignored
+     */
+    @Override
+    public synchronized void mark(int readlimit) {
         try {
-            fileReadResponse = mDispatcher.sendMessage(fileReadRequest, 5000);
-        } catch (HtspNotConnectedException e) {
-            throw new IOException("Failed to send fileRead request", e);
+            mMark = mChannel.position();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to mark position, stream is closed");
         }
+    }
 
-        if (fileReadResponse == null) {
-            throw new IOException("Failed to receive response to fileRead request");
-        } else if (fileReadResponse.containsKey("error")) {
-            String error = fileReadResponse.getString("error");
-            Log.e(TAG, "Received error when reading file: " + error);
-            throw new IOException(error);
+    @Override
+    public synchronized void reset() throws IOException {
+        if (mMark == -1) {
+            throw new IOException("Stream has not been marked");
         }
 
-        final byte[] data = fileReadResponse.getByteArray("data");
-
-        if (HtspConstants.DEBUG)
-            Log.v(TAG, "Fetched " + data.length + " bytes of file at offset " + offset);
-
-        mFilePosition += data.length;
-        mBuffer = ByteBuffer.wrap(data);
+        mChannel.position(mMark);
     }
 
-    private void sendFileClose() throws IOException {
-        Log.v(TAG, "Closing file " + mFileName);
-
-        HtspMessage fileCloseRequest = new HtspMessage();
-
-        fileCloseRequest.put("method", "fileClose");
-        fileCloseRequest.put("id", mFileId);
-
-        // We just go ahead and send the close without waiting for a response, if it fails, oh well.
-        try {
-            mDispatcher.sendMessage(fileCloseRequest);
-        } catch (HtspNotConnectedException e) {
-            throw new IOException("Failed to send fileClose request", e);
-        }
+    /**
+     * Closes this stream and releases any system resources associated
+     * with it. If the stream is already closed then invoking this
+     * method has no effect.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
     }
 }
@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fetches many small files, e.g. every channel icon, into a HtspFileCache at once.
+ *
+ * Up to a fixed number of files are in flight at a time, so their fileOpen, fileRead and fileClose
+ * requests are pipelined rather than each file waiting on the last. Files are delivered to the
+ * listener as they land, in no particular order.
+ *
+ * Requests go through the cache's Dispatcher, so any HtspRateLimiter on the connection still
+ * applies. Files turned away by a rate limiter with the REJECT policy are retried shortly after.
+ */
+public class HtspFilePrefetcher {
+    private static final String TAG = HtspFilePrefetcher.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 16;
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY = 250; // ms
+
+    /**
+     * A listener for the progress of a prefetch
+     */
+    public interface Listener {
+        /**
+         * Returns the Handler on which to execute the callback.
+         *
+         * @return Handler, or null.
+         */
+        Handler getHandler();
+
+        /**
+         * Called as each file is fetched, or found already cached
+         *
+         * @param path The file path
+         * @param data The file's contents, which must not be modified
+         */
+        void onFileFetched(@NonNull String path, @NonNull byte[] data);
+
+        /**
+         * Called for each file which couldn't be fetched
+         *
+         * @param path The file path
+         * @param exception The reason for the failure
+         */
+        void onFileFailed(@NonNull String path, @NonNull Exception exception);
+
+        /**
+         * Called once every file has been fetched or has failed, or the prefetch was cancelled
+         *
+         * @param fetched The number of files fetched
+         * @param failed The number of files which failed
+         */
+        void onPrefetchComplete(int fetched, int failed);
+    }
+
+    private final HtspFileCache mCache;
+    private final int mMaxConcurrency;
+
+    public HtspFilePrefetcher(@NonNull HtspFileCache cache) {
+        this(cache, DEFAULT_MAX_CONCURRENCY);
+    }
+
+    /**
+     * @param cache The cache to fetch files into
+     * @param maxConcurrency The most files to have in flight at a time
+     */
+    public HtspFilePrefetcher(@NonNull HtspFileCache cache, int maxConcurrency) {
+        mCache = cache;
+        mMaxConcurrency = Math.max(maxConcurrency, 1);
+    }
+
+    /**
+     * Starts fetching a list of files
+     *
+     * @param paths The file paths, e.g. imagecache/3909. Duplicates are only fetched once.
+     * @param listener The listener to deliver results to, or null
+     * @return The prefetch, which may be used to cancel it
+     */
+    public Prefetch prefetch(@NonNull List<String> paths, Listener listener) {
+        final Prefetch prefetch = new Prefetch(paths, listener);
+        prefetch.pump();
+        return prefetch;
+    }
+
+    /**
+     * A running prefetch
+     */
+    public class Prefetch {
+        private final Listener mListener;
+
+        private final Object mLock = new Object();
+        private final ArrayDeque<String> mQueue = new ArrayDeque<>();
+        private final Map<String, Integer> mAttempts = new HashMap<>();
+        private int mActive = 0;
+        private int mFetched = 0;
+        private int mFailed = 0;
+        private boolean mCancelled = false;
+        private boolean mCompleted = false;
+
+        // Guards against pump() recursing through files which complete immediately, e.g. those
+        // already cached
+        private boolean mPumping = false;
+        private boolean mPumpAgain = false;
+
+        Prefetch(List<String> paths, Listener listener) {
+            mListener = listener;
+
+            for (String path : paths) {
+                if (!mAttempts.containsKey(path)) {
+                    mAttempts.put(path, 0);
+                    mQueue.add(path);
+                }
+            }
+        }
+
+        /**
+         * @return The number of files not yet fetched or failed
+         */
+        public int getRemainingCount() {
+            synchronized (mLock) {
+                return mQueue.size() + mActive;
+            }
+        }
+
+        /**
+         * Stops starting new fetches. Those already in flight still land in the cache, but aren't
+         * reported to the listener.
+         */
+        public void cancel() {
+            synchronized (mLock) {
+                if (mCancelled) {
+                    return;
+                }
+                mCancelled = true;
+                mQueue.clear();
+            }
+
+            pump();
+        }
+
+        // Internal Methods
+        private void pump() {
+            synchronized (mLock) {
+                if (mPumping) {
+                    mPumpAgain = true;
+                    return;
+                }
+                mPumping = true;
+            }
+
+            while (true) {
+                final String path;
+
+                synchronized (mLock) {
+                    if (mCancelled || mActive >= mMaxConcurrency || mQueue.isEmpty()) {
+                        if (mPumpAgain) {
+                            mPumpAgain = false;
+                            continue;
+                        }
+
+                        mPumping = false;
+                        break;
+                    }
+
+                    path = mQueue.poll();
+                    mAttempts.put(path, mAttempts.get(path) + 1);
+                    mActive++;
+                }
+
+                if (HtspConstants.DEBUG)
+                    Log.v(TAG, "Prefetching " + path);
+
+                mCache.get(path).addListener(new HtspFuture.Listener<byte[]>() {
+                    @Override
+                    public Handler getHandler() {
+                        return null;
+                    }
+
+                    @Override
+                    public void onSuccess(byte[] result) {
+                        onFileDone(path, result, null);
+                    }
+
+                    @Override
+                    public void onFailure(@NonNull Exception exception) {
+                        onFileDone(path, null, exception);
+                    }
+                });
+            }
+
+            maybeComplete();
+        }
+
+        private void onFileDone(final String path, final byte[] data, final Exception exception) {
+            boolean retry = false;
+
+            synchronized (mLock) {
+                mActive--;
+
+                if (mCancelled) {
+                    // Fall through to pump(), to report completion once the last fetch lands
+                } else if (exception instanceof HtspRateLimitedException && mAttempts.get(path) < MAX_ATTEMPTS) {
+                    mActive++;
+                    retry = true;
+                } else if (exception == null) {
+                    mFetched++;
+                } else {
+                    mFailed++;
+                }
+            }
+
+            if (retry) {
+                if (HtspConstants.DEBUG)
+                    Log.v(TAG, "Rate limited, retrying " + path);
+
+                HtspTimerWheel.getDefault().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (mLock) {
+                            mActive--;
+                            if (!mCancelled) {
+                                mQueue.addFirst(path);
+                            }
+                        }
+                        pump();
+                    }
+                }, RETRY_DELAY);
+                return;
+            }
+
+            if (!mCancelled && mListener != null) {
+                notifyListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (exception == null) {
+                            mListener.onFileFetched(path, data);
+                        } else {
+                            Log.w(TAG, "Failed to prefetch " + path + ": " + exception);
+                            mListener.onFileFailed(path, exception);
+                        }
+                    }
+                });
+            }
+
+            pump();
+        }
+
+        private void maybeComplete() {
+            final int fetched;
+            final int failed;
+
+            synchronized (mLock) {
+                if (mCompleted || mActive > 0 || (!mCancelled && !mQueue.isEmpty())) {
+                    return;
+                }
+                mCompleted = true;
+                fetched = mFetched;
+                failed = mFailed;
+            }
+
+            Log.d(TAG, "Prefetch complete, " + fetched + " fetched, " + failed + " failed"
+                    + (mCancelled ? ", cancelled" : ""));
+
+            if (mListener != null) {
+                notifyListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onPrefetchComplete(fetched, failed);
+                    }
+                });
+            }
+        }
+
+        private void notifyListener(final Runnable callback) {
+            final Handler handler = mListener.getHandler();
+
+            final Runnable guarded = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        callback.run();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Unhandled exception in prefetch listener", e);
+                    }
+                }
+            };
+
+            if (handler == null) {
+                guarded.run();
+            } else {
+                handler.post(guarded);
+            }
+        }
+    }
+}
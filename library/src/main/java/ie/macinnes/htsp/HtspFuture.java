@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of an asynchronous HTSP operation, e.g. the response to a request.
+ *
+ * This fills the role CompletableFuture would, which isn't available until API 24. Listeners may
+ * be added at any time, and are called exactly once, either immediately (if the future is already
+ * complete) or upon completion.
+ *
+ * @param <T> The result type
+ */
+public class HtspFuture<T> implements Future<T> {
+    private static final String TAG = HtspFuture.class.getSimpleName();
+
+    /**
+     * A listener for the completion of a HtspFuture
+     *
+     * @param <T> The result type
+     */
+    public interface Listener<T> {
+        /**
+         * Returns the Handler on which to execute the callback.
+         *
+         * @return Handler, or null.
+         */
+        Handler getHandler();
+
+        /**
+         * Called when the future completes successfully
+         *
+         * @param result The result
+         */
+        void onSuccess(T result);
+
+        /**
+         * Called when the future fails, times out or is cancelled
+         *
+         * @param exception The reason for the failure
+         */
+        void onFailure(@NonNull Exception exception);
+    }
+
+    private final Object mLock = new Object();
+    private boolean mDone = false;
+    private T mResult;
+    private Exception mException;
+    private List<Listener<T>> mListeners;
+
+    public HtspFuture() {
+    }
+
+    /**
+     * Creates a future which has already succeeded
+     *
+     * @param result The result
+     * @param <T> The result type
+     * @return The completed future
+     */
+    public static <T> HtspFuture<T> completed(T result) {
+        HtspFuture<T> future = new HtspFuture<>();
+        future.complete(result);
+        return future;
+    }
+
+    /**
+     * Creates a future which has already failed
+     *
+     * @param exception The reason for the failure
+     * @param <T> The result type
+     * @return The failed future
+     */
+    public static <T> HtspFuture<T> failed(@NonNull Exception exception) {
+        HtspFuture<T> future = new HtspFuture<>();
+        future.fail(exception);
+        return future;
+    }
+
+    /**
+     * Completes the future successfully. Has no effect if the future is already complete.
+     *
+     * @param result The result
+     * @return true if this call completed the future, false otherwise
+     */
+    public boolean complete(T result) {
+        List<Listener<T>> listeners;
+
+        synchronized (mLock) {
+            if (mDone) {
+                return false;
+            }
+
+            mDone = true;
+            mResult = result;
+            listeners = mListeners;
+            mListeners = null;
+            mLock.notifyAll();
+        }
+
+        notifyListeners(listeners);
+        return true;
+    }
+
+    /**
+     * Fails the future. Has no effect if the future is already complete.
+     *
+     * @param exception The reason for the failure
+     * @return true if this call completed the future, false otherwise
+     */
+    public boolean fail(@NonNull Exception exception) {
+        List<Listener<T>> listeners;
+
+        synchronized (mLock) {
+            if (mDone) {
+                return false;
+            }
+
+            mDone = true;
+            mException = exception;
+            listeners = mListeners;
+            mListeners = null;
+            mLock.notifyAll();
+        }
+
+        notifyListeners(listeners);
+        return true;
+    }
+
+    /**
+     * Adds a listener to be called once the future completes. If it's already complete, the
+     * listener is called immediately.
+     *
+     * @param listener The listener to add
+     * @return This future
+     */
+    public HtspFuture<T> addListener(@NonNull Listener<T> listener) {
+        synchronized (mLock) {
+            if (!mDone) {
+                if (mListeners == null) {
+                    mListeners = new ArrayList<>(1);
+                }
+                mListeners.add(listener);
+                return this;
+            }
+        }
+
+        notifyListener(listener);
+        return this;
+    }
+
+    /**
+     * Waits for the result, in the same way as HtspMessage.Dispatcher.sendMessage(message, timeout)
+     * always has.
+     *
+     * @param timeout The maximum time to wait in milliseconds
+     * @return The result, or null if the future failed, didn't complete in time or the wait was
+     * interrupted
+     * @throws HtspRateLimitedException if the future failed because a rate limiter refused the
+     * request, as that's the caller's to back off from rather than a missing response
+     */
+    public T await(long timeout) throws HtspRateLimitedException {
+        try {
+            return get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof HtspRateLimitedException) {
+                throw (HtspRateLimitedException) e.getCause();
+            }
+            return null;
+        } catch (TimeoutException | CancellationException e) {
+            return null;
+        }
+    }
+
+    // Future Methods
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return fail(new CancellationException());
+    }
+
+    @Override
+    public boolean isCancelled() {
+        synchronized (mLock) {
+            return mException instanceof CancellationException;
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        synchronized (mLock) {
+            return mDone;
+        }
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        synchronized (mLock) {
+            while (!mDone) {
+                mLock.wait();
+            }
+            return getResult();
+        }
+    }
+
+    @Override
+    public T get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        synchronized (mLock) {
+            while (!mDone) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+            }
+            return getResult();
+        }
+    }
+
+    // Internal Methods
+    private T getResult() throws ExecutionException {
+        if (mException instanceof CancellationException) {
+            throw (CancellationException) mException;
+        } else if (mException != null) {
+            throw new ExecutionException(mException);
+        }
+        return mResult;
+    }
+
+    private void notifyListeners(List<Listener<T>> listeners) {
+        if (listeners == null) {
+            return;
+        }
+
+        for (Listener<T> listener : listeners) {
+            notifyListener(listener);
+        }
+    }
+
+    private void notifyListener(final Listener<T> listener) {
+        Handler handler = listener.getHandler();
+
+        if (handler == null) {
+            deliver(listener);
+        } else {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(listener);
+                }
+            });
+        }
+    }
+
+    private void deliver(Listener<T> listener) {
+        // Once done, these never change, so it's safe to read them without the lock
+        try {
+            if (mException == null) {
+                listener.onSuccess(mResult);
+            } else {
+                listener.onFailure(mException);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unhandled exception in HtspFuture listener", e);
+        }
+    }
+}
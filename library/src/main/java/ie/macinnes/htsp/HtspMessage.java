@@ -22,6 +22,7 @@ import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /*
@@ -78,7 +79,32 @@ public class HtspMessage extends HashMap<String, Object> {
         void addMessageListener(HtspMessage.Listener listener);
 
         /**
-         * Removes an existing Message Listener
+         * Register a new Message Listener, which will only receive messages with the given methods
+         *
+         * @param listener The Listener to add
+         * @param methods The methods the Listener is interested in
+         */
+        void addMessageListener(HtspMessage.Listener listener, String... methods);
+
+        /**
+         * Registers the Listener owning a subscription. Subscription scoped messages (muxpkt,
+         * queueStatus, subscriptionStart etc) for the subscription are delivered straight to it,
+         * and to no other Listener.
+         *
+         * @param subscriptionId The subscription ID
+         * @param listener The Listener owning the subscription
+         */
+        void registerSubscription(int subscriptionId, HtspMessage.Listener listener);
+
+        /**
+         * Unregisters the Listener owning a subscription
+         *
+         * @param subscriptionId The subscription ID
+         */
+        void unregisterSubscription(int subscriptionId);
+
+        /**
+         * Removes an existing Message Listener, however it was added
          *
          * @param listener The Listener to remove
          */
@@ -89,16 +115,40 @@ public class HtspMessage extends HashMap<String, Object> {
          *
          * @param message The message to send
          * @return The messages sequence number
+         * @throws HtspRateLimitedException if a rate limiter refused the message
          */
-        long sendMessage(@NonNull HtspMessage message) throws HtspNotConnectedException;
+        long sendMessage(@NonNull HtspMessage message) throws HtspNotConnectedException, HtspRateLimitedException;
 
         /**
          * Queues a message for sending, blocks for the response
          *
          * @param message The message to send
          * @return The response message
+         * @throws HtspRateLimitedException if a rate limiter refused the message
          */
-        HtspMessage sendMessage(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException;
+        HtspMessage sendMessage(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException, HtspRateLimitedException;
+
+        /**
+         * Queues a message for sending, without blocking for the response
+         *
+         * @param message The message to send
+         * @param timeout The time in milliseconds after which the future fails with a
+         *                TimeoutException
+         * @return A future for the response message
+         */
+        HtspFuture<HtspMessage> sendRequest(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException;
+
+        /**
+         * Queues a batch of messages for sending in one go, without blocking for the responses.
+         * Responses can be collected in order from the returned list, or as they arrive by adding
+         * a listener to each future.
+         *
+         * @param messages The messages to send
+         * @param timeout The time in milliseconds after which each future fails with a
+         *                TimeoutException
+         * @return A future for each response message, in the same order as the messages
+         */
+        List<HtspFuture<HtspMessage>> sendRequests(@NonNull List<HtspMessage> messages, int timeout) throws HtspNotConnectedException;
     }
 
     public interface DispatcherInternal extends Dispatcher {
@@ -109,6 +159,16 @@ public class HtspMessage extends HashMap<String, Object> {
          */
         void onMessage(@NonNull HtspMessage message);
 
+        /**
+         * Called for each new message before it's handed to onMessage, so that replies to pending
+         * requests can be completed without waiting behind other messages.
+         *
+         * @param message The message
+         * @return true if the message was a reply to a pending request, and has been handled,
+         * false if it should be passed to onMessage as usual
+         */
+        boolean onReply(@NonNull HtspMessage message);
+
         /**
          * Called to check if there are any pending messages to send
          *
@@ -124,6 +184,22 @@ public class HtspMessage extends HashMap<String, Object> {
          * @return The next message to send
          */
         @NonNull HtspMessage getMessage();
+
+        /**
+         * Called once a message fetched with getMessage has been serialized for sending
+         *
+         * @param message The message
+         * @param bytes The size of the serialized message
+         */
+        void onMessageWritten(@NonNull HtspMessage message, int bytes);
+
+        /**
+         * Called when a message fetched with getMessage couldn't be sent, e.g. as it's too large
+         *
+         * @param message The message
+         * @param exception The reason it couldn't be sent
+         */
+        void onMessageFailed(@NonNull HtspMessage message, @NonNull Exception exception);
     }
 
     /**
@@ -18,12 +18,21 @@ package ie.macinnes.htsp;
 import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.util.Log;
-import android.util.LongSparseArray;
-
-import java.util.Queue;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -31,26 +40,112 @@ import java.util.concurrent.atomic.AtomicInteger;
  * here we'll implement filtering of messages (e.g. Muxpkt's should only go to 1 place, the
  * subscriber of that particular subscription ID etc).
  *
+ * Subscription scoped messages, like muxpkt's, go only to the Listener registered as the owner of
+ * the subscription, found with a single SparseArray lookup.
+ *
+ * Other Listeners may either be added for every message, or for only those messages with particular
+ * methods. The latter are looked up by method, so listeners never see messages they'd only discard.
+ *
+ * Status messages posted to a Listener's Handler are coalesced, so a Listener that falls behind
+ * only gets the latest status rather than a backlog of stale ones.
+ *
  * Subinterfaces of HtspMessage.Listener will be used to provide for some of this more advanced
  * dispatching functionality later on, as it becomes required.
  */
 public class HtspMessageDispatcher implements HtspMessage.DispatcherInternal, HtspMessage.Listener, HtspConnection.Listener {
     private static final String TAG = HtspMessageDispatcher.class.getSimpleName();
-    private static final AtomicInteger sSequence = new AtomicInteger();
+
+    // How long we'll remember the method of a request sent without waiting for it's reply
+    private static final int REPLY_METHOD_EXPIRY = 60000;
+
+    private static final Set<String> SUBSCRIPTION_METHODS = new HashSet<>(Arrays.asList(new String[]{
+            "subscriptionStart", "subscriptionStatus", "subscriptionStop",
+            "subscriptionSkip", "subscriptionSpeed", "subscriptionGrace",
+            "queueStatus", "signalStatus", "timeshiftStatus", "muxpkt"
+    }));
+
+    // Status messages which only matter until the next one arrives
+    private static final Set<String> COALESCED_METHODS = new HashSet<>(Arrays.asList(new String[]{
+            "queueStatus", "signalStatus", "timeshiftStatus", "subscriptionStatus"
+    }));
 
     private final Set<HtspMessage.Listener> mListeners = new CopyOnWriteArraySet<>();
-    private final Queue<HtspMessage> mQueue = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<String, Set<HtspMessage.Listener>> mMethodListeners = new ConcurrentHashMap<>();
 
-    private static final LongSparseArray<String> sMessageResponseMethodsBySequence = new LongSparseArray<>();
+    // Copy on write, so the per-message lookup needs no lock
+    private final Object mSubscriptionsLock = new Object();
+    private volatile SparseArray<HtspMessage.Listener> mSubscriptions = new SparseArray<>();
+    private final HtspMessageQueue mQueue = new HtspMessageQueue();
 
     private HtspConnection mConnection;
+    private volatile EventLoopMonitor mEventLoopMonitor;
+
+    // The latest undelivered status message per (listener, method, subscriptionId)
+    private volatile boolean mCoalescingEnabled = true;
+    private final Map<CoalesceKey, HtspMessage> mCoalescedMessages = new ConcurrentHashMap<>();
 
-    private final LongSparseArray<Object> mSequenceLocks = new LongSparseArray<>();
-    private final LongSparseArray<HtspMessage> mSequenceResponses = new LongSparseArray<>();
+    // Every request which may still get a reply, so we can inject it's method into the reply,
+    // and complete it's future if it has one. Entries are removed on reply, expiry or close.
+    private final AtomicInteger mSequence = new AtomicInteger();
+    private final ConcurrentMap<Long, PendingRequest> mPendingRequests = new ConcurrentHashMap<>();
+    private final HtspTimerWheel mTimerWheel = HtspTimerWheel.getDefault();
+
+    // Outbound flow control, see HtspRateLimiter
+    private volatile HtspRateLimiter mRateLimiter;
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicBoolean mWakeScheduled = new AtomicBoolean();
 
     public HtspMessageDispatcher() {
     }
 
+    public EventLoopMonitor getEventLoopMonitor() {
+        return mEventLoopMonitor;
+    }
+
+    /**
+     * Sets the EventLoopMonitor used to time message listener callbacks.
+     *
+     * @param eventLoopMonitor The monitor, or null to disable timing
+     */
+    public void setEventLoopMonitor(EventLoopMonitor eventLoopMonitor) {
+        mEventLoopMonitor = eventLoopMonitor;
+    }
+
+    public boolean isCoalescingEnabled() {
+        return mCoalescingEnabled;
+    }
+
+    /**
+     * Enables or disables latest-value-wins delivery of status messages (queueStatus,
+     * signalStatus, timeshiftStatus and subscriptionStatus) to listeners with a Handler.
+     *
+     * When enabled, a status message arriving while an older one for the same listener, method
+     * and subscription is still waiting on the Handler replaces it, rather than being posted too.
+     * Listeners with a null Handler always get every message. Enabled by default.
+     *
+     * @param coalescingEnabled true to coalesce status messages, false to deliver every one
+     */
+    public void setCoalescingEnabled(boolean coalescingEnabled) {
+        mCoalescingEnabled = coalescingEnabled;
+    }
+
+    public HtspRateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    /**
+     * Sets the HtspRateLimiter used to limit outbound traffic
+     *
+     * @param rateLimiter The limiter, or null for no limits
+     */
+    public void setRateLimiter(HtspRateLimiter rateLimiter) {
+        mRateLimiter = rateLimiter;
+
+        if (mConnection != null && mConnection.isConnected() && !mQueue.isEmpty()) {
+            mConnection.setWritePending();
+        }
+    }
+
     // HtspMessage.DispatcherInternal Methods
     @Override
     public void addMessageListener(HtspMessage.Listener listener) {
@@ -61,139 +156,297 @@ public class HtspMessageDispatcher implements HtspMessage.DispatcherInternal, Ht
         mListeners.add(listener);
     }
 
+    @Override
+    public void addMessageListener(HtspMessage.Listener listener, String... methods) {
+        for (String method : methods) {
+            Set<HtspMessage.Listener> listeners = mMethodListeners.get(method);
+
+            if (listeners == null) {
+                listeners = new CopyOnWriteArraySet<>();
+                Set<HtspMessage.Listener> existing = mMethodListeners.putIfAbsent(method, listeners);
+                if (existing != null) {
+                    listeners = existing;
+                }
+            }
+
+            if (!listeners.add(listener)) {
+                Log.w(TAG, "Attempted to add duplicate message listener for method " + method);
+            }
+        }
+    }
+
+    @Override
+    public void registerSubscription(int subscriptionId, HtspMessage.Listener listener) {
+        synchronized (mSubscriptionsLock) {
+            SparseArray<HtspMessage.Listener> subscriptions = mSubscriptions.clone();
+            subscriptions.put(subscriptionId, listener);
+            mSubscriptions = subscriptions;
+        }
+    }
+
+    @Override
+    public void unregisterSubscription(int subscriptionId) {
+        synchronized (mSubscriptionsLock) {
+            SparseArray<HtspMessage.Listener> subscriptions = mSubscriptions.clone();
+            subscriptions.remove(subscriptionId);
+            // Compact the array now, so readers never trigger it's internal garbage collection
+            subscriptions.size();
+            mSubscriptions = subscriptions;
+        }
+    }
+
     @Override
     public void removeMessageListener(HtspMessage.Listener listener) {
-        if (!mListeners.contains(listener)) {
+        boolean removed = mListeners.remove(listener);
+
+        for (Set<HtspMessage.Listener> listeners : mMethodListeners.values()) {
+            removed |= listeners.remove(listener);
+        }
+
+        if (!removed) {
             Log.w(TAG, "Attempted to remove non existing message listener");
-            return;
         }
-        mListeners.remove(listener);
     }
 
     @Override
-    public long sendMessage(@NonNull HtspMessage message) throws HtspNotConnectedException {
+    public long sendMessage(@NonNull HtspMessage message) throws HtspNotConnectedException, HtspRateLimitedException {
         if (!mConnection.isConnected()) {
             throw new HtspNotConnectedException("Failed to send message, HTSP Connection not connected");
         }
 
         Log.v(TAG, "Queueing message for sending");
 
-        // If necessary, inject a sequence number
-        if (!message.containsKey("seq")) {
-            message.put("seq", (long) sSequence.getAndIncrement());
+        if (isRejected(message)) {
+            throw new HtspRateLimitedException("Failed to send message, rate limit exceeded");
         }
 
-        // Record the Sequence Number and Method
-        if (message.containsKey("method")) {
-            sMessageResponseMethodsBySequence.append(message.getLong("seq"), message.getString("method"));
-        }
-
-        mQueue.add(message);
+        long seq = enqueue(message);
 
         if (mConnection != null) {
             mConnection.setWritePending();
         }
 
-        return message.getLong("seq");
+        return seq;
+    }
+
+    @Override
+    public HtspMessage sendMessage(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException, HtspRateLimitedException {
+        Log.v(TAG, "Queueing synchronous message for sending");
+
+        return sendRequest(message, timeout).await(timeout);
     }
 
     @Override
-    public HtspMessage sendMessage(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException {
+    public HtspFuture<HtspMessage> sendRequest(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException {
         if (!mConnection.isConnected()) {
             throw new HtspNotConnectedException("Failed to send message, HTSP Connection not connected");
         }
 
-        Log.v(TAG, "Queueing synchronous message for sending");
-        long seq;
-
-        // If necessary, inject a sequence number
-        if (!message.containsKey("seq")) {
-            seq = (long) sSequence.getAndIncrement();
-            message.put("seq", seq);
-        } else {
-            seq = message.getLong("seq");
+        if (isRejected(message)) {
+            return HtspFuture.failed(new HtspRateLimitedException("Failed to send message, rate limit exceeded"));
         }
 
-        Object lock = new Object();
-        try {
-            Log.v(TAG, "Putting " + seq + " into mSequenceLocks");
-            mSequenceLocks.put(seq, lock);
+        final PendingRequest request = addPendingRequest(message, timeout);
 
+        try {
             sendMessage(message);
+        } catch (HtspRateLimitedException e) {
+            removePendingRequest(request);
+            return HtspFuture.failed(e);
+        } catch (HtspNotConnectedException e) {
+            removePendingRequest(request);
+            throw e;
+        }
 
-            synchronized (lock) {
-                try {
-                    lock.wait(timeout);
-                } catch (InterruptedException e) {
-                    return null;
-                }
+        return request.mFuture;
+    }
+
+    @Override
+    public List<HtspFuture<HtspMessage>> sendRequests(@NonNull List<HtspMessage> messages, int timeout) throws HtspNotConnectedException {
+        if (!mConnection.isConnected()) {
+            throw new HtspNotConnectedException("Failed to send messages, HTSP Connection not connected");
+        }
+
+        Log.v(TAG, "Queueing batch of " + messages.size() + " messages for sending");
+
+        List<HtspFuture<HtspMessage>> futures = new ArrayList<>(messages.size());
+
+        // Queue everything up, and only then wake the writer, so the whole batch goes out in as
+        // few writes as possible rather than one round trip each.
+        for (HtspMessage message : messages) {
+            if (isRejected(message)) {
+                futures.add(HtspFuture.<HtspMessage>failed(
+                        new HtspRateLimitedException("Failed to send message, rate limit exceeded")));
+                continue;
             }
 
-            return mSequenceResponses.get(seq);
-        } finally {
-            mSequenceLocks.remove(seq);
-            mSequenceResponses.remove(seq);
+            PendingRequest request = addPendingRequest(message, timeout);
+            enqueue(message);
+            futures.add(request.mFuture);
+        }
+
+        if (mConnection != null) {
+            mConnection.setWritePending();
         }
+
+        return futures;
+    }
+
+    @Override
+    public boolean onReply(@NonNull HtspMessage message) {
+        if (!message.containsKey("seq")) {
+            return false;
+        }
+
+        final long seq = message.getLong("seq");
+
+        // If we have a PendingRequest for this seq, the message is the reply to a request made
+        // with sendRequest, so complete it's future and don't pass the message onto the other
+        // listeners.
+        PendingRequest request = mPendingRequests.get(seq);
+        if (request == null || request.mFuture == null) {
+            return false;
+        }
+
+        if (mPendingRequests.remove(seq) == null) {
+            // Lost a race with it's timeout
+            return false;
+        }
+
+        injectMethod(request, message);
+
+        if (HtspConstants.DEBUG)
+            Log.v(TAG, "Found " + seq + " in mPendingRequests, completing request");
+        request.complete(message);
+
+        return true;
     }
 
     @Override
     public void onMessage(@NonNull final HtspMessage message) {
-        if (message.containsKey("seq")) {
-            long seq = message.getLong("seq");
-
-            // Reply messages don't include a method, only the sequence supplied in the request, so
-            // if we have this sequence in our lookup table, go ahead and add the method into the
-            // message.
-            if (sMessageResponseMethodsBySequence.indexOfKey(seq) >= 0) {
-                if (!message.containsKey("method")) {
-                    message.put("method", sMessageResponseMethodsBySequence.get(seq));
-                }
+        if (onReply(message)) {
+            return;
+        }
 
-                // Clear the sequence from our lookup table, it's no longer needed.
-                sMessageResponseMethodsBySequence.remove(seq);
+        if (message.containsKey("seq")) {
+            PendingRequest request = mPendingRequests.remove(message.getLong("seq"));
+            if (request != null) {
+                request.done();
+                injectMethod(request, message);
             }
+        }
 
-            // If we have a SequenceLock for this seq, the message is part of a blocking request/
-            // reply, so stash it in place of lock, notify the lock and don't pass the message onto
-            // the other listeners.
-            if (mSequenceLocks.indexOfKey(seq) >= 0) {
-                Log.v(TAG, "Found " + seq + " in mSequenceLocks, synchronous response");
-                Object lock = mSequenceLocks.get(seq);
-                mSequenceResponses.put(seq, message);
-                synchronized (lock) {
-                    lock.notify();
-                }
-                mSequenceLocks.remove(seq);
+        final String method = message.getString("method", null);
+
+        // Subscription scoped messages go straight to the subscription's owner, if it has one
+        if (SUBSCRIPTION_METHODS.contains(method) && message.containsKey("subscriptionId")) {
+            HtspMessage.Listener owner = mSubscriptions.get(message.getInteger("subscriptionId"));
+
+            if (owner != null) {
+                deliver(owner, message);
                 return;
             }
         }
 
-        for (final HtspMessage.Listener listener : mListeners) {
-            Handler handler = listener.getHandler();
+        if (method != null) {
+            Set<HtspMessage.Listener> listeners = mMethodListeners.get(method);
 
-            if (handler == null) {
-                listener.onMessage(message);
-            } else {
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.onMessage(message);
-                    }
-                });
+            if (listeners != null) {
+                for (HtspMessage.Listener listener : listeners) {
+                    deliver(listener, message);
+                }
             }
         }
+
+        for (HtspMessage.Listener listener : mListeners) {
+            deliver(listener, message);
+        }
     }
 
     @Override
     public boolean hasPendingMessages() {
-        return mQueue.size() > 0;
+        if (mQueue.isEmpty()) {
+            return false;
+        }
+
+        final HtspRateLimiter limiter = mRateLimiter;
+        if (limiter != null && isThrottled(limiter)) {
+            return mQueue.hasControl();
+        }
+
+        return true;
     }
 
     @NonNull
     @Override
     public HtspMessage getMessage() {
         Log.v(TAG, "Dequeueing message for sending");
-        return mQueue.remove();
+
+        final HtspRateLimiter limiter = mRateLimiter;
+        HtspMessage message;
+
+        if (limiter == null) {
+            message = mQueue.poll();
+        } else if (isThrottled(limiter)) {
+            message = mQueue.pollControl();
+        } else {
+            message = mQueue.poll();
+
+            if (message != null && !isExempt(message)) {
+                limiter.onRequestSent();
+                markInFlight(message);
+            }
+        }
+
+        if (message == null) {
+            throw new NoSuchElementException("No messages pending");
+        }
+        return message;
+    }
+
+    @Override
+    public void onMessageWritten(@NonNull HtspMessage message, int bytes) {
+        final HtspRateLimiter limiter = mRateLimiter;
+
+        if (limiter != null && !isExempt(message)) {
+            limiter.onBytesSent(bytes);
+        }
+    }
+
+    @Override
+    public void onMessageFailed(@NonNull HtspMessage message, @NonNull Exception exception) {
+        if (!message.containsKey("seq")) {
+            return;
+        }
+
+        PendingRequest request = mPendingRequests.remove(message.getLong("seq"));
+        if (request != null) {
+            request.done();
+            if (request.mFuture != null) {
+                request.mFuture.fail(exception);
+            }
+        }
+    }
+
+    /**
+     * @return The number of messages waiting to be sent
+     */
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return The number of requests sent which are still waiting for a reply
+     */
+    public int getPendingRequestCount() {
+        return mPendingRequests.size();
+    }
+
+    /**
+     * @return The number of requests counted against the HtspRateLimiter's in flight limit
+     */
+    public int getInFlightCount() {
+        return mInFlight.get();
     }
 
     // HtspConnection.Listener Methods
@@ -209,10 +462,294 @@ public class HtspMessageDispatcher implements HtspMessage.DispatcherInternal, Ht
 
     @Override
     public void onConnectionStateChange(@NonNull HtspConnection.State state) {
-        // Clear queued messages etc out as we close the connection
-        if (state == HtspConnection.State.CLOSED) {
+        if (state == HtspConnection.State.CLOSED || state == HtspConnection.State.FAILED) {
+            // Clear queued messages etc out as we close the connection, a reconnect shouldn't
+            // send what was queued for this one
             Log.d(TAG, "Clearing out message queue as HTSP connection is closing");
             mQueue.clear();
+
+            // No replies will arrive for anything sent on this connection
+            failPendingRequests();
+        }
+    }
+
+    // Internal Methods
+    private void deliver(final HtspMessage.Listener listener, final HtspMessage message) {
+        Handler handler = listener.getHandler();
+
+        if (handler == null) {
+            final EventLoopMonitor monitor = mEventLoopMonitor;
+            final long startTime = System.nanoTime();
+
+            listener.onMessage(message);
+
+            if (monitor != null) {
+                monitor.recordListener(listener, startTime);
+            }
+        } else if (mCoalescingEnabled && COALESCED_METHODS.contains(message.getString("method", null))) {
+            deliverCoalesced(handler, listener, message);
+        } else {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onMessage(message);
+                }
+            });
+        }
+    }
+
+    private void deliverCoalesced(Handler handler, final HtspMessage.Listener listener, HtspMessage message) {
+        final CoalesceKey key = new CoalesceKey(listener, message);
+
+        // If there was already a message waiting, it's callback is still pending and will pick
+        // up this one instead.
+        if (mCoalescedMessages.put(key, message) != null) {
+            return;
+        }
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                HtspMessage latest = mCoalescedMessages.remove(key);
+                if (latest != null) {
+                    listener.onMessage(latest);
+                }
+            }
+        });
+    }
+
+    private long enqueue(HtspMessage message) {
+        // If necessary, inject a sequence number
+        if (!message.containsKey("seq")) {
+            message.put("seq", (long) mSequence.getAndIncrement());
+        }
+
+        final long seq = message.getLong("seq");
+
+        // Record the Sequence Number and Method, unless sendRequest already has
+        if (message.containsKey("method") && !mPendingRequests.containsKey(seq)) {
+            PendingRequest request = new PendingRequest(seq, message.getString("method"), null);
+            mPendingRequests.put(seq, request);
+            request.scheduleTimeout(REPLY_METHOD_EXPIRY);
+        }
+
+        mQueue.add(message);
+
+        return seq;
+    }
+
+    private void injectMethod(PendingRequest request, HtspMessage message) {
+        // Reply messages don't include a method, only the sequence supplied in the request, so
+        // add the method from the request into the message.
+        if (request.mMethod != null && !message.containsKey("method")) {
+            message.put("method", request.mMethod);
+        }
+    }
+
+    private PendingRequest addPendingRequest(HtspMessage message, int timeout) {
+        final long seq;
+
+        // If necessary, inject a sequence number
+        if (!message.containsKey("seq")) {
+            seq = (long) mSequence.getAndIncrement();
+            message.put("seq", seq);
+        } else {
+            seq = message.getLong("seq");
+        }
+
+        final PendingRequest request = new PendingRequest(
+                seq, message.getString("method", null), new HtspFuture<HtspMessage>());
+
+        if (HtspConstants.DEBUG)
+            Log.v(TAG, "Putting " + seq + " into mPendingRequests");
+        mPendingRequests.put(seq, request);
+        request.scheduleTimeout(timeout);
+
+        return request;
+    }
+
+    private void removePendingRequest(PendingRequest request) {
+        mPendingRequests.remove(request.mSeq);
+        request.done();
+    }
+
+    private boolean isExempt(HtspMessage message) {
+        return HtspMessageQueue.getLane(message) == HtspMessageQueue.Lane.CONTROL
+                || "fileClose".equals(message.getString("method", null));
+    }
+
+    private boolean isRejected(HtspMessage message) {
+        final HtspRateLimiter limiter = mRateLimiter;
+
+        if (limiter == null || limiter.getPolicy() != HtspRateLimiter.Policy.REJECT || isExempt(message)) {
+            return false;
+        }
+
+        // Anything already queued will be in flight before this message is
+        return limiter.getDelay(mInFlight.get(), mQueue.size()) != 0;
+    }
+
+    private boolean isThrottled(HtspRateLimiter limiter) {
+        final long delay = limiter.getDelay(mInFlight.get(), 0);
+
+        if (delay > 0 && mWakeScheduled.compareAndSet(false, true)) {
+            // Nothing else will wake the writer once the buckets refill
+            mTimerWheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mWakeScheduled.set(false);
+                    wakeWriter();
+                }
+            }, delay);
+        }
+
+        return delay != 0;
+    }
+
+    private void markInFlight(HtspMessage message) {
+        if (!message.containsKey("seq")) {
+            return;
+        }
+
+        final long seq = message.getLong("seq");
+        final PendingRequest request = mPendingRequests.get(seq);
+
+        if (request != null && request.mSent.compareAndSet(false, true)) {
+            mInFlight.incrementAndGet();
+
+            // If it was removed meanwhile, done() may have missed our increment
+            if (mPendingRequests.get(seq) != request) {
+                request.done();
+            }
+        }
+    }
+
+    private void wakeWriter() {
+        final HtspConnection connection = mConnection;
+
+        if (connection != null && connection.isConnected() && !mQueue.isEmpty()) {
+            connection.setWritePending();
+        }
+    }
+
+    private void failPendingRequests() {
+        final HtspNotConnectedException exception = new HtspNotConnectedException(
+                "HTSP connection closed while waiting for a reply");
+
+        int failed = 0;
+
+        Iterator<PendingRequest> iterator = mPendingRequests.values().iterator();
+        while (iterator.hasNext()) {
+            PendingRequest request = iterator.next();
+            iterator.remove();
+
+            request.done();
+            if (request.mFuture != null && request.mFuture.fail(exception)) {
+                failed++;
+            }
+        }
+
+        if (failed > 0) {
+            Log.d(TAG, "Failed " + failed + " requests as the HTSP connection closed");
+        }
+    }
+
+    private static class CoalesceKey {
+        final HtspMessage.Listener mListener;
+        final String mMethod;
+        final int mSubscriptionId;
+
+        CoalesceKey(HtspMessage.Listener listener, HtspMessage message) {
+            mListener = listener;
+            mMethod = message.getString("method");
+            mSubscriptionId = message.getInteger("subscriptionId", -1);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CoalesceKey)) {
+                return false;
+            }
+
+            CoalesceKey other = (CoalesceKey) o;
+            return mListener == other.mListener
+                    && mSubscriptionId == other.mSubscriptionId
+                    && mMethod.equals(other.mMethod);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(mListener);
+            result = 31 * result + mMethod.hashCode();
+            result = 31 * result + mSubscriptionId;
+            return result;
+        }
+    }
+
+    /**
+     * A request awaiting it's reply. Requests sent with sendMessage have no future, and are only
+     * tracked so their method can be injected into the reply.
+     */
+    private class PendingRequest implements Runnable {
+        final long mSeq;
+        final String mMethod;
+        final HtspFuture<HtspMessage> mFuture;
+        private volatile HtspTimerWheel.Timeout mTimeout;
+        // Whether we're counted in mInFlight
+        final AtomicBoolean mSent = new AtomicBoolean();
+
+        PendingRequest(long seq, String method, HtspFuture<HtspMessage> future) {
+            mSeq = seq;
+            mMethod = method;
+            mFuture = future;
+        }
+
+        void scheduleTimeout(int timeout) {
+            mTimeout = mTimerWheel.schedule(this, timeout);
+        }
+
+        /**
+         * Called once the request is removed from mPendingRequests, however that happened
+         */
+        void done() {
+            if (mTimeout != null) {
+                mTimeout.cancel();
+            }
+
+            if (mSent.compareAndSet(true, false)) {
+                mInFlight.decrementAndGet();
+            }
+        }
+
+        void complete(HtspMessage message) {
+            done();
+            mFuture.complete(message);
+        }
+
+        // Runnable Methods
+        @Override
+        public void run() {
+            if (!mPendingRequests.remove(mSeq, this)) {
+                return;
+            }
+
+            if (mSent.get()) {
+                done();
+                // We may have been holding the writer back
+                wakeWriter();
+            }
+
+            if (mFuture == null) {
+                if (HtspConstants.DEBUG)
+                    Log.v(TAG, "Forgetting method of request " + mSeq + ", no reply arrived");
+                return;
+            }
+
+            Log.w(TAG, "Request " + mSeq + " timed out waiting for a reply");
+            mFuture.fail(new TimeoutException("Timed out waiting for a reply to request " + mSeq));
         }
     }
 }
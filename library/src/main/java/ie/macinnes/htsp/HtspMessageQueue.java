@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The outbound message queue, split into priority lanes so that e.g. a channel change doesn't
+ * wait behind a burst of fileRead requests.
+ *
+ * Lanes are drained in strict priority order, except that once a waiting lane has been passed
+ * over STARVATION_LIMIT times, it's next message goes first. Messages within a lane stay FIFO.
+ *
+ * Any number of threads may add messages, but only one may poll (the connection's writer).
+ */
+class HtspMessageQueue {
+    private static final int STARVATION_LIMIT = 16;
+
+    enum Lane {
+        // Subscription control and authentication, which a user is likely waiting on, and
+        // getSysTime, which is used to probe the connection
+        CONTROL,
+        // Everything not otherwise classified
+        INTERACTIVE,
+        // Large or numerous requests, e.g. file transfers and EPG fetches
+        BULK
+    }
+
+    private static final Set<String> CONTROL_METHODS = new HashSet<>(Arrays.asList(new String[]{
+            "hello", "authenticate", "getSysTime",
+            "subscribe", "unsubscribe", "subscriptionChangeWeight", "subscriptionSpeed",
+            "subscriptionSkip", "subscriptionLive", "subscriptionFilterStream"
+    }));
+
+    private static final Set<String> BULK_METHODS = new HashSet<>(Arrays.asList(new String[]{
+            "fileRead", "fileSeek", "fileStat", "fileClose",
+            "getEvents", "epgQuery"
+    }));
+
+    private static final Lane[] LANES = Lane.values();
+
+    private final Queue<HtspMessage>[] mLanes;
+    private final int[] mPassedOver = new int[LANES.length];
+    private final AtomicInteger mSize = new AtomicInteger();
+
+    // Generic arrays can't be created directly
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    HtspMessageQueue() {
+        mLanes = new Queue[LANES.length];
+        for (int i = 0; i < LANES.length; i++) {
+            mLanes[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    static Lane getLane(@NonNull HtspMessage message) {
+        final String method = message.getString("method", null);
+
+        if (CONTROL_METHODS.contains(method)) {
+            return Lane.CONTROL;
+        } else if (BULK_METHODS.contains(method)) {
+            return Lane.BULK;
+        }
+
+        return Lane.INTERACTIVE;
+    }
+
+    void add(@NonNull HtspMessage message) {
+        mLanes[getLane(message).ordinal()].add(message);
+        mSize.incrementAndGet();
+    }
+
+    /**
+     * @return The next message to send, or null if there are none
+     */
+    HtspMessage poll() {
+        if (mSize.get() == 0) {
+            return null;
+        }
+
+        // Anything starved gets to go first, lowest priority first as it's the most likely
+        for (int i = LANES.length - 1; i > 0; i--) {
+            if (mPassedOver[i] >= STARVATION_LIMIT) {
+                mPassedOver[i] = 0;
+
+                HtspMessage message = mLanes[i].poll();
+                if (message != null) {
+                    mSize.decrementAndGet();
+                    return message;
+                }
+            }
+        }
+
+        for (int i = 0; i < LANES.length; i++) {
+            HtspMessage message = mLanes[i].poll();
+
+            if (message != null) {
+                mSize.decrementAndGet();
+
+                for (int j = i + 1; j < LANES.length; j++) {
+                    if (!mLanes[j].isEmpty()) {
+                        mPassedOver[j]++;
+                    }
+                }
+
+                return message;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The next message from the CONTROL lane, or null if there are none
+     */
+    HtspMessage pollControl() {
+        HtspMessage message = mLanes[Lane.CONTROL.ordinal()].poll();
+        if (message != null) {
+            mSize.decrementAndGet();
+        }
+        return message;
+    }
+
+    boolean hasControl() {
+        return !mLanes[Lane.CONTROL.ordinal()].isEmpty();
+    }
+
+    boolean isEmpty() {
+        return mSize.get() == 0;
+    }
+
+    int size() {
+        return mSize.get();
+    }
+
+    void clear() {
+        for (int i = 0; i < LANES.length; i++) {
+            while (mLanes[i].poll() != null) {
+                mSize.decrementAndGet();
+            }
+            mPassedOver[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes outgoing messages across several Dispatchers (e.g. one per backend, or one per pooled
+ * connection), keeping any server side state pinned to the Dispatcher that owns it.
+ *
+ * * subscribe requests are routed freshly, and pin their subscriptionId to the chosen Dispatcher
+ *   once they've been sent. A subscribe which fails to send, or is rejected, pins nothing.
+ *   Repeated subscribe requests for the same subscriptionId follow the pin, as a second
+ *   subscription on another Dispatcher would duplicate the first
+ * * Anything else carrying a subscriptionId follows the pin, unsubscribe releases it
+ * * fileOpen responses have their file id swapped for a router wide virtual id, as the ids handed
+ *   out by different servers/connections overlap. fileRead/fileSeek/fileStat/fileClose have the
+ *   virtual id swapped back, and are sent to the Dispatcher that opened the file
+ * * Everything else is routed freshly
+ */
+class HtspMessageRouter {
+    private static final String TAG = HtspMessageRouter.class.getSimpleName();
+
+    // How long to wait for the reply to a fileOpen sent with sendMessage(message)
+    private static final int ASYNC_REPLY_TIMEOUT = 60000;
+
+    private static final Set<String> FILE_METHODS = new HashSet<>(Arrays.asList(new String[]{
+            "fileRead", "fileSeek", "fileStat", "fileClose"
+    }));
+
+    /**
+     * Chooses the Dispatcher a message with no existing pin should be sent to
+     */
+    interface Selector {
+        /**
+         * @param message The message about to be sent
+         * @return The Dispatcher to send the message to, or null if there is none available
+         */
+        HtspMessage.Dispatcher select(@NonNull HtspMessage message);
+
+        /**
+         * Delivers a reply to the message listeners, as the Dispatcher it arrived on would have.
+         * Used for the replies to fileOpen requests sent with sendMessage(message), once their file
+         * id has been remapped.
+         *
+         * @param dispatcher The Dispatcher the reply arrived on
+         * @param reply The reply
+         */
+        void deliverReply(@NonNull HtspMessage.Dispatcher dispatcher, @NonNull HtspMessage reply);
+    }
+
+    private static class Subscription {
+        final HtspMessage.Dispatcher mDispatcher;
+        final HtspMessage mSubscribeRequest;
+
+        Subscription(HtspMessage.Dispatcher dispatcher, HtspMessage subscribeRequest) {
+            mDispatcher = dispatcher;
+            mSubscribeRequest = subscribeRequest;
+        }
+    }
+
+    private static class FileHandle {
+        final HtspMessage.Dispatcher mDispatcher;
+        final int mFileId;
+
+        FileHandle(HtspMessage.Dispatcher dispatcher, int fileId) {
+            mDispatcher = dispatcher;
+            mFileId = fileId;
+        }
+    }
+
+    private final Selector mSelector;
+
+    private final AtomicInteger mFileId = new AtomicInteger();
+    private final ConcurrentMap<Integer, Subscription> mSubscriptions = new ConcurrentHashMap<>();
+    private final Map<Integer, FileHandle> mFileHandles = new ConcurrentHashMap<>();
+
+    HtspMessageRouter(@NonNull Selector selector) {
+        mSelector = selector;
+    }
+
+    long sendMessage(@NonNull HtspMessage message) throws HtspNotConnectedException, HtspRateLimitedException {
+        final Route route = route(message);
+
+        if ("fileOpen".equals(message.getString("method", null))) {
+            return sendFileOpen(route);
+        }
+
+        final long seq = route.mDispatcher.sendMessage(route.mMessage);
+        pin(route);
+
+        return seq;
+    }
+
+    HtspMessage sendMessage(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException, HtspRateLimitedException {
+        return sendRequest(message, timeout).await(timeout);
+    }
+
+    HtspFuture<HtspMessage> sendRequest(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException {
+        final Route route = route(message);
+        final HtspFuture<HtspMessage> future = route.mDispatcher.sendRequest(route.mMessage, timeout);
+        pin(route, future);
+
+        return remapFileOpen(route, future);
+    }
+
+    List<HtspFuture<HtspMessage>> sendRequests(@NonNull List<HtspMessage> messages, int timeout) throws HtspNotConnectedException {
+        // Group the batch by Dispatcher, so each Dispatcher still gets to send it's share in one go
+        final List<Route> routes = new ArrayList<>(messages.size());
+        final Map<HtspMessage.Dispatcher, List<HtspMessage>> batches = new LinkedHashMap<>();
+
+        for (HtspMessage message : messages) {
+            Route route = route(message);
+            routes.add(route);
+
+            List<HtspMessage> batch = batches.get(route.mDispatcher);
+            if (batch == null) {
+                batch = new ArrayList<>();
+                batches.put(route.mDispatcher, batch);
+            }
+            batch.add(route.mMessage);
+        }
+
+        final Map<HtspMessage.Dispatcher, Iterator<HtspFuture<HtspMessage>>> results = new HashMap<>();
+        for (Map.Entry<HtspMessage.Dispatcher, List<HtspMessage>> entry : batches.entrySet()) {
+            results.put(entry.getKey(), entry.getKey().sendRequests(entry.getValue(), timeout).iterator());
+        }
+
+        // Put the futures back into the order the messages were given in
+        final List<HtspFuture<HtspMessage>> futures = new ArrayList<>(messages.size());
+        for (Route route : routes) {
+            HtspFuture<HtspMessage> future = results.get(route.mDispatcher).next();
+            pin(route, future);
+            futures.add(remapFileOpen(route, future));
+        }
+
+        return futures;
+    }
+
+    /**
+     * Releases everything pinned to a Dispatcher, e.g. because it's connection has failed.
+     * Open files are lost, as their ids mean nothing to any other Dispatcher.
+     *
+     * @param dispatcher The Dispatcher to release
+     * @return The subscribe requests of subscriptions which were pinned to the Dispatcher, which
+     * can be resent to move the subscriptions elsewhere
+     */
+    List<HtspMessage> release(@NonNull HtspMessage.Dispatcher dispatcher) {
+        List<HtspMessage> subscribeRequests = new ArrayList<>();
+
+        Iterator<Subscription> subscriptions = mSubscriptions.values().iterator();
+        while (subscriptions.hasNext()) {
+            Subscription subscription = subscriptions.next();
+            if (subscription.mDispatcher == dispatcher) {
+                subscriptions.remove();
+                subscribeRequests.add(new HtspMessage(subscription.mSubscribeRequest));
+            }
+        }
+
+        Iterator<FileHandle> fileHandles = mFileHandles.values().iterator();
+        while (fileHandles.hasNext()) {
+            if (fileHandles.next().mDispatcher == dispatcher) {
+                fileHandles.remove();
+            }
+        }
+
+        return subscribeRequests;
+    }
+
+    /**
+     * @param dispatcher A Dispatcher
+     * @return The number of subscriptions currently pinned to the Dispatcher
+     */
+    int getSubscriptionCount(@NonNull HtspMessage.Dispatcher dispatcher) {
+        int count = 0;
+        for (Subscription subscription : mSubscriptions.values()) {
+            if (subscription.mDispatcher == dispatcher) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Internal Methods
+    private Route route(HtspMessage message) throws HtspNotConnectedException {
+        final String method = message.getString("method", null);
+        HtspMessage.Dispatcher dispatcher = null;
+        HtspMessage routedMessage = message;
+
+        if (message.containsKey("subscriptionId")) {
+            final int subscriptionId = message.getInteger("subscriptionId");
+            final Subscription subscription;
+
+            if ("unsubscribe".equals(method)) {
+                subscription = mSubscriptions.remove(subscriptionId);
+            } else {
+                subscription = mSubscriptions.get(subscriptionId);
+            }
+
+            if (subscription != null) {
+                dispatcher = subscription.mDispatcher;
+            }
+        } else if (FILE_METHODS.contains(method) && message.containsKey("id")) {
+            final int fileId = message.getInteger("id");
+            final FileHandle fileHandle;
+
+            if ("fileClose".equals(method)) {
+                fileHandle = mFileHandles.remove(fileId);
+            } else {
+                fileHandle = mFileHandles.get(fileId);
+            }
+
+            if (fileHandle == null) {
+                throw new HtspNotConnectedException("File " + fileId + " is not open on any connection");
+            }
+
+            dispatcher = fileHandle.mDispatcher;
+
+            // Swap our virtual file id for the real one
+            routedMessage = new HtspMessage(message);
+            routedMessage.put("id", fileHandle.mFileId);
+        }
+
+        if (dispatcher == null) {
+            dispatcher = mSelector.select(message);
+        }
+
+        if (dispatcher == null) {
+            throw new HtspNotConnectedException("Failed to route message, no connection available");
+        }
+
+        // Only pinned once sent, so a subscribe which never reaches the server pins nothing
+        Subscription pin = null;
+        if ("subscribe".equals(method) && message.containsKey("subscriptionId")
+                && !mSubscriptions.containsKey(message.getInteger("subscriptionId"))) {
+            pin = new Subscription(dispatcher, new HtspMessage(message));
+        }
+
+        return new Route(dispatcher, routedMessage, pin);
+    }
+
+    /**
+     * Pins a subscribe's subscriptionId to it's Dispatcher, once it's been sent
+     */
+    private void pin(Route route) {
+        if (route.mPin != null) {
+            mSubscriptions.putIfAbsent(route.mPin.mSubscribeRequest.getInteger("subscriptionId"), route.mPin);
+        }
+    }
+
+    /**
+     * As pin(route), removing the pin again if the request turns out never to have reached the
+     * server. A timeout isn't enough to tell, so leaves the pin in place.
+     */
+    private void pin(final Route route, HtspFuture<HtspMessage> future) {
+        if (route.mPin == null) {
+            return;
+        }
+
+        pin(route);
+
+        future.addListener(new HtspFuture.Listener<HtspMessage>() {
+            @Override
+            public Handler getHandler() {
+                return null;
+            }
+
+            @Override
+            public void onSuccess(HtspMessage response) {
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception exception) {
+                if (exception instanceof HtspRateLimitedException
+                        || exception instanceof HtspNotConnectedException) {
+                    mSubscriptions.remove(route.mPin.mSubscribeRequest.getInteger("subscriptionId"), route.mPin);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a fileOpen without the caller waiting on the reply. The reply is still waited on here,
+     * so it's file id can be remapped before it's delivered to the message listeners.
+     */
+    private long sendFileOpen(final Route route) throws HtspNotConnectedException, HtspRateLimitedException {
+        final HtspFuture<HtspMessage> future = remapFileOpen(route,
+                route.mDispatcher.sendRequest(route.mMessage, ASYNC_REPLY_TIMEOUT));
+
+        if (future.isDone()) {
+            // Rejected by a rate limiter, which sendMessage would have thrown
+            future.await(0);
+        }
+
+        future.addListener(new HtspFuture.Listener<HtspMessage>() {
+            @Override
+            public Handler getHandler() {
+                return null;
+            }
+
+            @Override
+            public void onSuccess(HtspMessage response) {
+                mSelector.deliverReply(route.mDispatcher, response);
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception exception) {
+                Log.w(TAG, "No reply to asynchronous fileOpen request: " + exception);
+            }
+        });
+
+        return route.mMessage.getLong("seq");
+    }
+
+    private HtspFuture<HtspMessage> remapFileOpen(final Route route, HtspFuture<HtspMessage> future) {
+        if (!"fileOpen".equals(route.mMessage.getString("method", null))) {
+            return future;
+        }
+
+        // Swap the real file id in the response for a virtual one, before anyone else sees it
+        final HtspFuture<HtspMessage> remappedFuture = new HtspFuture<>();
+
+        future.addListener(new HtspFuture.Listener<HtspMessage>() {
+            @Override
+            public Handler getHandler() {
+                return null;
+            }
+
+            @Override
+            public void onSuccess(HtspMessage response) {
+                if (response.containsKey("id")) {
+                    int fileId = mFileId.incrementAndGet();
+                    mFileHandles.put(fileId, new FileHandle(route.mDispatcher, response.getInteger("id")));
+                    response.put("id", fileId);
+                }
+
+                remappedFuture.complete(response);
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception exception) {
+                remappedFuture.fail(exception);
+            }
+        });
+
+        return remappedFuture;
+    }
+
+    private static class Route {
+        final HtspMessage.Dispatcher mDispatcher;
+        final HtspMessage mMessage;
+        // The pin to add once a subscribe has been sent, or null
+        final Subscription mPin;
+
+        Route(HtspMessage.Dispatcher dispatcher, HtspMessage message, Subscription pin) {
+            mDispatcher = dispatcher;
+            mMessage = message;
+            mPin = pin;
+        }
+    }
+}
@@ -31,7 +31,7 @@ public class HtspMessageSerializer implements HtspMessage.Serializer {
     private static final byte FIELD_MAP = 1;
     private static final byte FIELD_S64 = 2;
     private static final byte FIELD_STR = 3;
-    private static final byte FIELD_BIN = 4;
+    static final byte FIELD_BIN = 4;
     private static final byte FIELD_LIST = 5;
 
     public HtspMessageSerializer() {
@@ -108,6 +108,7 @@ public class HtspMessageSerializer implements HtspMessage.Serializer {
         byte[] valueLengthBytes = new byte[4];
         long valueLength;
         byte[] valueBytes;
+        ByteBuffer valueSlice;
         Object value = null;
 
         int listIndex = 0;
@@ -138,9 +139,19 @@ public class HtspMessageSerializer implements HtspMessage.Serializer {
                 key = new String(keyBytes);
             }
 
-            // Extract Value bytes
-            valueBytes = new byte[(int) valueLength];
-            buffer.get(valueBytes);
+            // Maps and Lists are deserialized from a slice of the buffer, rather than a copy of
+            // their bytes, so nested fields are copied out of the buffer only once.
+            if (fieldType == FIELD_MAP || fieldType == FIELD_LIST) {
+                valueBytes = null;
+                valueSlice = buffer.slice();
+                valueSlice.limit((int) valueLength);
+                buffer.position(buffer.position() + (int) valueLength);
+            } else {
+                // Extract Value bytes
+                valueBytes = new byte[(int) valueLength];
+                buffer.get(valueBytes);
+                valueSlice = null;
+            }
 
             // Deserialize the Value
             if (fieldType == FIELD_STR) {
@@ -159,13 +170,13 @@ public class HtspMessageSerializer implements HtspMessage.Serializer {
                 if (DEBUG) {
                     Log.v(TAG, "Deserializaing a MAP with key " + key);
                 }
-                value = deserialize(ByteBuffer.wrap(valueBytes));
+                value = deserialize(valueSlice);
 
             } else if (fieldType == FIELD_LIST) {
                 if (DEBUG) {
                     Log.v(TAG, "Deserializaing a LIST with key " + key);
                 }
-                value = new ArrayList<>(deserialize(ByteBuffer.wrap(valueBytes)).values());
+                value = new ArrayList<>(deserialize(valueSlice).values());
 
             } else if (fieldType == FIELD_BIN) {
                 if (DEBUG) {
@@ -0,0 +1,485 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a large file, e.g. a dvrfile/ recording, over several connections at once.
+ *
+ * The file is split into one contiguous range per connection, each fetched through it's own
+ * HtspFileChannel (and so it's own file handle and read-ahead), and written into a local
+ * FileChannel at the matching offsets. A connection which finishes early takes over the back half
+ * of the largest range still outstanding, so they all finish at roughly the same time.
+ *
+ * A failed range is retried, on whichever connection gets to it first, from where it got to. A
+ * connection which fails repeatedly without making progress is dropped; the download only fails
+ * if every connection is dropped, or writing to the local file fails.
+ *
+ * The connections should be separate and already authenticated, e.g. the SimpleHtspConnections
+ * from MultiHtspConnection.getConnections(), or several SimpleHtspConnections to the same server.
+ */
+public class HtspRangeDownloader {
+    private static final String TAG = HtspRangeDownloader.class.getSimpleName();
+
+    // Ranges are never split smaller than this
+    public static final long MIN_RANGE_SIZE = 8 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = FileReadController.MAX_CHUNK_SIZE;
+    private static final int READ_AHEAD = 8;
+    private static final int MAX_FAILURES = 3;
+    private static final long RETRY_DELAY = 1000; // ms
+    private static final long PROGRESS_INTERVAL = 250; // ms
+
+    /**
+     * A listener for the progress of a download
+     */
+    public interface Listener {
+        /**
+         * Returns the Handler on which to execute the callback.
+         *
+         * @return Handler, or null.
+         */
+        Handler getHandler();
+
+        /**
+         * Called periodically as the download progresses, and once more when it completes
+         *
+         * @param bytesDownloaded The number of bytes written to the local file so far
+         * @param totalBytes The size of the file
+         */
+        void onProgress(long bytesDownloaded, long totalBytes);
+    }
+
+    private final List<HtspMessage.Dispatcher> mDispatchers;
+
+    /**
+     * @param dispatchers The connections to download over, one range at a time each
+     */
+    public HtspRangeDownloader(@NonNull List<? extends HtspMessage.Dispatcher> dispatchers) {
+        if (dispatchers.isEmpty()) {
+            throw new IllegalArgumentException("At least one Dispatcher is required");
+        }
+
+        mDispatchers = new ArrayList<HtspMessage.Dispatcher>(dispatchers);
+    }
+
+    /**
+     * Downloads a file, blocking until it's complete. The target is truncated to the file's size
+     * first, so nothing is left over from a larger file it previously held.
+     *
+     * @param path The file to download, e.g. dvrfile/123
+     * @param target The local file to write it to, at the same offsets
+     * @param listener The listener to report progress to, or null
+     * @return The size of the file
+     * @throws IOException if the file can't be opened on the first connection, every connection
+     * fails, or writing to the target fails
+     */
+    public long download(@NonNull String path, @NonNull FileChannel target, Listener listener) throws IOException {
+        final HtspFileChannel firstChannel = new HtspFileChannel(mDispatchers.get(0), path, READ_AHEAD);
+        final long size;
+
+        try {
+            size = firstChannel.size();
+            target.truncate(Math.max(0, size));
+        } catch (IOException e) {
+            firstChannel.close();
+            throw e;
+        }
+
+        if (size <= 0) {
+            firstChannel.close();
+            return 0;
+        }
+
+        Log.i(TAG, "Downloading " + path + ", " + size + " bytes over " + mDispatchers.size() + " connections");
+
+        final Download download = new Download(path, size, target, listener);
+        download.run(firstChannel);
+
+        return size;
+    }
+
+    // Internal Methods
+    /**
+     * A part of the file, from it's position up to it's end, to be fetched by a single connection
+     */
+    private static class Range {
+        long mPosition;
+        long mEnd;
+
+        Range(long start, long end) {
+            mPosition = start;
+            mEnd = end;
+        }
+
+        long getRemaining() {
+            return mEnd - mPosition;
+        }
+    }
+
+    private class Download {
+        private final String mPath;
+        private final long mSize;
+        private final FileChannel mTarget;
+        private final Listener mListener;
+
+        private final Object mLock = new Object();
+        // Every incomplete range, and the subset no worker is fetching
+        private final List<Range> mRanges = new ArrayList<>();
+        private final ArrayDeque<Range> mUnassigned = new ArrayDeque<>();
+        private int mRunningWorkers = 0;
+        private IOException mFailure;
+        // Why the most recently dropped worker gave up, if any did
+        private IOException mWorkerFailure;
+        private boolean mCancelled = false;
+
+        private final AtomicLong mDownloaded = new AtomicLong();
+        private final AtomicLong mLastProgress = new AtomicLong();
+
+        Download(String path, long size, FileChannel target, Listener listener) {
+            mPath = path;
+            mSize = size;
+            mTarget = target;
+            mListener = listener;
+
+            final int count = (int) Math.max(1, Math.min(mDispatchers.size(), size / MIN_RANGE_SIZE));
+            final long rangeSize = (size + count - 1) / count;
+
+            for (long start = 0; start < size; start += rangeSize) {
+                Range range = new Range(start, Math.min(start + rangeSize, size));
+                mRanges.add(range);
+                mUnassigned.add(range);
+            }
+        }
+
+        void run(HtspFileChannel firstChannel) throws IOException {
+            synchronized (mLock) {
+                mRunningWorkers = mDispatchers.size();
+            }
+
+            for (int i = 0; i < mDispatchers.size(); i++) {
+                final Worker worker = new Worker(mDispatchers.get(i), i == 0 ? firstChannel : null);
+                final Thread thread = new Thread(worker, TAG + "-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            boolean interrupted = false;
+            final IOException failure;
+
+            synchronized (mLock) {
+                // Workers finish their current read before noticing a cancellation, which is
+                // bounded by the read timeout, so it's safe to wait for them even if interrupted
+                while (mRunningWorkers > 0) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        mCancelled = true;
+                        mLock.notifyAll();
+                    }
+                }
+
+                if (mFailure != null) {
+                    failure = new IOException("Failed to download " + mPath, mFailure);
+                } else if (!mCancelled && !mRanges.isEmpty()) {
+                    // However the last worker to finish got there, there's still work outstanding
+                    failure = new IOException("Failed to download " + mPath + ", every connection was dropped",
+                            mWorkerFailure);
+                } else {
+                    failure = null;
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Download of " + mPath + " was interrupted");
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+
+            notifyProgress(true);
+
+            Log.i(TAG, "Downloaded " + mPath);
+        }
+
+        /**
+         * @return The next range for a worker to fetch, or null if there's nothing left to do
+         */
+        Range nextRange() {
+            synchronized (mLock) {
+                while (true) {
+                    if (mFailure != null || mCancelled) {
+                        return null;
+                    }
+
+                    Range range = mUnassigned.poll();
+                    if (range != null) {
+                        return range;
+                    }
+
+                    // Take over the back half of the largest range. The split is at least a read
+                    // past it's position, so it's never inside a read already in progress.
+                    Range largest = null;
+                    for (Range candidate : mRanges) {
+                        if (largest == null || candidate.getRemaining() > largest.getRemaining()) {
+                            largest = candidate;
+                        }
+                    }
+
+                    if (largest != null && largest.getRemaining() >= 2 * MIN_RANGE_SIZE) {
+                        final long split = largest.mPosition + Math.max(largest.getRemaining() / 2, BUFFER_SIZE);
+
+                        range = new Range(split, largest.mEnd);
+                        largest.mEnd = split;
+                        mRanges.add(range);
+
+                        if (HtspConstants.DEBUG)
+                            Log.v(TAG, "Split range at " + split + " of " + mPath);
+
+                        return range;
+                    }
+
+                    if (mRanges.isEmpty()) {
+                        return null;
+                    }
+
+                    // Wait in case a range still being fetched fails, and needs picking up
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+                }
+            }
+        }
+
+        void onRangeFailed(Range range) {
+            synchronized (mLock) {
+                mUnassigned.addFirst(range);
+                mLock.notifyAll();
+            }
+        }
+
+        /**
+         * @param failure Why the worker gave up, or null if it ran out of work or was interrupted
+         */
+        void onWorkerFinished(IOException failure) {
+            synchronized (mLock) {
+                mRunningWorkers--;
+
+                if (failure != null) {
+                    mWorkerFailure = failure;
+                }
+
+                mLock.notifyAll();
+            }
+        }
+
+        void fail(IOException failure) {
+            synchronized (mLock) {
+                if (mFailure == null) {
+                    mFailure = failure;
+                }
+                mLock.notifyAll();
+            }
+        }
+
+        /**
+         * Fetches a range, until it's complete, it fails, or the download stops
+         *
+         * @return true if the range was completed
+         */
+        boolean fetchRange(HtspFileChannel channel, Range range, ByteBuffer buffer) throws IOException {
+            while (true) {
+                final long position;
+                final long end;
+
+                synchronized (mLock) {
+                    if (mFailure != null || mCancelled) {
+                        return false;
+                    }
+
+                    position = range.mPosition;
+                    end = range.mEnd;
+
+                    if (position >= end) {
+                        mRanges.remove(range);
+                        mLock.notifyAll();
+                        return true;
+                    }
+                }
+
+                // The range's end moves back when it's split, and the read-ahead must not
+                // fetch what another worker is now fetching
+                channel.setReadLimit(end);
+
+                if (channel.position() != position) {
+                    channel.position(position);
+                }
+
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+
+                final int read = channel.read(buffer);
+                if (read == -1) {
+                    throw new IOException("Unexpected end of file at " + position + " of " + mPath);
+                }
+
+                buffer.flip();
+
+                try {
+                    long writePosition = position;
+                    while (buffer.hasRemaining()) {
+                        writePosition += mTarget.write(buffer, writePosition);
+                    }
+                } catch (IOException e) {
+                    // Local failures aren't worth retrying
+                    Log.e(TAG, "Failed to write to the download target", e);
+                    fail(e);
+                    return false;
+                }
+
+                synchronized (mLock) {
+                    range.mPosition += read;
+                }
+
+                mDownloaded.addAndGet(read);
+                notifyProgress(false);
+            }
+        }
+
+        private void notifyProgress(boolean force) {
+            if (mListener == null) {
+                return;
+            }
+
+            final long now = System.currentTimeMillis();
+            final long last = mLastProgress.get();
+
+            if (!force && (now - last < PROGRESS_INTERVAL || !mLastProgress.compareAndSet(last, now))) {
+                return;
+            }
+
+            final long downloaded = mDownloaded.get();
+
+            Runnable callback = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mListener.onProgress(downloaded, mSize);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Unhandled exception in download listener", e);
+                    }
+                }
+            };
+
+            Handler handler = mListener.getHandler();
+            if (handler == null) {
+                callback.run();
+            } else {
+                handler.post(callback);
+            }
+        }
+
+        /**
+         * Fetches ranges over a single connection, reopening the file after failures
+         */
+        private class Worker implements Runnable {
+            private final HtspMessage.Dispatcher mDispatcher;
+            private HtspFileChannel mChannel;
+
+            Worker(HtspMessage.Dispatcher dispatcher, HtspFileChannel channel) {
+                mDispatcher = dispatcher;
+                mChannel = channel;
+            }
+
+            @Override
+            public void run() {
+                final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                IOException failure = null;
+                int failures = 0;
+
+                Range range;
+                while ((range = nextRange()) != null) {
+                    final long startPosition = range.mPosition;
+
+                    try {
+                        if (mChannel == null) {
+                            mChannel = new HtspFileChannel(mDispatcher, mPath, READ_AHEAD);
+                        }
+
+                        if (!fetchRange(mChannel, range, buffer)) {
+                            break;
+                        }
+
+                        failures = 0;
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to fetch range at " + range.mPosition + " of " + mPath + ": " + e);
+
+                        failure = e;
+                        closeChannel();
+                        onRangeFailed(range);
+
+                        // Progress resets the count, so a connection which blips is kept, and one
+                        // which is dead is dropped
+                        failures = range.mPosition > startPosition ? 1 : failures + 1;
+                        if (failures >= MAX_FAILURES) {
+                            Log.w(TAG, "Dropping connection after " + failures + " failures");
+                            break;
+                        }
+
+                        try {
+                            Thread.sleep(RETRY_DELAY);
+                        } catch (InterruptedException ie) {
+                            break;
+                        }
+                    }
+                }
+
+                closeChannel();
+                onWorkerFinished(failures >= MAX_FAILURES ? failure : null);
+            }
+
+            private void closeChannel() {
+                if (mChannel == null) {
+                    return;
+                }
+
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close channel", e);
+                }
+                mChannel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+/**
+ * Thrown, or used to fail a request's future, when a HtspRateLimiter with the REJECT policy turns
+ * a message away. Like it's parent, it means the message was never sent.
+ */
+public class HtspRateLimitedException extends HtspException {
+    public HtspRateLimitedException() {
+    }
+
+    public HtspRateLimitedException(String message) {
+        super(message);
+    }
+
+    public HtspRateLimitedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public HtspRateLimitedException(Throwable cause) {
+        super(cause);
+    }
+}
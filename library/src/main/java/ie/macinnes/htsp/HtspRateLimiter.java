@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Limits the outbound traffic of a single connection, so one misbehaving client can't flood a
+ * shared TVHeadend server.
+ *
+ * Three limits apply, each disabled by a value of 0:
+ *
+ * * Requests per second, a token bucket holding up to one second's worth of requests
+ * * Bytes per second, a token bucket holding up to one second's worth of bytes. As a message's
+ *   size is only known once it's serialized, a large message may take the bucket below zero,
+ *   delaying whatever follows it
+ * * Requests in flight, i.e. sent and still waiting for a reply
+ *
+ * Messages over the limits are either held in the queue until they're allowed out (QUEUE), or
+ * refused straight away with a HtspRateLimitedException (REJECT). Either way, authentication
+ * and subscription control messages are exempt, so playback keeps working under load, as are
+ * getSysTime, so liveness probes aren't mistaken for a dead connection, and fileClose, so server
+ * side file handles are never leaked.
+ *
+ * With REJECT, messages already queued count against the limits, as they'll be sent first.
+ *
+ * Each connection needs it's own instance.
+ */
+public class HtspRateLimiter {
+    public enum Policy {
+        QUEUE,
+        REJECT
+    }
+
+    private final double mRequestRate;
+    private final double mByteRate;
+    private final int mMaxInFlight;
+    private final Policy mPolicy;
+
+    private double mRequestTokens;
+    private double mByteTokens;
+    private long mLastRefill;
+
+    /**
+     * @param requestsPerSecond The sustained request rate, or 0 for no limit
+     * @param bytesPerSecond The sustained byte rate, or 0 for no limit
+     * @param maxInFlight The most requests waiting for a reply at once, or 0 for no limit
+     * @param policy What to do with messages over the limits
+     */
+    public HtspRateLimiter(double requestsPerSecond, long bytesPerSecond, int maxInFlight, @NonNull Policy policy) {
+        mRequestRate = requestsPerSecond;
+        mByteRate = bytesPerSecond;
+        mMaxInFlight = maxInFlight;
+        mPolicy = policy;
+
+        mRequestTokens = getRequestBurst();
+        mByteTokens = mByteRate;
+        mLastRefill = System.nanoTime();
+    }
+
+    public double getRequestRate() {
+        return mRequestRate;
+    }
+
+    public long getByteRate() {
+        return (long) mByteRate;
+    }
+
+    public int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    // Methods called by the HtspMessageDispatcher
+    /**
+     * @param inFlight The number of requests currently waiting for a reply
+     * @param queued The number of requests queued to be sent ahead of this one
+     * @return 0 if a message may be sent now, the number of milliseconds until one may be sent if
+     * waiting on a token bucket, or -1 if waiting on a reply
+     */
+    synchronized long getDelay(int inFlight, int queued) {
+        if (mMaxInFlight > 0 && inFlight + queued >= mMaxInFlight) {
+            return -1;
+        }
+
+        refill();
+
+        double seconds = 0;
+        final double requestTokens = queued + 1;
+
+        if (mRequestRate > 0 && mRequestTokens < requestTokens) {
+            seconds = (requestTokens - mRequestTokens) / mRequestRate;
+        }
+
+        if (mByteRate > 0 && mByteTokens <= 0) {
+            // Wait until the bucket is back above empty, rather than for any particular size
+            seconds = Math.max(seconds, (1 - mByteTokens) / mByteRate);
+        }
+
+        if (seconds == 0) {
+            return 0;
+        }
+
+        return Math.max(1, (long) Math.ceil(seconds * 1000));
+    }
+
+    synchronized void onRequestSent() {
+        if (mRequestRate > 0) {
+            refill();
+            mRequestTokens -= 1;
+        }
+    }
+
+    synchronized void onBytesSent(int bytes) {
+        if (mByteRate > 0) {
+            refill();
+            mByteTokens -= bytes;
+        }
+    }
+
+    // Internal Methods
+    private double getRequestBurst() {
+        return Math.max(1, mRequestRate);
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        final double seconds = (now - mLastRefill) / 1e9;
+        mLastRefill = now;
+
+        if (mRequestRate > 0) {
+            mRequestTokens = Math.min(getRequestBurst(), mRequestTokens + seconds * mRequestRate);
+        }
+
+        if (mByteRate > 0) {
+            mByteTokens = Math.min(mByteRate, mByteTokens + seconds * mByteRate);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timer wheel, for the large numbers of short timeouts which are almost always cancelled
+ * before they expire, e.g. request timeouts.
+ *
+ * Scheduling and cancelling are O(1), and never block on the wheel's thread. The price is
+ * precision, timeouts fire up to one tick late. Tasks are run on the wheel's thread, so should be
+ * quick.
+ *
+ * The thread is only running while there are timeouts outstanding.
+ */
+class HtspTimerWheel {
+    private static final String TAG = HtspTimerWheel.class.getSimpleName();
+
+    private static final long DEFAULT_TICK = 100; // ms
+    private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+    private static HtspTimerWheel sDefault;
+
+    private final long mTickNanos;
+    private final Bucket[] mWheel;
+    private final int mMask;
+
+    private final Queue<Timeout> mNewTimeouts = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> mCancelledTimeouts = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mPending = new AtomicInteger();
+
+    private final Object mLock = new Object();
+    private Thread mWorker;
+
+    // Only touched by the worker thread
+    private long mStartTime;
+    private long mTick;
+
+    /**
+     * @return A wheel shared by everything in the library, with a 100ms tick
+     */
+    static synchronized HtspTimerWheel getDefault() {
+        if (sDefault == null) {
+            sDefault = new HtspTimerWheel(DEFAULT_TICK, DEFAULT_TICKS_PER_WHEEL);
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param tick The tick duration, in milliseconds
+     * @param ticksPerWheel The number of buckets in the wheel, rounded up to a power of two
+     */
+    HtspTimerWheel(long tick, int ticksPerWheel) {
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+
+        mTickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+        mWheel = new Bucket[size];
+        mMask = size - 1;
+
+        for (int i = 0; i < size; i++) {
+            mWheel[i] = new Bucket();
+        }
+    }
+
+    /**
+     * Schedules a task to run once a delay has passed
+     *
+     * @param task The task to run
+     * @param delay The delay, in milliseconds
+     * @return A Timeout, which can be used to cancel the task
+     */
+    Timeout schedule(@NonNull Runnable task, long delay) {
+        final Timeout timeout = new Timeout(task,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0)));
+
+        synchronized (mLock) {
+            mNewTimeouts.add(timeout);
+            mPending.incrementAndGet();
+
+            if (mWorker == null) {
+                mWorker = new Thread(new Worker(), TAG);
+                mWorker.setDaemon(true);
+                mWorker.start();
+            }
+        }
+
+        return timeout;
+    }
+
+    /**
+     * @return The number of timeouts neither expired nor cancelled yet
+     */
+    int getPendingCount() {
+        return mPending.get();
+    }
+
+    /**
+     * A scheduled task
+     */
+    class Timeout {
+        private static final int STATE_PENDING = 0;
+        private static final int STATE_CANCELLED = 1;
+        private static final int STATE_EXPIRED = 2;
+
+        private final Runnable mTask;
+        private final long mDeadline;
+        private final AtomicInteger mState = new AtomicInteger(STATE_PENDING);
+
+        // Only touched by the worker thread
+        long mRemainingRounds;
+        Bucket mBucket;
+        Timeout mNext;
+        Timeout mPrev;
+
+        Timeout(Runnable task, long deadline) {
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+        /**
+         * Cancels the task, unless it has already run
+         *
+         * @return true if this call cancelled the task, false otherwise
+         */
+        boolean cancel() {
+            if (!mState.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+                return false;
+            }
+
+            // The worker unlinks it from it's bucket on the next tick
+            mCancelledTimeouts.add(this);
+            return true;
+        }
+
+        boolean isCancelled() {
+            return mState.get() == STATE_CANCELLED;
+        }
+
+        private void expire() {
+            if (!mState.compareAndSet(STATE_PENDING, STATE_EXPIRED)) {
+                // Cancelled, and counted as such by processCancelledTimeouts
+                return;
+            }
+
+            mPending.decrementAndGet();
+
+            try {
+                mTask.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unhandled exception in timeout task", e);
+            }
+        }
+    }
+
+    // Internal Methods
+    /**
+     * A doubly linked list of Timeouts, so cancelled Timeouts can be unlinked in O(1)
+     */
+    private static class Bucket {
+        Timeout mHead;
+        Timeout mTail;
+
+        void add(Timeout timeout) {
+            timeout.mBucket = this;
+
+            if (mHead == null) {
+                mHead = mTail = timeout;
+            } else {
+                mTail.mNext = timeout;
+                timeout.mPrev = mTail;
+                mTail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            final Timeout next = timeout.mNext;
+
+            if (timeout.mPrev != null) {
+                timeout.mPrev.mNext = next;
+            }
+            if (timeout.mNext != null) {
+                timeout.mNext.mPrev = timeout.mPrev;
+            }
+            if (timeout == mHead) {
+                mHead = next;
+            }
+            if (timeout == mTail) {
+                mTail = timeout.mPrev;
+            }
+
+            timeout.mPrev = null;
+            timeout.mNext = null;
+            timeout.mBucket = null;
+
+            return next;
+        }
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            mStartTime = System.nanoTime();
+            mTick = 0;
+
+            while (true) {
+                final long deadline = waitForNextTick();
+
+                processCancelledTimeouts();
+                transferNewTimeouts();
+                expireTimeouts(mWheel[(int) (mTick & mMask)], deadline);
+
+                mTick++;
+
+                synchronized (mLock) {
+                    if (mPending.get() == 0 && mNewTimeouts.isEmpty()) {
+                        mWorker = null;
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return The time at the end of the current tick
+         */
+        private long waitForNextTick() {
+            final long deadline = mStartTime + (mTick + 1) * mTickNanos;
+
+            while (true) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return deadline;
+                }
+
+                try {
+                    TimeUnit.NANOSECONDS.sleep(remaining);
+                } catch (InterruptedException e) {
+                    // Nothing is expected to interrupt us, carry on
+                }
+            }
+        }
+
+        private void processCancelledTimeouts() {
+            Timeout timeout;
+            while ((timeout = mCancelledTimeouts.poll()) != null) {
+                if (timeout.mBucket != null) {
+                    timeout.mBucket.remove(timeout);
+                }
+                mPending.decrementAndGet();
+            }
+        }
+
+        private void transferNewTimeouts() {
+            Timeout timeout;
+            while ((timeout = mNewTimeouts.poll()) != null) {
+                if (timeout.isCancelled()) {
+                    // Already counted by processCancelledTimeouts, or will be next tick
+                    continue;
+                }
+
+                final long ticks = Math.max((timeout.mDeadline - mStartTime) / mTickNanos, mTick);
+                timeout.mRemainingRounds = (ticks - mTick) / mWheel.length;
+                mWheel[(int) (ticks & mMask)].add(timeout);
+            }
+        }
+
+        private void expireTimeouts(Bucket bucket, long deadline) {
+            Timeout timeout = bucket.mHead;
+
+            while (timeout != null) {
+                if (timeout.mRemainingRounds <= 0 && timeout.mDeadline <= deadline) {
+                    Timeout next = bucket.remove(timeout);
+                    timeout.expire();
+                    timeout = next;
+                } else {
+                    if (timeout.mRemainingRounds > 0) {
+                        timeout.mRemainingRounds--;
+                    }
+                    timeout = timeout.mNext;
+                }
+            }
+        }
+    }
+}
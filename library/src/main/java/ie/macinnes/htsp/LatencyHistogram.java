@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lightweight, lock free, log-linear histogram in the style of HdrHistogram.
+ *
+ * Values are bucketed by their power of two, with each power of two split into 16 linear
+ * sub-buckets, giving a worst case error of ~6% for any recorded value while keeping the whole
+ * histogram in a single fixed size array. Recording is a couple of atomic increments, so it's
+ * cheap enough to be used on the HtspConnection thread.
+ *
+ * The histogram is unit-less, callers decide what they're recording (e.g. microseconds).
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mTotalValue = new AtomicLong();
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMax = new AtomicLong(0);
+
+    public LatencyHistogram() {
+    }
+
+    /**
+     * Records a single value. Negative values are recorded as zero.
+     *
+     * @param value The value to record
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        mCounts.incrementAndGet(indexOf(value));
+        mTotalCount.incrementAndGet();
+        mTotalValue.addAndGet(value);
+
+        long min;
+        while (value < (min = mMin.get())) {
+            if (mMin.compareAndSet(min, value)) {
+                break;
+            }
+        }
+
+        long max;
+        while (value > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    public long getMin() {
+        return getCount() == 0 ? 0 : mMin.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : mTotalValue.get() / count;
+    }
+
+    /**
+     * Returns the (approximate) value at the given percentile.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return The value at the percentile, or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+
+        percentile = Math.max(0, Math.min(100, percentile));
+        long target = Math.max(1, (long) Math.ceil((percentile / 100) * count));
+
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= target) {
+                // Never report beyond what was actually recorded
+                return Math.min(highestEquivalentValue(i), getMax());
+            }
+        }
+
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mTotalValue.set(0);
+        mMin.set(Long.MAX_VALUE);
+        mMax.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+                .append("n: ").append(getCount())
+                .append(" min: ").append(getMin())
+                .append(" p50: ").append(getPercentile(50))
+                .append(" p90: ").append(getPercentile(90))
+                .append(" p99: ").append(getPercentile(99))
+                .append(" max: ").append(getMax())
+                .toString();
+    }
+
+    // Internal Methods
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int shift = (index / SUB_BUCKET_COUNT) - 1;
+        long subBucket = (index % SUB_BUCKET_COUNT) + SUB_BUCKET_COUNT;
+
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
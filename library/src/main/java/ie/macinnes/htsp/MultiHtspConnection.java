@@ -0,0 +1,431 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import ie.macinnes.htsp.tasks.Authenticator;
+
+/**
+ * Keeps warm connections to several TVHeadend servers carrying the same channels, and routes
+ * work to the healthiest, lowest latency one.
+ *
+ * Each backend is a SimpleHtspConnection, reconnecting on failure as usual. Backends are scored
+ * on their smoothed RTT (from their SystemTimeProbe), their recent error rate and the number of
+ * subscriptions they're already carrying. New subscriptions and fileOpens go to the best scoring
+ * authenticated backend, and stay there. When a backend fails, it's subscriptions are resent to
+ * the best remaining backend.
+ *
+ * Message listeners are added to every backend, so a Subscriber will keep receiving it's
+ * messages wherever it's subscription ends up. Authentication listeners hear about the backends
+ * as a whole, see addAuthenticationListener.
+ */
+public class MultiHtspConnection implements HtspMessage.Dispatcher, HtspMessageRouter.Selector {
+    private static final String TAG = MultiHtspConnection.class.getSimpleName();
+
+    // Used in place of the RTT of backends we've yet to measure, in microseconds
+    private static final long DEFAULT_RTT = 100000;
+    private static final double ERROR_RATE_WEIGHT = 10;
+    private static final double SUBSCRIPTION_WEIGHT = 0.1;
+    private static final double ERROR_RATE_DECAY = 0.1;
+
+    private final List<Backend> mBackends;
+    private final HtspMessageRouter mRouter;
+
+    private final Set<Authenticator.Listener> mAuthenticationListeners = new CopyOnWriteArraySet<>();
+    private final Object mAuthenticationLock = new Object();
+    private boolean mAnyAuthenticated = false;
+
+    public MultiHtspConnection(@NonNull List<HtspConnection.ConnectionDetails> connectionDetails) {
+        if (connectionDetails.isEmpty()) {
+            throw new IllegalArgumentException("At least one set of connection details is required");
+        }
+
+        mRouter = new HtspMessageRouter(this);
+
+        List<Backend> backends = new ArrayList<>(connectionDetails.size());
+        for (HtspConnection.ConnectionDetails details : connectionDetails) {
+            backends.add(new Backend(details));
+        }
+        mBackends = Collections.unmodifiableList(backends);
+    }
+
+    public void start() {
+        for (Backend backend : mBackends) {
+            backend.mConnection.start();
+        }
+    }
+
+    public void stop() {
+        for (Backend backend : mBackends) {
+            backend.mConnection.stop();
+        }
+    }
+
+    /**
+     * @return The underlying connections, one per backend, in the order they were given
+     */
+    public List<SimpleHtspConnection> getConnections() {
+        List<SimpleHtspConnection> connections = new ArrayList<>(mBackends.size());
+        for (Backend backend : mBackends) {
+            connections.add(backend.mConnection);
+        }
+        return connections;
+    }
+
+    public boolean isAnyAuthenticated() {
+        for (Backend backend : mBackends) {
+            if (backend.isAuthenticated()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void addConnectionListener(HtspConnection.Listener listener) {
+        for (Backend backend : mBackends) {
+            backend.mConnection.addConnectionListener(listener);
+        }
+    }
+
+    public void removeConnectionListener(HtspConnection.Listener listener) {
+        for (Backend backend : mBackends) {
+            backend.mConnection.removeConnectionListener(listener);
+        }
+    }
+
+    /**
+     * Adds a listener for the authentication state of the backends as a whole. It hears
+     * AUTHENTICATED when the first backend authenticates, and the state of the last backend
+     * to lose authentication once none are left. Backends coming and going in between aren't
+     * reported, as their subscriptions have already been migrated, and e.g. a Subscriber
+     * resubscribing then would duplicate them.
+     *
+     * @param listener The listener to add
+     */
+    public void addAuthenticationListener(Authenticator.Listener listener) {
+        mAuthenticationListeners.add(listener);
+    }
+
+    public void removeAuthenticationListener(Authenticator.Listener listener) {
+        mAuthenticationListeners.remove(listener);
+    }
+
+    // HtspMessage.Dispatcher Methods
+    @Override
+    public void addMessageListener(HtspMessage.Listener listener) {
+        for (Backend backend : mBackends) {
+            backend.mConnection.addMessageListener(listener);
+        }
+    }
+
+    @Override
+    public void addMessageListener(HtspMessage.Listener listener, String... methods) {
+        for (Backend backend : mBackends) {
+            backend.mConnection.addMessageListener(listener, methods);
+        }
+    }
+
+    @Override
+    public void registerSubscription(int subscriptionId, HtspMessage.Listener listener) {
+        // Registered everywhere, as the subscription may move between backends
+        for (Backend backend : mBackends) {
+            backend.mConnection.registerSubscription(subscriptionId, listener);
+        }
+    }
+
+    @Override
+    public void unregisterSubscription(int subscriptionId) {
+        for (Backend backend : mBackends) {
+            backend.mConnection.unregisterSubscription(subscriptionId);
+        }
+    }
+
+    @Override
+    public void removeMessageListener(HtspMessage.Listener listener) {
+        for (Backend backend : mBackends) {
+            backend.mConnection.removeMessageListener(listener);
+        }
+    }
+
+    @Override
+    public long sendMessage(@NonNull HtspMessage message) throws HtspNotConnectedException, HtspRateLimitedException {
+        return mRouter.sendMessage(message);
+    }
+
+    @Override
+    public HtspMessage sendMessage(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException, HtspRateLimitedException {
+        return mRouter.sendMessage(message, timeout);
+    }
+
+    @Override
+    public HtspFuture<HtspMessage> sendRequest(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException {
+        return mRouter.sendRequest(message, timeout);
+    }
+
+    @Override
+    public List<HtspFuture<HtspMessage>> sendRequests(@NonNull List<HtspMessage> messages, int timeout) throws HtspNotConnectedException {
+        return mRouter.sendRequests(messages, timeout);
+    }
+
+    // HtspMessageRouter.Selector Methods
+    @Override
+    public HtspMessage.Dispatcher select(@NonNull HtspMessage message) {
+        Backend best = null;
+        double bestScore = Double.MAX_VALUE;
+
+        for (Backend backend : mBackends) {
+            if (!backend.isAuthenticated()) {
+                continue;
+            }
+
+            double score = backend.getScore();
+            if (score < bestScore) {
+                best = backend;
+                bestScore = score;
+            }
+        }
+
+        return best;
+    }
+
+    @Override
+    public void deliverReply(@NonNull HtspMessage.Dispatcher dispatcher, @NonNull HtspMessage reply) {
+        ((Backend) dispatcher).mConnection.getMessageDispatcher().onMessage(reply);
+    }
+
+    // Internal Methods
+    private void onBackendAuthenticationStateChange(final Authenticator.State state) {
+        synchronized (mAuthenticationLock) {
+            final boolean wasAnyAuthenticated = mAnyAuthenticated;
+            mAnyAuthenticated = isAnyAuthenticated();
+
+            if (wasAnyAuthenticated && mAnyAuthenticated) {
+                return;
+            }
+        }
+
+        for (final Authenticator.Listener listener : mAuthenticationListeners) {
+            Handler handler = listener.getHandler();
+            if (handler == null) {
+                listener.onAuthenticationStateChange(state);
+            } else {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onAuthenticationStateChange(state);
+                    }
+                });
+            }
+        }
+    }
+
+    private void migrate(Backend from) {
+        List<HtspMessage> subscribeRequests = mRouter.release(from);
+
+        for (HtspMessage subscribeRequest : subscribeRequests) {
+            // Let the new backend hand out it's own sequence number
+            subscribeRequest.remove("seq");
+
+            Log.i(TAG, "Migrating subscription " + subscribeRequest.getInteger("subscriptionId")
+                    + " away from " + from.mConnectionDetails.getHostname());
+
+            try {
+                mRouter.sendMessage(subscribeRequest);
+            } catch (HtspNotConnectedException e) {
+                Log.e(TAG, "Failed to migrate subscription, no backends available");
+            } catch (HtspRateLimitedException e) {
+                Log.e(TAG, "Failed to migrate subscription, rate limited");
+            }
+        }
+    }
+
+    /**
+     * A single backend, and it's health
+     */
+    private class Backend implements HtspMessage.Dispatcher, HtspConnection.Listener, Authenticator.Listener {
+        final HtspConnection.ConnectionDetails mConnectionDetails;
+        final SimpleHtspConnection mConnection;
+
+        private volatile boolean mAuthenticated = false;
+        private volatile double mErrorRate = 0;
+
+        private final HtspFuture.Listener<HtspMessage> mResultListener = new HtspFuture.Listener<HtspMessage>() {
+            @Override
+            public Handler getHandler() {
+                return null;
+            }
+
+            @Override
+            public void onSuccess(HtspMessage result) {
+                recordResult(true);
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception exception) {
+                recordResult(false);
+            }
+        };
+
+        Backend(HtspConnection.ConnectionDetails connectionDetails) {
+            mConnectionDetails = connectionDetails;
+            mConnection = new SimpleHtspConnection(connectionDetails);
+            mConnection.addConnectionListener(this);
+            mConnection.addAuthenticationListener(this);
+        }
+
+        boolean isAuthenticated() {
+            return mAuthenticated;
+        }
+
+        double getScore() {
+            long rtt = mConnection.getSystemTimeProbe().getSmoothedRtt();
+            if (rtt == -1) {
+                rtt = DEFAULT_RTT;
+            }
+
+            return rtt * (1 + ERROR_RATE_WEIGHT * mErrorRate)
+                    * (1 + SUBSCRIPTION_WEIGHT * mRouter.getSubscriptionCount(this));
+        }
+
+        private void recordResult(boolean success) {
+            mErrorRate = (1 - ERROR_RATE_DECAY) * mErrorRate + (success ? 0 : ERROR_RATE_DECAY);
+        }
+
+        // HtspMessage.Dispatcher Methods
+        @Override
+        public void addMessageListener(HtspMessage.Listener listener) {
+            mConnection.addMessageListener(listener);
+        }
+
+        @Override
+        public void addMessageListener(HtspMessage.Listener listener, String... methods) {
+            mConnection.addMessageListener(listener, methods);
+        }
+
+        @Override
+        public void registerSubscription(int subscriptionId, HtspMessage.Listener listener) {
+            mConnection.registerSubscription(subscriptionId, listener);
+        }
+
+        @Override
+        public void unregisterSubscription(int subscriptionId) {
+            mConnection.unregisterSubscription(subscriptionId);
+        }
+
+        @Override
+        public void removeMessageListener(HtspMessage.Listener listener) {
+            mConnection.removeMessageListener(listener);
+        }
+
+        @Override
+        public long sendMessage(@NonNull HtspMessage message) throws HtspNotConnectedException, HtspRateLimitedException {
+            try {
+                return mConnection.sendMessage(message);
+            } catch (HtspNotConnectedException e) {
+                recordResult(false);
+                throw e;
+            }
+        }
+
+        @Override
+        public HtspMessage sendMessage(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException, HtspRateLimitedException {
+            HtspMessage response;
+            try {
+                response = mConnection.sendMessage(message, timeout);
+            } catch (HtspNotConnectedException e) {
+                recordResult(false);
+                throw e;
+            }
+
+            recordResult(response != null);
+
+            return response;
+        }
+
+        @Override
+        public HtspFuture<HtspMessage> sendRequest(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException {
+            HtspFuture<HtspMessage> future;
+            try {
+                future = mConnection.sendRequest(message, timeout);
+            } catch (HtspNotConnectedException e) {
+                recordResult(false);
+                throw e;
+            }
+
+            return future.addListener(mResultListener);
+        }
+
+        @Override
+        public List<HtspFuture<HtspMessage>> sendRequests(@NonNull List<HtspMessage> messages, int timeout) throws HtspNotConnectedException {
+            List<HtspFuture<HtspMessage>> futures;
+            try {
+                futures = mConnection.sendRequests(messages, timeout);
+            } catch (HtspNotConnectedException e) {
+                recordResult(false);
+                throw e;
+            }
+
+            for (HtspFuture<HtspMessage> future : futures) {
+                future.addListener(mResultListener);
+            }
+
+            return futures;
+        }
+
+        // HtspConnection.Listener and Authenticator.Listener Methods
+        @Override
+        public Handler getHandler() {
+            return null;
+        }
+
+        // HtspConnection.Listener Methods
+        @Override
+        public void setConnection(@NonNull HtspConnection connection) {
+        }
+
+        @Override
+        public void onConnectionStateChange(@NonNull HtspConnection.State state) {
+            if (state == HtspConnection.State.FAILED) {
+                recordResult(false);
+            }
+        }
+
+        // Authenticator.Listener Methods
+        @Override
+        public void onAuthenticationStateChange(@NonNull Authenticator.State state) {
+            boolean wasAuthenticated = mAuthenticated;
+            mAuthenticated = state == Authenticator.State.AUTHENTICATED;
+
+            if (wasAuthenticated && !mAuthenticated) {
+                Log.w(TAG, "Lost backend " + mConnectionDetails.getHostname());
+                migrate(this);
+            } else if (mAuthenticated) {
+                Log.i(TAG, "Gained backend " + mConnectionDetails.getHostname());
+            }
+
+            onBackendAuthenticationStateChange(state);
+        }
+    }
+}
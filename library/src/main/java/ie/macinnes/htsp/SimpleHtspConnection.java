@@ -19,16 +19,35 @@ import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import ie.macinnes.htsp.tasks.Authenticator;
+import ie.macinnes.htsp.tasks.LivenessMonitor;
+import ie.macinnes.htsp.tasks.SystemTimeProbe;
 
-public class SimpleHtspConnection implements HtspMessage.Dispatcher, HtspConnection.Listener {
+public class SimpleHtspConnection implements HtspMessage.Dispatcher, HtspConnection.Listener, HtspMessageRouter.Selector {
     private static final String TAG = SimpleHtspConnection.class.getSimpleName();
 
+    // Methods sent over secondary connections when pooling, the rest of a file's requests follow
+    // it's fileOpen
+    private static final Set<String> BULK_METHODS = new HashSet<>(Arrays.asList(new String[]{
+            "fileOpen", "getEvents", "epgQuery"
+    }));
+
     private final HtspMessageSerializer mMessageSerializer;
     private final HtspMessageDispatcher mMessageDispatcher;
     private final HtspDataHandler mDataHandler;
     private final HtspConnection.ConnectionDetails mConnectionDetails;
     private final Authenticator mAuthenticator;
+    private final SystemTimeProbe mSystemTimeProbe;
+    private final LivenessMonitor mLivenessMonitor;
+    private final EventLoopMonitor mEventLoopMonitor;
 
     private final HtspConnection mConnection;
     private Thread mConnectionThread;
@@ -37,28 +56,96 @@ public class SimpleHtspConnection implements HtspMessage.Dispatcher, HtspConnect
     private int mRetryCount = 0;
     private int mRetryDelay = 0;
 
+    private final List<SimpleHtspConnection> mSecondaryConnections;
+    private final HtspMessageRouter mRouter;
+    private final AtomicInteger mNextSecondaryConnection = new AtomicInteger();
+
     public SimpleHtspConnection(HtspConnection.ConnectionDetails connectionDetails) {
+        this(connectionDetails, 1);
+    }
+
+    /**
+     * Creates a pooled connection, made up of poolSize separately authenticated connections to
+     * the same server, each with it's own connection thread.
+     *
+     * Subscriptions, and everything else that isn't bulk, stay on the primary connection. Bulk
+     * requests (fileOpen and the reads which follow it, getEvents, epgQuery) are spread over the
+     * secondary connections, so large transfers don't sit in front of live muxpkt's.
+     *
+     * @param connectionDetails The server to connect to
+     * @param poolSize The total number of connections to open, 1 disables pooling
+     */
+    public SimpleHtspConnection(HtspConnection.ConnectionDetails connectionDetails, int poolSize) {
         mConnectionDetails = connectionDetails;
 
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+
+        List<SimpleHtspConnection> secondaryConnections = new ArrayList<>(poolSize - 1);
+        for (int i = 1; i < poolSize; i++) {
+            secondaryConnections.add(new SimpleHtspConnection(connectionDetails));
+        }
+        mSecondaryConnections = Collections.unmodifiableList(secondaryConnections);
+        mRouter = poolSize > 1 ? new HtspMessageRouter(this) : null;
+
         mMessageSerializer = new HtspMessageSerializer();
         mMessageDispatcher = new HtspMessageDispatcher();
 
+        mEventLoopMonitor = new EventLoopMonitor();
+        mMessageDispatcher.setEventLoopMonitor(mEventLoopMonitor);
+
         mDataHandler = new HtspDataHandler(
                 mMessageSerializer, mMessageDispatcher);
 
         mAuthenticator = new Authenticator(
                 mMessageDispatcher, mConnectionDetails);
 
+        mSystemTimeProbe = new SystemTimeProbe(mMessageDispatcher);
+        mAuthenticator.addAuthenticationListener(mSystemTimeProbe);
+
+        mLivenessMonitor = new LivenessMonitor(mMessageDispatcher);
+
         mConnection = new HtspConnection(
                 mConnectionDetails, mDataHandler, mDataHandler);
-        mConnection.addConnectionListener(this);
+        mConnection.setEventLoopMonitor(mEventLoopMonitor);
+        // The LivenessMonitor and the HtspMessageDispatcher must hear about a failure before we
+        // restart the connection, so the old connection's requests are failed and it's queue is
+        // cleared before the new connection starts
+        mConnection.addConnectionListener(mLivenessMonitor);
         mConnection.addConnectionListener(mMessageDispatcher);
+        mConnection.addConnectionListener(this);
         mConnection.addConnectionListener(mDataHandler);
         mConnection.addConnectionListener(mAuthenticator);
+
+        // Anything pinned to a failed connection is gone from the server, don't route to it again
+        for (final SimpleHtspConnection connection : mSecondaryConnections) {
+            connection.addConnectionListener(new HtspConnection.Listener() {
+                @Override
+                public Handler getHandler() {
+                    return null;
+                }
+
+                @Override
+                public void setConnection(@NonNull HtspConnection connection) {
+                }
+
+                @Override
+                public void onConnectionStateChange(@NonNull HtspConnection.State state) {
+                    if (state == HtspConnection.State.FAILED) {
+                        mRouter.release(connection);
+                    }
+                }
+            });
+        }
     }
 
     public void start() {
         start(true);
+
+        for (SimpleHtspConnection connection : mSecondaryConnections) {
+            connection.start();
+        }
     }
 
     private void start(boolean allowRestart) {
@@ -84,6 +171,10 @@ public class SimpleHtspConnection implements HtspMessage.Dispatcher, HtspConnect
     }
 
     public void stop() {
+        for (SimpleHtspConnection connection : mSecondaryConnections) {
+            connection.stop();
+        }
+
         stop(true);
     }
 
@@ -111,6 +202,25 @@ public class SimpleHtspConnection implements HtspMessage.Dispatcher, HtspConnect
         return mMessageDispatcher;
     }
 
+    public SystemTimeProbe getSystemTimeProbe() {
+        return mSystemTimeProbe;
+    }
+
+    public LivenessMonitor getLivenessMonitor() {
+        return mLivenessMonitor;
+    }
+
+    /**
+     * @return The EventLoopMonitor of the primary connection
+     */
+    public EventLoopMonitor getEventLoopMonitor() {
+        return mEventLoopMonitor;
+    }
+
+    public boolean isAuthenticated() {
+        return mAuthenticator.getState() == Authenticator.State.AUTHENTICATED;
+    }
+
     public boolean isClosed() {
         return mConnection.isClosed();
     }
@@ -138,23 +248,114 @@ public class SimpleHtspConnection implements HtspMessage.Dispatcher, HtspConnect
     @Override
     public void addMessageListener(HtspMessage.Listener listener) {
         mMessageDispatcher.addMessageListener(listener);
+
+        for (SimpleHtspConnection connection : mSecondaryConnections) {
+            connection.addMessageListener(listener);
+        }
+    }
+
+    @Override
+    public void addMessageListener(HtspMessage.Listener listener, String... methods) {
+        mMessageDispatcher.addMessageListener(listener, methods);
+
+        for (SimpleHtspConnection connection : mSecondaryConnections) {
+            connection.addMessageListener(listener, methods);
+        }
+    }
+
+    @Override
+    public void registerSubscription(int subscriptionId, HtspMessage.Listener listener) {
+        mMessageDispatcher.registerSubscription(subscriptionId, listener);
+
+        for (SimpleHtspConnection connection : mSecondaryConnections) {
+            connection.registerSubscription(subscriptionId, listener);
+        }
+    }
+
+    @Override
+    public void unregisterSubscription(int subscriptionId) {
+        mMessageDispatcher.unregisterSubscription(subscriptionId);
+
+        for (SimpleHtspConnection connection : mSecondaryConnections) {
+            connection.unregisterSubscription(subscriptionId);
+        }
     }
 
     @Override
     public void removeMessageListener(HtspMessage.Listener listener) {
         mMessageDispatcher.removeMessageListener(listener);
+
+        for (SimpleHtspConnection connection : mSecondaryConnections) {
+            connection.removeMessageListener(listener);
+        }
     }
 
     @Override
-    public long sendMessage(@NonNull HtspMessage message) throws HtspNotConnectedException {
+    public long sendMessage(@NonNull HtspMessage message) throws HtspNotConnectedException, HtspRateLimitedException {
+        if (mRouter != null) {
+            return mRouter.sendMessage(message);
+        }
+
         return mMessageDispatcher.sendMessage(message);
     }
 
     @Override
-    public HtspMessage sendMessage(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException {
+    public HtspMessage sendMessage(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException, HtspRateLimitedException {
+        if (mRouter != null) {
+            return mRouter.sendMessage(message, timeout);
+        }
+
         return mMessageDispatcher.sendMessage(message, timeout);
     }
 
+    @Override
+    public HtspFuture<HtspMessage> sendRequest(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException {
+        if (mRouter != null) {
+            return mRouter.sendRequest(message, timeout);
+        }
+
+        return mMessageDispatcher.sendRequest(message, timeout);
+    }
+
+    @Override
+    public List<HtspFuture<HtspMessage>> sendRequests(@NonNull List<HtspMessage> messages, int timeout) throws HtspNotConnectedException {
+        if (mRouter != null) {
+            return mRouter.sendRequests(messages, timeout);
+        }
+
+        return mMessageDispatcher.sendRequests(messages, timeout);
+    }
+
+    // HtspMessageRouter.Selector Methods
+    @Override
+    public HtspMessage.Dispatcher select(@NonNull HtspMessage message) {
+        if (!BULK_METHODS.contains(message.getString("method", null))) {
+            return mMessageDispatcher;
+        }
+
+        // Round robin over the authenticated secondaries, falling back to the primary
+        final int count = mSecondaryConnections.size();
+        final int start = mNextSecondaryConnection.getAndIncrement() & Integer.MAX_VALUE;
+
+        for (int i = 0; i < count; i++) {
+            SimpleHtspConnection connection = mSecondaryConnections.get((start + i) % count);
+            if (connection.isAuthenticated()) {
+                return connection;
+            }
+        }
+
+        return mMessageDispatcher;
+    }
+
+    @Override
+    public void deliverReply(@NonNull HtspMessage.Dispatcher dispatcher, @NonNull HtspMessage reply) {
+        if (dispatcher == mMessageDispatcher) {
+            mMessageDispatcher.onMessage(reply);
+        } else {
+            ((SimpleHtspConnection) dispatcher).getMessageDispatcher().onMessage(reply);
+        }
+    }
+
     @Override
     public Handler getHandler() {
         return null;
@@ -165,6 +366,10 @@ public class SimpleHtspConnection implements HtspMessage.Dispatcher, HtspConnect
 
     @Override
     public void onConnectionStateChange(@NonNull HtspConnection.State state) {
+        if (mRouter != null && state == HtspConnection.State.FAILED) {
+            mRouter.release(mMessageDispatcher);
+        }
+
         // Simple HTSP Connections will take care of reconnecting upon failure for you..
         if (mEnableReconnect && state == HtspConnection.State.FAILED) {
             Log.w(TAG, "HTSP Connection failed, reconnecting in " + mRetryDelay + " milliseconds");
@@ -28,8 +28,8 @@ import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 import ie.macinnes.htsp.HtspConnection;
+import ie.macinnes.htsp.HtspException;
 import ie.macinnes.htsp.HtspMessage;
-import ie.macinnes.htsp.HtspNotConnectedException;
 
 /**
  * Handles Authentication on a HTSP Connection
@@ -75,7 +75,7 @@ public class Authenticator implements HtspMessage.Listener, HtspConnection.Liste
     }
 
     private final HtspMessage.Dispatcher mDispatcher;
-    private State mState = State.IDLE;
+    private volatile State mState = State.IDLE;
 
     private HtspConnection.ConnectionDetails mConnectionDetails;
 
@@ -107,6 +107,8 @@ public class Authenticator implements HtspMessage.Listener, HtspConnection.Liste
     }
 
     private void setState(final State state) {
+        mState = state;
+
         for (final Listener listener : mListeners) {
             Handler handler = listener.getHandler();
             if (handler == null) {
@@ -165,7 +167,7 @@ public class Authenticator implements HtspMessage.Listener, HtspConnection.Liste
         Log.i(TAG, "Starting Authentication");
         setState(State.AUTHENTICATING);
 
-        mDispatcher.addMessageListener(this);
+        mDispatcher.addMessageListener(this, HANDLED_METHODS.toArray(new String[HANDLED_METHODS.size()]));
 
         sendHelloRequest();
     }
@@ -181,8 +183,9 @@ public class Authenticator implements HtspMessage.Listener, HtspConnection.Liste
 
         try {
             mDispatcher.sendMessage(message);
-        } catch (HtspNotConnectedException e) {
-            Log.w(TAG, "Authenticator failed, not connected", e);
+        } catch (HtspException e) {
+            // Includes rate limiting, though hello and authenticate are exempt from our own
+            Log.w(TAG, "Authenticator failed, couldn't send request", e);
             setState(State.FAILED);
         }
     }
@@ -209,8 +212,8 @@ public class Authenticator implements HtspMessage.Listener, HtspConnection.Liste
 
         try {
             mDispatcher.sendMessage(message);
-        } catch (HtspNotConnectedException e) {
-            Log.w(TAG, "Authenticator failed, not connected", e);
+        } catch (HtspException e) {
+            Log.w(TAG, "Authenticator failed, couldn't send request", e);
             setState(State.FAILED);
 
             // Remove myself as a message listener, I'm all done for now.
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp.tasks;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+import ie.macinnes.htsp.HtspConnection;
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.htsp.HtspNotConnectedException;
+import ie.macinnes.htsp.HtspRateLimitedException;
+
+/**
+ * Detects dead (e.g. half open) TCP sessions on a HTSP Connection
+ *
+ * * Waits for State==CONNECTED, and starts checking how long the connection has been idle
+ * * Once nothing has been received for the idle timeout, sends a getSysTime probe
+ * * If nothing has been received by the time the probe timeout expires, fails the connection. A
+ *   probe which couldn't be sent doesn't count, and is retried on the next check
+ * * Stops checking once the connection is closing, closed or failed
+ *
+ * Any data received counts as a sign of life, not just the reply to the probe, so busy
+ * connections are never probed.
+ */
+public class LivenessMonitor implements HtspConnection.Listener {
+    private static final String TAG = LivenessMonitor.class.getSimpleName();
+
+    private static final int DEFAULT_IDLE_TIMEOUT = 10000;
+    private static final int DEFAULT_PROBE_TIMEOUT = 5000;
+    private static final int MAX_CHECK_INTERVAL = 1000;
+
+    private final HtspMessage.Dispatcher mDispatcher;
+    private HtspConnection mConnection;
+
+    private final Object mLock = new Object();
+    private Timer mTimer;
+
+    private volatile int mIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile int mProbeTimeout = DEFAULT_PROBE_TIMEOUT;
+
+    // When the outstanding probe was sent (System.nanoTime()), or -1 if there is none
+    private long mProbeSentTime = -1;
+
+    public LivenessMonitor(@NonNull HtspMessage.Dispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    public int getIdleTimeout() {
+        return mIdleTimeout;
+    }
+
+    /**
+     * Sets how long a connection may be idle before it's probed. Takes effect on the next
+     * connection.
+     *
+     * @param idleTimeout The idle timeout in milliseconds, or 0 to disable liveness checks
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        mIdleTimeout = idleTimeout;
+    }
+
+    public int getProbeTimeout() {
+        return mProbeTimeout;
+    }
+
+    /**
+     * Sets how long we wait for any data after probing, before failing the connection.
+     *
+     * @param probeTimeout The probe timeout in milliseconds
+     */
+    public void setProbeTimeout(int probeTimeout) {
+        mProbeTimeout = probeTimeout;
+    }
+
+    // HtspConnection.Listener Methods
+    @Override
+    public Handler getHandler() {
+        return null;
+    }
+
+    @Override
+    public void setConnection(@NonNull HtspConnection connection) {
+        mConnection = connection;
+    }
+
+    @Override
+    public void onConnectionStateChange(@NonNull HtspConnection.State state) {
+        if (state == HtspConnection.State.CONNECTED) {
+            start();
+        } else if (state != HtspConnection.State.CONNECTING) {
+            stop();
+        }
+    }
+
+    // Internal Methods
+    private void start() {
+        synchronized (mLock) {
+            cancelTimer();
+
+            if (mIdleTimeout <= 0) {
+                Log.d(TAG, "Liveness checks disabled");
+                return;
+            }
+
+            int interval = Math.max(1, Math.min(Math.min(mIdleTimeout, mProbeTimeout) / 4, MAX_CHECK_INTERVAL));
+
+            mProbeSentTime = -1;
+            mTimer = new Timer(TAG, true);
+            mTimer.schedule(new CheckTimerTask(), interval, interval);
+        }
+    }
+
+    private void stop() {
+        synchronized (mLock) {
+            cancelTimer();
+            mProbeSentTime = -1;
+        }
+    }
+
+    private void cancelTimer() {
+        if (mTimer != null) {
+            mTimer.cancel();
+            mTimer.purge();
+            mTimer = null;
+        }
+    }
+
+    private void check() {
+        final HtspConnection connection = mConnection;
+
+        if (connection == null || !connection.isConnected()) {
+            return;
+        }
+
+        final long idleTime = connection.getIdleTime();
+        boolean probe = false;
+        boolean fail = false;
+
+        synchronized (mLock) {
+            if (mTimer == null) {
+                return;
+            }
+
+            if (mProbeSentTime != -1) {
+                long sinceProbe = (System.nanoTime() - mProbeSentTime) / 1000000;
+
+                if (idleTime <= sinceProbe) {
+                    // We've received something since probing, all is well. Both are in whole
+                    // milliseconds, so a reply on a fast link can look to arrive as it was sent.
+                    mProbeSentTime = -1;
+                } else if (sinceProbe >= mProbeTimeout) {
+                    Log.e(TAG, "Nothing received for " + idleTime + "ms, and no response to probe after "
+                            + sinceProbe + "ms, failing connection");
+                    cancelTimer();
+                    mProbeSentTime = -1;
+                    fail = true;
+                }
+            } else if (idleTime >= mIdleTimeout) {
+                Log.d(TAG, "Nothing received for " + idleTime + "ms, probing connection");
+                probe = true;
+            }
+        }
+
+        // Both of these end up taking the HtspConnection's lock, so must be done outside of ours
+        if (probe) {
+            // Taken before sending, so a reply which arrives straight away still counts
+            final long sentTime = System.nanoTime();
+
+            if (sendProbe()) {
+                synchronized (mLock) {
+                    if (mTimer != null) {
+                        mProbeSentTime = sentTime;
+                    }
+                }
+            }
+        }
+
+        if (fail) {
+            connection.failConnection();
+        }
+    }
+
+    /**
+     * @return true if the probe was sent, false if it wasn't and the next check should try again
+     */
+    private boolean sendProbe() {
+        HtspMessage request = new HtspMessage();
+        request.put("method", "getSysTime");
+
+        try {
+            mDispatcher.sendMessage(request);
+            return true;
+        } catch (HtspNotConnectedException e) {
+            // The connection has already gone away, we'll be stopped shortly
+            Log.w(TAG, "Failed to send liveness probe, not connected");
+        } catch (HtspRateLimitedException e) {
+            Log.w(TAG, "Failed to send liveness probe, rate limited");
+        }
+
+        return false;
+    }
+
+    private class CheckTimerTask extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                check();
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to check connection liveness", e);
+            }
+        }
+    }
+}
@@ -30,6 +30,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import ie.macinnes.htsp.HtspMessage;
 import ie.macinnes.htsp.HtspNotConnectedException;
+import ie.macinnes.htsp.HtspRateLimitedException;
+import ie.macinnes.htsp.SimpleHtspConnection;
 
 /**
  * Handles a Subscription on a HTSP Connection
@@ -70,6 +72,7 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
     }
 
     private final HtspMessage.Dispatcher mDispatcher;
+    private final SystemTimeProbe mSystemTimeProbe;
     private final Set<Listener> mListeners = new CopyOnWriteArraySet<>();
     private final int mSubscriptionId;
 
@@ -85,8 +88,22 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
 
     private boolean mIsSubscribed = false;
 
+    /**
+     * @param dispatcher The dispatcher to subscribe through. If it's a SimpleHtspConnection, it's
+     *                   SystemTimeProbe is used to estimate the stream start time
+     */
     public Subscriber(@NonNull HtspMessage.Dispatcher dispatcher) {
+        this(dispatcher, dispatcher instanceof SimpleHtspConnection
+                ? ((SimpleHtspConnection) dispatcher).getSystemTimeProbe() : null);
+    }
+
+    /**
+     * @param dispatcher The dispatcher to subscribe through
+     * @param systemTimeProbe An optional SystemTimeProbe, used to estimate the stream start time
+     */
+    public Subscriber(@NonNull HtspMessage.Dispatcher dispatcher, SystemTimeProbe systemTimeProbe) {
         mDispatcher = dispatcher;
+        mSystemTimeProbe = systemTimeProbe;
 
         mSubscriptionId = mSubscriptionCount.incrementAndGet();
     }
@@ -111,23 +128,23 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
         return mSubscriptionId;
     }
 
-    public void subscribe(long channelId) throws HtspNotConnectedException {
+    public void subscribe(long channelId) throws HtspNotConnectedException, HtspRateLimitedException {
         subscribe(channelId, null, DEFAULT_TIMESHIFT_PERIOD);
     }
 
-    public void subscribe(long channelId, String profile) throws HtspNotConnectedException {
+    public void subscribe(long channelId, String profile) throws HtspNotConnectedException, HtspRateLimitedException {
         subscribe(channelId, profile, DEFAULT_TIMESHIFT_PERIOD);
     }
 
-    public void subscribe(long channelId, int timeshiftPeriod) throws HtspNotConnectedException {
+    public void subscribe(long channelId, int timeshiftPeriod) throws HtspNotConnectedException, HtspRateLimitedException {
         subscribe(channelId, null, timeshiftPeriod);
     }
 
-    public void subscribe(long channelId, String profile, int timeshiftPeriod) throws HtspNotConnectedException {
+    public void subscribe(long channelId, String profile, int timeshiftPeriod) throws HtspNotConnectedException, HtspRateLimitedException {
         Log.i(TAG, "Requesting subscription to channel " + mChannelId);
 
         if (!mIsSubscribed) {
-            mDispatcher.addMessageListener(this);
+            mDispatcher.registerSubscription(mSubscriptionId, this);
         }
 
         mChannelId = channelId;
@@ -161,18 +178,14 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
 
         mIsSubscribed = false;
 
-        mDispatcher.removeMessageListener(this);
+        mDispatcher.unregisterSubscription(mSubscriptionId);
 
         HtspMessage unsubscribeRequest = new HtspMessage();
 
         unsubscribeRequest.put("method", "unsubscribe");
         unsubscribeRequest.put("subscriptionId", mSubscriptionId);
 
-        try {
-            mDispatcher.sendMessage(unsubscribeRequest);
-        } catch (HtspNotConnectedException e) {
-            // Ignore: If we're not connected, TVHeadend has already unsubscribed us
-        }
+        sendControlMessage(unsubscribeRequest);
     }
 
     public void setSpeed(int speed) {
@@ -184,11 +197,7 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
         subscriptionSpeedRequest.put("subscriptionId", mSubscriptionId);
         subscriptionSpeedRequest.put("speed", speed);
 
-        try {
-            mDispatcher.sendMessage(subscriptionSpeedRequest);
-        } catch (HtspNotConnectedException e) {
-            // Ignore: If we're not connected, TVHeadend has already unsubscribed us
-        }
+        sendControlMessage(subscriptionSpeedRequest);
     }
 
     public void pause() {
@@ -209,11 +218,7 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
         subscriptionSkipRequest.put("time", time);
         subscriptionSkipRequest.put("absolute", 1);
 
-        try {
-            mDispatcher.sendMessage(subscriptionSkipRequest);
-        } catch (HtspNotConnectedException e) {
-            // Ignore: If we're not connected, TVHeadend has already unsubscribed us
-        }
+        sendControlMessage(subscriptionSkipRequest);
     }
 
     public void live() {
@@ -224,11 +229,7 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
         subscriptionLiveRequest.put("method", "subscriptionLive");
         subscriptionLiveRequest.put("subscriptionId", mSubscriptionId);
 
-        try {
-            mDispatcher.sendMessage(subscriptionLiveRequest);
-        } catch (HtspNotConnectedException e) {
-            // Ignore: If we're not connected, TVHeadend has already unsubscribed us
-        }
+        sendControlMessage(subscriptionLiveRequest);
     }
 
     public long getTimeshiftOffsetPts() {
@@ -340,14 +341,35 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
                 subscribe(mChannelId, mProfile, mTimeshiftPeriod);
             } catch (HtspNotConnectedException e) {
                 Log.e(TAG, "Resubscribing to channel failed, not connected");
+            } catch (HtspRateLimitedException e) {
+                Log.e(TAG, "Resubscribing to channel failed, rate limited");
             }
         }
     }
 
     // Misc Internal Methods
+    private void sendControlMessage(@NonNull HtspMessage message) {
+        try {
+            mDispatcher.sendMessage(message);
+        } catch (HtspNotConnectedException e) {
+            // Ignore: If we're not connected, TVHeadend has already unsubscribed us
+        } catch (HtspRateLimitedException e) {
+            // Subscription control messages are exempt from our own rate limiting, but the request
+            // has still been refused, so the subscription hasn't changed
+            Log.e(TAG, "Failed to send " + message.getString("method") + " request, rate limited");
+        }
+    }
+
     private void onSubscriptionStart(@NonNull HtspMessage message) {
-        // TODO: -1000 is a total hack, we're running this about 500ms after the actual start time..
-        mStartTime = (System.currentTimeMillis() * 1000) - 1000;
+        final long now = System.currentTimeMillis() * 1000;
+
+        if (mSystemTimeProbe != null && mSystemTimeProbe.hasRtt()) {
+            // The server started the stream roughly one network hop before we heard about it
+            mStartTime = now - mSystemTimeProbe.getOneWayDelay();
+        } else {
+            // TODO: -1000 is a total hack, we're running this about 500ms after the actual start time..
+            mStartTime = now - 1000;
+        }
     }
 
     private void onSubscriptionStatus(@NonNull HtspMessage message) {
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp.tasks;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.htsp.HtspNotConnectedException;
+import ie.macinnes.htsp.HtspRateLimitedException;
+import ie.macinnes.htsp.LatencyHistogram;
+
+/**
+ * Measures round trip latency to the server, by periodically sending getSysTime requests.
+ *
+ * * Waits for Authenticator State==AUTHENTICATED
+ * * Sends a short burst of getSysTime requests, then one every PROBE_INTERVAL
+ * * Records each round trip into a histogram, and a TCP style smoothed RTT / RTT variance
+ * * Stops once authentication is lost (e.g. the connection is closed)
+ *
+ * The server's reply isn't used, TVHeadend reports it's time in whole seconds, which is far too
+ * coarse to estimate a clock offset from. The RTT is measured entirely on our side, and is
+ * accurate.
+ */
+public class SystemTimeProbe implements Authenticator.Listener {
+    private static final String TAG = SystemTimeProbe.class.getSimpleName();
+
+    private static final int PROBE_TIMEOUT = 5000;
+    private static final int PROBE_INTERVAL = 30000;
+    private static final int BURST_INTERVAL = 1000;
+    private static final int BURST_COUNT = 4;
+
+    private final HtspMessage.Dispatcher mDispatcher;
+    private final LatencyHistogram mRttHistogram = new LatencyHistogram();
+
+    private final Object mLock = new Object();
+    private Timer mTimer;
+    private int mProbeCount = 0;
+
+    // All RTT values are in microseconds
+    private long mSmoothedRtt = -1;
+    private long mRttVariance = -1;
+
+    public SystemTimeProbe(@NonNull HtspMessage.Dispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * @return The histogram of all recorded round trip times, in microseconds
+     */
+    public LatencyHistogram getRttHistogram() {
+        return mRttHistogram;
+    }
+
+    public boolean hasRtt() {
+        return getSmoothedRtt() != -1;
+    }
+
+    /**
+     * @return The smoothed round trip time in microseconds, or -1 if not yet measured
+     */
+    public long getSmoothedRtt() {
+        synchronized (mLock) {
+            return mSmoothedRtt;
+        }
+    }
+
+    /**
+     * @return The round trip time variance in microseconds, or -1 if not yet measured
+     */
+    public long getRttVariance() {
+        synchronized (mLock) {
+            return mRttVariance;
+        }
+    }
+
+    /**
+     * @return The estimated one way delay to the server in microseconds, or -1 if not yet measured
+     */
+    public long getOneWayDelay() {
+        long rtt = getSmoothedRtt();
+        return rtt == -1 ? -1 : rtt / 2;
+    }
+
+    /**
+     * Calculates a request timeout from the measured RTT, in the same way TCP calculates it's
+     * retransmission timeout (SRTT + 4 * RTTVAR).
+     *
+     * @param minimum The minimum timeout to return, and the timeout used before any measurements
+     * @return The timeout in milliseconds
+     */
+    public int getTimeout(int minimum) {
+        synchronized (mLock) {
+            if (mSmoothedRtt == -1) {
+                return minimum;
+            }
+
+            long timeout = (mSmoothedRtt + 4 * mRttVariance) / 1000;
+
+            return (int) Math.max(minimum, Math.min(timeout, Integer.MAX_VALUE));
+        }
+    }
+
+    // Authenticator.Listener Methods
+    @Override
+    public Handler getHandler() {
+        return null;
+    }
+
+    @Override
+    public void onAuthenticationStateChange(@NonNull Authenticator.State state) {
+        if (state == Authenticator.State.AUTHENTICATED) {
+            start();
+        } else {
+            stop();
+        }
+    }
+
+    // Internal Methods
+    private void start() {
+        synchronized (mLock) {
+            cancelTimer();
+            mProbeCount = 0;
+            mTimer = new Timer(TAG, true);
+            mTimer.schedule(new ProbeTimerTask(mTimer), 0);
+        }
+    }
+
+    private void stop() {
+        synchronized (mLock) {
+            cancelTimer();
+        }
+    }
+
+    private void cancelTimer() {
+        if (mTimer != null) {
+            mTimer.cancel();
+            mTimer.purge();
+            mTimer = null;
+        }
+    }
+
+    private void scheduleNextProbe(Timer timer) {
+        synchronized (mLock) {
+            if (mTimer == null || mTimer != timer) {
+                // We've been stopped, or restarted with a new timer.
+                return;
+            }
+
+            mProbeCount += 1;
+            int delay = mProbeCount < BURST_COUNT ? BURST_INTERVAL : PROBE_INTERVAL;
+
+            try {
+                mTimer.schedule(new ProbeTimerTask(mTimer), delay);
+            } catch (IllegalStateException e) {
+                // The timer was cancelled underneath us, we've been stopped.
+            }
+        }
+    }
+
+    private void probe() {
+        HtspMessage request = new HtspMessage();
+        request.put("method", "getSysTime");
+
+        long startTime = System.nanoTime();
+
+        HtspMessage response;
+        try {
+            response = mDispatcher.sendMessage(request, PROBE_TIMEOUT);
+        } catch (HtspNotConnectedException e) {
+            Log.w(TAG, "Failed to send getSysTime request, not connected");
+            return;
+        } catch (HtspRateLimitedException e) {
+            Log.w(TAG, "Failed to send getSysTime request, rate limited");
+            return;
+        }
+
+        long rtt = (System.nanoTime() - startTime) / 1000;
+
+        if (response == null) {
+            Log.w(TAG, "No response to getSysTime request after " + PROBE_TIMEOUT + "ms");
+            return;
+        } else if (response.containsKey("error")) {
+            Log.w(TAG, "Received error response to getSysTime request: " + response.getString("error"));
+            return;
+        }
+
+        onSample(rtt);
+    }
+
+    private void onSample(long rtt) {
+        mRttHistogram.record(rtt);
+
+        synchronized (mLock) {
+            // See RFC 6298
+            if (mSmoothedRtt == -1) {
+                mSmoothedRtt = rtt;
+                mRttVariance = rtt / 2;
+            } else {
+                mRttVariance = (3 * mRttVariance + Math.abs(mSmoothedRtt - rtt)) / 4;
+                mSmoothedRtt = (7 * mSmoothedRtt + rtt) / 8;
+            }
+
+            Log.d(TAG, "RTT: " + rtt + "us SRTT: " + mSmoothedRtt + "us RTTVAR: " + mRttVariance + "us");
+        }
+    }
+
+    private class ProbeTimerTask extends TimerTask {
+        private final Timer mProbeTimer;
+
+        ProbeTimerTask(Timer timer) {
+            mProbeTimer = timer;
+        }
+
+        @Override
+        public void run() {
+            try {
+                probe();
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to probe server time", e);
+            }
+
+            scheduleNextProbe(mProbeTimer);
+        }
+    }
+}
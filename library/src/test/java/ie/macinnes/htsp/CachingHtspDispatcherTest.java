@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CachingHtspDispatcherTest {
+    private FakeDispatcher mDispatcher;
+    private CachingHtspDispatcher mCachingDispatcher;
+
+    @Before
+    public void setUp() {
+        mDispatcher = new FakeDispatcher();
+        mCachingDispatcher = new CachingHtspDispatcher(mDispatcher);
+    }
+
+    @Test
+    public void inFlightRequestIsShared() throws Exception {
+        final HtspFuture<HtspMessage> first = mCachingDispatcher.sendRequest(getChannel(1), 5000);
+        final HtspFuture<HtspMessage> second = mCachingDispatcher.sendRequest(getChannel(1), 5000);
+        final HtspFuture<HtspMessage> other = mCachingDispatcher.sendRequest(getChannel(2), 5000);
+
+        assertEquals(2, mDispatcher.getSent().size());
+        assertFalse(first.isDone());
+
+        mDispatcher.reply(0, channel(1, "One"));
+
+        assertEquals("One", first.get().getString("channelName"));
+        assertEquals("One", second.get().getString("channelName"));
+        assertFalse(other.isDone());
+    }
+
+    @Test
+    public void concurrentRequestsSendOnce() throws Exception {
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<HtspFuture<HtspMessage>> futures = new ArrayList<>();
+        final List<Thread> workers = new ArrayList<>();
+
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        HtspFuture<HtspMessage> future = mCachingDispatcher.sendRequest(getChannel(1), 5000);
+                        synchronized (futures) {
+                            futures.add(future);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(threads, futures.size());
+        assertEquals(1, mDispatcher.getSent().size());
+
+        mDispatcher.reply(0, channel(1, "One"));
+
+        for (HtspFuture<HtspMessage> future : futures) {
+            assertEquals("One", future.get().getString("channelName"));
+        }
+    }
+
+    @Test
+    public void callersGetTheirOwnCopy() throws Exception {
+        final HtspFuture<HtspMessage> first = mCachingDispatcher.sendRequest(getChannel(1), 5000);
+        final HtspFuture<HtspMessage> second = mCachingDispatcher.sendRequest(getChannel(1), 5000);
+        mDispatcher.reply(0, channel(1, "One"));
+
+        assertNotSame(first.get(), second.get());
+        first.get().put("channelName", "Changed");
+
+        final HtspFuture<HtspMessage> cached = mCachingDispatcher.sendRequest(getChannel(1), 5000);
+        assertEquals("One", second.get().getString("channelName"));
+        assertEquals("One", cached.get().getString("channelName"));
+    }
+
+    @Test
+    public void cancellingOneCallerLeavesTheOthers() throws Exception {
+        final HtspFuture<HtspMessage> first = mCachingDispatcher.sendRequest(getChannel(1), 5000);
+        final HtspFuture<HtspMessage> second = mCachingDispatcher.sendRequest(getChannel(1), 5000);
+
+        first.cancel(true);
+        mDispatcher.reply(0, channel(1, "One"));
+
+        assertTrue(first.isCancelled());
+        assertEquals("One", second.get().getString("channelName"));
+    }
+
+    @Test
+    public void responseIsCachedUntilUpdated() throws Exception {
+        mCachingDispatcher.sendRequest(getChannel(1), 5000);
+        mCachingDispatcher.sendRequest(getChannel(2), 5000);
+        mDispatcher.reply(0, channel(1, "One"));
+        mDispatcher.reply(1, channel(2, "Two"));
+
+        assertEquals("One", mCachingDispatcher.sendRequest(getChannel(1), 5000).get().getString("channelName"));
+        assertEquals(2, mDispatcher.getSent().size());
+
+        final HtspMessage update = new HtspMessage();
+        update.put("method", "channelUpdate");
+        update.put("channelId", 1);
+        mCachingDispatcher.onMessage(update);
+
+        // Only the updated channel is dropped
+        final HtspFuture<HtspMessage> refetch = mCachingDispatcher.sendRequest(getChannel(1), 5000);
+        mCachingDispatcher.sendRequest(getChannel(2), 5000);
+        assertEquals(3, mDispatcher.getSent().size());
+
+        mDispatcher.reply(2, channel(1, "Renamed"));
+        assertEquals("Renamed", refetch.get().getString("channelName"));
+    }
+
+    @Test
+    public void errorReplyIsNotCached() throws Exception {
+        final HtspFuture<HtspMessage> first = mCachingDispatcher.sendRequest(getChannel(1), 5000);
+        final HtspFuture<HtspMessage> second = mCachingDispatcher.sendRequest(getChannel(1), 5000);
+
+        final HtspMessage error = new HtspMessage();
+        error.put("error", "Channel does not exist");
+        mDispatcher.reply(0, error);
+
+        // Those already waiting still get the error reply
+        assertEquals("Channel does not exist", first.get().getString("error"));
+        assertEquals("Channel does not exist", second.get().getString("error"));
+
+        final HtspFuture<HtspMessage> retry = mCachingDispatcher.sendRequest(getChannel(1), 5000);
+        assertEquals(2, mDispatcher.getSent().size());
+
+        mDispatcher.reply(1, channel(1, "One"));
+        assertEquals("One", retry.get().getString("channelName"));
+    }
+
+    @Test
+    public void rejectedRequestIsNotCached() throws Exception {
+        mDispatcher.setFailure(new HtspRateLimitedException("Rate limited"));
+
+        try {
+            mCachingDispatcher.sendRequest(getChannel(1), 5000).get();
+            fail("Expected the request to be rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof HtspRateLimitedException);
+        }
+
+        mDispatcher.setFailure(null);
+
+        final HtspFuture<HtspMessage> retry = mCachingDispatcher.sendRequest(getChannel(1), 5000);
+        assertEquals(1, mDispatcher.getSent().size());
+
+        mDispatcher.reply(0, channel(1, "One"));
+        assertEquals("One", retry.get().getString("channelName"));
+    }
+
+    @Test
+    public void notConnectedIsNotCached() throws Exception {
+        mDispatcher.setFailure(new HtspNotConnectedException("Not connected"));
+
+        try {
+            mCachingDispatcher.sendRequest(getChannel(1), 5000);
+            fail("Expected HtspNotConnectedException");
+        } catch (HtspNotConnectedException e) {
+            // Expected
+        }
+
+        mDispatcher.setFailure(null);
+
+        mCachingDispatcher.sendRequest(getChannel(1), 5000);
+        assertEquals(1, mDispatcher.getSent().size());
+    }
+
+    @Test
+    public void requestsWithSeqArePassedThrough() throws Exception {
+        final HtspMessage request = getChannel(1);
+        request.put("seq", 42L);
+
+        final HtspFuture<HtspMessage> first = mCachingDispatcher.sendRequest(request, 5000);
+        final HtspFuture<HtspMessage> second = mCachingDispatcher.sendRequest(request, 5000);
+
+        assertEquals(2, mDispatcher.getSent().size());
+        assertSame(request, mDispatcher.getSent().get(0));
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void batchKeepsOrder() throws Exception {
+        final HtspMessage uncached = new HtspMessage();
+        uncached.put("method", "getDvrCutpoints");
+        uncached.put("id", 7);
+
+        final List<HtspFuture<HtspMessage>> futures = mCachingDispatcher.sendRequests(
+                Arrays.asList(getChannel(1), uncached, getChannel(1)), 5000);
+
+        // The uncached request goes first, as a batch, then the one shared getChannel
+        final List<HtspMessage> sent = mDispatcher.getSent();
+        assertEquals(2, sent.size());
+        assertEquals("getDvrCutpoints", sent.get(0).getString("method"));
+        assertEquals("getChannel", sent.get(1).getString("method"));
+
+        final HtspMessage cutpoints = new HtspMessage();
+        cutpoints.put("cutpoints", new ArrayList<>());
+        mDispatcher.reply(0, cutpoints);
+        mDispatcher.reply(1, channel(1, "One"));
+
+        assertEquals("One", futures.get(0).get().getString("channelName"));
+        assertTrue(futures.get(1).get().containsKey("cutpoints"));
+        assertEquals("One", futures.get(2).get().getString("channelName"));
+    }
+
+    // Internal Methods
+    private static HtspMessage getChannel(int channelId) {
+        final HtspMessage request = new HtspMessage();
+        request.put("method", "getChannel");
+        request.put("channelId", channelId);
+        return request;
+    }
+
+    private static HtspMessage channel(int channelId, String name) {
+        final HtspMessage reply = new HtspMessage();
+        reply.put("channelId", channelId);
+        reply.put("channelName", name);
+        return reply;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Dispatcher which records what's sent to it, for tests to reply to by hand or with a Responder
+ */
+class FakeDispatcher implements HtspMessage.Dispatcher {
+    /**
+     * Replies to requests as they're sent
+     */
+    interface Responder {
+        /**
+         * @param request The request
+         * @return The reply, or null to leave the request waiting for a reply by hand
+         */
+        HtspMessage respond(@NonNull HtspMessage request);
+    }
+
+    private final Object mLock = new Object();
+    private final List<HtspMessage> mSent = new ArrayList<>();
+    private final List<HtspFuture<HtspMessage>> mFutures = new ArrayList<>();
+
+    private volatile Responder mResponder;
+    private volatile HtspException mFailure;
+    private long mSequence = 0;
+
+    void setResponder(Responder responder) {
+        mResponder = responder;
+    }
+
+    /**
+     * @param failure Thrown by every send from now on, or null to stop failing
+     */
+    void setFailure(HtspException failure) {
+        mFailure = failure;
+    }
+
+    List<HtspMessage> getSent() {
+        synchronized (mLock) {
+            return new ArrayList<>(mSent);
+        }
+    }
+
+    List<HtspMessage> getSent(String method) {
+        final List<HtspMessage> sent = new ArrayList<>();
+        for (HtspMessage message : getSent()) {
+            if (method.equals(message.getString("method", null))) {
+                sent.add(message);
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Replies to the index'th message sent
+     */
+    void reply(int index, HtspMessage reply) {
+        final HtspFuture<HtspMessage> future;
+        synchronized (mLock) {
+            future = mFutures.get(index);
+        }
+        future.complete(reply);
+    }
+
+    // HtspMessage.Dispatcher Methods
+    @Override
+    public void addMessageListener(HtspMessage.Listener listener) {
+    }
+
+    @Override
+    public void addMessageListener(HtspMessage.Listener listener, String... methods) {
+    }
+
+    @Override
+    public void registerSubscription(int subscriptionId, HtspMessage.Listener listener) {
+    }
+
+    @Override
+    public void unregisterSubscription(int subscriptionId) {
+    }
+
+    @Override
+    public void removeMessageListener(HtspMessage.Listener listener) {
+    }
+
+    @Override
+    public long sendMessage(@NonNull HtspMessage message) throws HtspNotConnectedException, HtspRateLimitedException {
+        throwFailure();
+        return send(message).mSeq;
+    }
+
+    @Override
+    public HtspMessage sendMessage(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException, HtspRateLimitedException {
+        throwFailure();
+        return send(message).mFuture.await(timeout);
+    }
+
+    @Override
+    public HtspFuture<HtspMessage> sendRequest(@NonNull HtspMessage message, int timeout) throws HtspNotConnectedException {
+        if (mFailure instanceof HtspRateLimitedException) {
+            // As the real Dispatcher does, rejections fail the future
+            return HtspFuture.failed(mFailure);
+        } else if (mFailure != null) {
+            throw (HtspNotConnectedException) mFailure;
+        }
+
+        return send(message).mFuture;
+    }
+
+    @Override
+    public List<HtspFuture<HtspMessage>> sendRequests(@NonNull List<HtspMessage> messages, int timeout) throws HtspNotConnectedException {
+        final List<HtspFuture<HtspMessage>> futures = new ArrayList<>(messages.size());
+        for (HtspMessage message : messages) {
+            futures.add(sendRequest(message, timeout));
+        }
+        return futures;
+    }
+
+    // Internal Methods
+    private void throwFailure() throws HtspNotConnectedException, HtspRateLimitedException {
+        if (mFailure instanceof HtspRateLimitedException) {
+            throw (HtspRateLimitedException) mFailure;
+        } else if (mFailure != null) {
+            throw (HtspNotConnectedException) mFailure;
+        }
+    }
+
+    private Sent send(HtspMessage message) {
+        final HtspFuture<HtspMessage> future = new HtspFuture<>();
+        final long seq;
+
+        synchronized (mLock) {
+            seq = ++mSequence;
+            mSent.add(message);
+            mFutures.add(future);
+        }
+
+        final Responder responder = mResponder;
+        if (responder != null) {
+            HtspMessage reply = responder.respond(message);
+            if (reply != null) {
+                future.complete(reply);
+            }
+        }
+
+        return new Sent(seq, future);
+    }
+
+    private static class Sent {
+        final long mSeq;
+        final HtspFuture<HtspMessage> mFuture;
+
+        Sent(long seq, HtspFuture<HtspMessage> future) {
+            mSeq = seq;
+            mFuture = future;
+        }
+    }
+}
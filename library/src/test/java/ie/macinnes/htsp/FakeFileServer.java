@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Serves a single file of patterned bytes through a FakeDispatcher, as TVHeadend would
+ */
+class FakeFileServer implements FakeDispatcher.Responder {
+    private static final int FILE_ID = 3;
+
+    private volatile long mSize;
+    private volatile long mMtime = 1500000000;
+    private volatile boolean mFailReads = false;
+    private volatile boolean mReportSize = true;
+
+    FakeFileServer(long size) {
+        mSize = size;
+    }
+
+    void setSize(long size) {
+        mSize = size;
+    }
+
+    /**
+     * @param failReads true to reply to every fileRead with an error
+     */
+    void setFailReads(boolean failReads) {
+        mFailReads = failReads;
+    }
+
+    /**
+     * @param reportSize false to leave the size out of fileOpen replies, as for a recording in
+     *                   progress
+     */
+    void setReportSize(boolean reportSize) {
+        mReportSize = reportSize;
+    }
+
+    static byte getByte(long offset) {
+        return (byte) (offset % 251);
+    }
+
+    static byte[] getBytes(long offset, int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = getByte(offset + i);
+        }
+        return data;
+    }
+
+    static boolean isPattern(byte[] data, long offset) {
+        return Arrays.equals(getBytes(offset, data.length), data);
+    }
+
+    // FakeDispatcher.Responder Methods
+    @Override
+    public HtspMessage respond(@NonNull HtspMessage request) {
+        final String method = request.getString("method");
+        final HtspMessage reply = new HtspMessage();
+
+        switch (method) {
+            case "fileOpen":
+                reply.put("id", FILE_ID);
+                if (mReportSize) {
+                    reply.put("size", mSize);
+                    reply.put("mtime", mMtime);
+                }
+                break;
+            case "fileStat":
+                reply.put("size", mSize);
+                reply.put("mtime", mMtime);
+                break;
+            case "fileRead":
+                if (mFailReads) {
+                    reply.put("error", "Read failed");
+                    break;
+                }
+
+                final long offset = request.getLong("offset");
+                final long end = Math.min(mSize, offset + request.getLong("size"));
+                reply.put("data", getBytes(offset, (int) Math.max(0, end - offset)));
+                break;
+            default:
+                break;
+        }
+
+        return reply;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FileReadControllerTest {
+    private static final int MAX_WINDOW = 8;
+
+    @Test
+    public void smallFileInOneRead() {
+        assertEquals(4096, new FileReadController(4096, MAX_WINDOW).getChunkSize());
+        assertEquals(1, new FileReadController(0, MAX_WINDOW).getChunkSize());
+    }
+
+    @Test
+    public void slowStart() {
+        final FileReadController controller = new FileReadController(-1, MAX_WINDOW);
+        final int[] chunkSizes = {65536, 131072, 262144, 524288, FileReadController.MAX_CHUNK_SIZE};
+
+        for (int chunkSize : chunkSizes) {
+            assertEquals(chunkSize, controller.getChunkSize());
+            assertEquals(1, controller.getWindow());
+
+            read(controller, controller.getChunkSize());
+        }
+
+        assertEquals(FileReadController.MAX_CHUNK_SIZE, controller.getChunkSize());
+    }
+
+    @Test
+    public void shortReadDoesNotGrowChunk() {
+        final FileReadController controller = new FileReadController(-1, MAX_WINDOW);
+
+        read(controller, 1000);
+
+        assertEquals(65536, controller.getChunkSize());
+        assertEquals(1, controller.getWindow());
+    }
+
+    @Test
+    public void windowCoversBandwidthDelayProduct() {
+        // 1MB every 50ms with a 125ms round trip is 2.5 chunks in flight, so 3 plus one spare
+        final FileReadController controller = steadyState(MAX_WINDOW, 20480000, 125);
+
+        assertBandwidth(20480000, controller);
+        assertEquals(4, controller.getWindow());
+    }
+
+    @Test
+    public void slowLinkNeedsSmallWindow() {
+        // 1MB every 250ms with a 125ms round trip is half a chunk in flight
+        final FileReadController controller = steadyState(MAX_WINDOW, 4096000, 125);
+
+        assertBandwidth(4096000, controller);
+        assertEquals(2, controller.getWindow());
+    }
+
+    @Test
+    public void windowLimit() {
+        assertEquals(2, steadyState(2, 20480000, 125).getWindow());
+        assertEquals(1, steadyState(1, 20480000, 125).getWindow());
+    }
+
+    // Internal Methods
+    private static void read(FileReadController controller, long received) {
+        final long sentTime = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(50);
+        controller.onRead(controller.getChunkSize(), received, sentTime);
+    }
+
+    /**
+     * Simulates a link, starting with one read at a time through slow start, then keeping reads
+     * queued at the server so responses arrive back to back, as fast as the link delivers them
+     *
+     * @param bandwidth The link's bandwidth, in bytes per second
+     * @param rtt The round trip time with nothing queued, in milliseconds
+     */
+    private static FileReadController steadyState(int maxWindow, long bandwidth, long rtt) {
+        final FileReadController controller = new FileReadController(-1, maxWindow);
+        final long rttNanos = TimeUnit.MILLISECONDS.toNanos(rtt);
+        long now = 0;
+
+        while (controller.getChunkSize() < FileReadController.MAX_CHUNK_SIZE) {
+            final long sentTime = now;
+            now += rttNanos;
+            controller.onRead(controller.getChunkSize(), controller.getChunkSize(), sentTime, now);
+        }
+
+        final long serviceTime = controller.getChunkSize() * TimeUnit.SECONDS.toNanos(1) / bandwidth;
+
+        for (int i = 0; i < 50; i++) {
+            // Sent well before the previous response arrived, so queueing inflates it's round trip
+            final long sentTime = now - 2 * rttNanos;
+            now += serviceTime;
+            controller.onRead(controller.getChunkSize(), controller.getChunkSize(), sentTime, now);
+        }
+
+        return controller;
+    }
+
+    private static void assertBandwidth(long expected, FileReadController controller) {
+        final long bandwidth = controller.getBandwidth();
+        assertTrue("Bandwidth was " + bandwidth, Math.abs(bandwidth - expected) < expected / 100);
+    }
+}
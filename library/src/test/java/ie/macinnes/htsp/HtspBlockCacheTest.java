@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HtspBlockCacheTest {
+    private static final String SERVER = "tvheadend:9982";
+    private static final int BLOCK_SIZE = HtspBlockCache.BLOCK_SIZE;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("blocks", null);
+        assertTrue(mDirectory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        delete(mDirectory);
+    }
+
+    @Test
+    public void putAndGet() {
+        final HtspBlockCache cache = new HtspBlockCache(mDirectory, 10 * BLOCK_SIZE);
+
+        cache.validate(SERVER, "dvrfile/1", 2 * BLOCK_SIZE, 1);
+        cache.putBlock(SERVER, "dvrfile/1", BLOCK_SIZE, block(BLOCK_SIZE, 1000));
+
+        assertNull(cache.getBlock(SERVER, "dvrfile/1", 0));
+        assertBlock(cache.getBlock(SERVER, "dvrfile/1", BLOCK_SIZE), BLOCK_SIZE, 1000);
+        assertNull(cache.getBlock("elsewhere:9982", "dvrfile/1", BLOCK_SIZE));
+        assertEquals(1000, cache.getTotalBytes());
+    }
+
+    @Test
+    public void unvalidatedBlocksAreIgnored() {
+        final HtspBlockCache cache = new HtspBlockCache(mDirectory, 10 * BLOCK_SIZE);
+
+        cache.putBlock(SERVER, "dvrfile/1", 0, block(0, 1000));
+
+        assertNull(cache.getBlock(SERVER, "dvrfile/1", 0));
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    @Test
+    public void changedFileIsDropped() {
+        final HtspBlockCache cache = new HtspBlockCache(mDirectory, 10 * BLOCK_SIZE);
+
+        cache.validate(SERVER, "dvrfile/1", BLOCK_SIZE, 1);
+        cache.putBlock(SERVER, "dvrfile/1", 0, block(0, 1000));
+
+        // Unchanged
+        cache.validate(SERVER, "dvrfile/1", BLOCK_SIZE, 1);
+        assertNotNull(cache.getBlock(SERVER, "dvrfile/1", 0));
+
+        cache.validate(SERVER, "dvrfile/1", BLOCK_SIZE, 2);
+        assertNull(cache.getBlock(SERVER, "dvrfile/1", 0));
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        final HtspBlockCache cache = new HtspBlockCache(mDirectory, 3000);
+
+        cache.validate(SERVER, "dvrfile/1", 3 * BLOCK_SIZE, 1);
+        cache.putBlock(SERVER, "dvrfile/1", 0, block(0, 1000));
+        cache.putBlock(SERVER, "dvrfile/1", BLOCK_SIZE, block(BLOCK_SIZE, 1000));
+        cache.putBlock(SERVER, "dvrfile/1", 2 * BLOCK_SIZE, block(2 * BLOCK_SIZE, 1000));
+
+        // Makes the first block the most recently used
+        assertNotNull(cache.getBlock(SERVER, "dvrfile/1", 0));
+
+        cache.validate(SERVER, "dvrfile/2", BLOCK_SIZE, 1);
+        cache.putBlock(SERVER, "dvrfile/2", 0, block(0, 1000));
+
+        assertEquals(3000, cache.getTotalBytes());
+        assertNotNull(cache.getBlock(SERVER, "dvrfile/1", 0));
+        assertNull(cache.getBlock(SERVER, "dvrfile/1", BLOCK_SIZE));
+        assertNotNull(cache.getBlock(SERVER, "dvrfile/1", 2 * BLOCK_SIZE));
+    }
+
+    @Test
+    public void emptyDirectoriesAreRemoved() {
+        final HtspBlockCache cache = new HtspBlockCache(mDirectory, 1000);
+
+        cache.validate(SERVER, "dvrfile/1", BLOCK_SIZE, 1);
+        cache.putBlock(SERVER, "dvrfile/1", 0, block(0, 1000));
+        assertEquals(1, mDirectory.list().length);
+
+        // Evicts the only block of the first file
+        cache.validate(SERVER, "dvrfile/2", BLOCK_SIZE, 1);
+        cache.putBlock(SERVER, "dvrfile/2", 0, block(0, 1000));
+        assertEquals(1, mDirectory.list().length);
+
+        cache.clear();
+        assertEquals(0, mDirectory.list().length);
+    }
+
+    @Test
+    public void survivesRestart() {
+        final HtspBlockCache cache = new HtspBlockCache(mDirectory, 10 * BLOCK_SIZE);
+        cache.validate(SERVER, "dvrfile/1", BLOCK_SIZE, 1);
+        cache.putBlock(SERVER, "dvrfile/1", 0, block(0, 1000));
+
+        // A file validated, with no blocks, leaves nothing behind
+        cache.validate(SERVER, "dvrfile/2", BLOCK_SIZE, 1);
+
+        final HtspBlockCache reloaded = new HtspBlockCache(mDirectory, 10 * BLOCK_SIZE);
+
+        assertEquals(1000, reloaded.getTotalBytes());
+        assertEquals(1, mDirectory.list().length);
+
+        reloaded.validate(SERVER, "dvrfile/1", BLOCK_SIZE, 1);
+        assertBlock(reloaded.getBlock(SERVER, "dvrfile/1", 0), 0, 1000);
+    }
+
+    @Test
+    public void channelReadsFromCache() throws IOException {
+        final long size = 2 * BLOCK_SIZE + 100;
+        final HtspBlockCache cache = new HtspBlockCache(mDirectory, 10 * BLOCK_SIZE);
+        final FakeDispatcher dispatcher = new FakeDispatcher();
+        dispatcher.setResponder(new FakeFileServer(size));
+
+        final HtspFileChannel first = new HtspFileChannel(dispatcher, "dvrfile/1");
+        first.setBlockCache(cache, SERVER);
+        assertEquals(size, HtspFileChannelTest.readToEnd(first, 0));
+        first.close();
+
+        final int reads = dispatcher.getSent("fileRead").size();
+        assertEquals(size, cache.getTotalBytes());
+
+        // Everything comes from the cache, seeking included
+        final HtspFileChannel second = new HtspFileChannel(dispatcher, "dvrfile/1");
+        second.setBlockCache(cache, SERVER);
+        second.position(BLOCK_SIZE + 5);
+        HtspFileChannelTest.assertRead(second, BLOCK_SIZE + 5, 1000);
+        second.position(0);
+        assertEquals(size, HtspFileChannelTest.readToEnd(second, 0));
+
+        assertEquals(reads, dispatcher.getSent("fileRead").size());
+    }
+
+    // Internal Methods
+    private static ByteBuffer block(long offset, int length) {
+        return ByteBuffer.wrap(FakeFileServer.getBytes(offset, length));
+    }
+
+    private static void assertBlock(ByteBuffer block, long offset, int length) {
+        assertNotNull(block);
+        assertEquals(length, block.remaining());
+
+        final byte[] data = new byte[length];
+        block.get(data);
+        assertTrue(FakeFileServer.isPattern(data, offset));
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Feeds HtspDataHandler messages split across socket reads at awkward places, in particular the
+ * messages starting with a large BIN field, which are streamed.
+ */
+public class HtspDataHandlerTest {
+    // Comfortably over the streaming threshold
+    private static final int PAYLOAD_SIZE = 200000;
+    private static final byte[] KEY = "data".getBytes();
+
+    private final List<HtspMessage> mMessages = new ArrayList<>();
+    private HtspDataHandler mDataHandler;
+    // Thrown by the dispatcher after recording the next message, if set
+    private RuntimeException mListenerException;
+
+    @Before
+    public void setUp() {
+        HtspMessageDispatcher dispatcher = new HtspMessageDispatcher() {
+            @Override
+            public void onMessage(@NonNull HtspMessage message) {
+                mMessages.add(message);
+
+                if (mListenerException != null) {
+                    RuntimeException exception = mListenerException;
+                    mListenerException = null;
+                    throw exception;
+                }
+            }
+        };
+
+        mDataHandler = new HtspDataHandler(new HtspMessageSerializer(), dispatcher);
+    }
+
+    @Test
+    public void streamedMessageInOneRead() {
+        final byte[] payload = payload(1);
+
+        feed(split(streamedMessage(payload, 1)));
+
+        assertEquals(1, mMessages.size());
+        assertStreamedMessage(mMessages.get(0), payload, 1);
+    }
+
+    @Test
+    public void partialHeader() {
+        final byte[] payload = payload(2);
+        final byte[] message = streamedMessage(payload, 2);
+
+        // Not even the field's value length, then the key, then the rest
+        feed(split(message, 7, 12));
+
+        assertEquals(1, mMessages.size());
+        assertStreamedMessage(mMessages.get(0), payload, 2);
+    }
+
+    @Test
+    public void payloadSplitAcrossReads() {
+        final byte[] payload = payload(3);
+        final byte[] message = streamedMessage(payload, 3);
+
+        final List<Integer> offsets = new ArrayList<>();
+        for (int offset = 1000; offset < message.length; offset += 8192) {
+            offsets.add(offset);
+        }
+
+        feed(split(message, toArray(offsets)));
+
+        assertEquals(1, mMessages.size());
+        assertStreamedMessage(mMessages.get(0), payload, 3);
+    }
+
+    @Test
+    public void trailerSplitAcrossReads() {
+        final byte[] payload = payload(4);
+        final byte[] message = streamedMessage(payload, 4);
+        final int payloadEnd = 4 + 6 + KEY.length + PAYLOAD_SIZE;
+
+        // Mid payload, exactly at the end of the payload, and part way through the trailer
+        feed(split(message, 5000, payloadEnd, payloadEnd + 3));
+
+        assertEquals(1, mMessages.size());
+        assertStreamedMessage(mMessages.get(0), payload, 4);
+    }
+
+    @Test
+    public void backToBackFrames() {
+        final byte[] first = payload(5);
+        final byte[] second = payload(6);
+
+        final HtspMessage small = new HtspMessage();
+        small.put("method", "queueStatus");
+        small.put("subscriptionId", 9);
+
+        final byte[] stream = concat(
+                streamedMessage(first, 5), serialize(small), streamedMessage(second, 6));
+
+        // Reads which never line up with a message boundary
+        final List<Integer> offsets = new ArrayList<>();
+        for (int offset = 30001; offset < stream.length; offset += 30001) {
+            offsets.add(offset);
+        }
+
+        feed(split(stream, toArray(offsets)));
+
+        assertEquals(3, mMessages.size());
+        assertStreamedMessage(mMessages.get(0), first, 5);
+        assertEquals("queueStatus", mMessages.get(1).getString("method"));
+        assertEquals(9, mMessages.get(1).getInteger("subscriptionId"));
+        assertStreamedMessage(mMessages.get(2), second, 6);
+    }
+
+    @Test
+    public void frameFollowingStreamedMessageInSameRead() {
+        final byte[] payload = payload(7);
+
+        final HtspMessage small = new HtspMessage();
+        small.put("method", "signalStatus");
+
+        final byte[] stream = concat(streamedMessage(payload, 7), serialize(small));
+
+        // The second read holds the end of the payload, the trailer and the whole next message
+        feed(split(stream, 100000));
+
+        assertEquals(2, mMessages.size());
+        assertStreamedMessage(mMessages.get(0), payload, 7);
+        assertEquals("signalStatus", mMessages.get(1).getString("method"));
+    }
+
+    @Test
+    public void throwingListenerDoesNotCauseRedelivery() {
+        final byte[] stream = concat(serialize(message("first")), serialize(message("second")));
+
+        mListenerException = new IllegalStateException();
+        try {
+            feed(split(stream));
+            fail("Expected the listener's exception");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        feed(split(serialize(message("third"))));
+
+        assertEquals(2, mMessages.size());
+        assertEquals("first", mMessages.get(0).getString("method"));
+        assertEquals("third", mMessages.get(1).getString("method"));
+    }
+
+    @Test
+    public void connectionFailureDropsPartialMessages() {
+        final byte[] payload = payload(8);
+        final byte[] message = streamedMessage(payload, 8);
+
+        // Part way through a streamed message
+        feed(split(Arrays.copyOf(message, 50000)));
+
+        mDataHandler.onConnectionStateChange(HtspConnection.State.FAILED);
+
+        feed(split(streamedMessage(payload, 9)));
+
+        assertEquals(1, mMessages.size());
+        assertStreamedMessage(mMessages.get(0), payload, 9);
+    }
+
+    // Internal Methods
+    private static HtspMessage message(String method) {
+        final HtspMessage message = new HtspMessage();
+        message.put("method", method);
+        return message;
+    }
+
+    private void feed(List<byte[]> reads) {
+        final FakeSocketChannel channel = new FakeSocketChannel(reads);
+
+        while (channel.hasData()) {
+            assertTrue(mDataHandler.read(channel));
+        }
+    }
+
+    private static void assertStreamedMessage(HtspMessage message, byte[] payload, long seq) {
+        assertEquals(seq, message.getLong("seq"));
+        assertArrayEquals(payload, message.getByteArray("data"));
+    }
+
+    private static byte[] payload(int seed) {
+        final byte[] payload = new byte[PAYLOAD_SIZE];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 31 + seed);
+        }
+        return payload;
+    }
+
+    /**
+     * Builds a fileRead style reply, with the BIN field first as TVHeadend sends it
+     */
+    private static byte[] streamedMessage(byte[] payload, long seq) {
+        final HtspMessage trailerMessage = new HtspMessage();
+        trailerMessage.put("seq", seq);
+
+        final byte[] serializedTrailer = serialize(trailerMessage);
+        final byte[] trailer = Arrays.copyOfRange(serializedTrailer, 4, serializedTrailer.length);
+
+        final int length = 6 + KEY.length + payload.length + trailer.length;
+        final ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+
+        buffer.putInt(length);
+        buffer.put(HtspMessageSerializer.FIELD_BIN);
+        buffer.put((byte) KEY.length);
+        buffer.putInt(payload.length);
+        buffer.put(KEY);
+        buffer.put(payload);
+        buffer.put(trailer);
+
+        return buffer.array();
+    }
+
+    private static byte[] serialize(HtspMessage message) {
+        final ByteBuffer buffer = ByteBuffer.allocate(65536);
+        new HtspMessageSerializer().write(buffer, message);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            output.write(array, 0, array.length);
+        }
+        return output.toByteArray();
+    }
+
+    private static List<byte[]> split(byte[] data, int... offsets) {
+        final List<byte[]> reads = new ArrayList<>();
+
+        int start = 0;
+        for (int offset : offsets) {
+            reads.add(Arrays.copyOfRange(data, start, offset));
+            start = offset;
+        }
+        reads.add(Arrays.copyOfRange(data, start, data.length));
+
+        return reads;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        final int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Hands out one chunk of data per read, as a socket might
+     */
+    private static class FakeSocketChannel extends SocketChannel {
+        private final Deque<byte[]> mReads;
+
+        FakeSocketChannel(List<byte[]> reads) {
+            super(null);
+            mReads = new ArrayDeque<>(reads);
+        }
+
+        boolean hasData() {
+            return !mReads.isEmpty();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            final byte[] read = mReads.poll();
+            if (read == null) {
+                return 0;
+            }
+
+            final int length = Math.min(read.length, dst.remaining());
+            dst.put(read, 0, length);
+
+            if (length < read.length) {
+                mReads.addFirst(Arrays.copyOfRange(read, length, read.length));
+            }
+
+            return length;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SocketChannel bind(SocketAddress local) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> SocketChannel setOption(SocketOption<T> name, T value) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T getOption(SocketOption<T> name) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<SocketOption<?>> supportedOptions() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SocketChannel shutdownInput() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SocketChannel shutdownOutput() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket socket() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isConnectionPending() {
+            return false;
+        }
+
+        @Override
+        public boolean connect(SocketAddress remote) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean finishConnect() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void implCloseSelectableChannel() throws IOException {
+        }
+
+        @Override
+        protected void implConfigureBlocking(boolean block) throws IOException {
+        }
+    }
+}
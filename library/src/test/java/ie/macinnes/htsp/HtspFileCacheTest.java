@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HtspFileCacheTest {
+    private static final String PATH = "imagecache/1";
+    private static final byte[] DATA = {1, 2, 3};
+
+    private final FakeDispatcher mDispatcher = new FakeDispatcher();
+    private final HtspFileCache mFileCache = new HtspFileCache(mDispatcher, 8000);
+
+    @Test
+    public void concurrentGetsShareOneFetch() throws Exception {
+        final HtspFuture<byte[]> first = mFileCache.get(PATH);
+        final HtspFuture<byte[]> second = mFileCache.get(PATH);
+
+        assertEquals(1, mDispatcher.getSent("fileOpen").size());
+
+        mDispatcher.reply(0, fileOpenReply(DATA.length));
+        mDispatcher.reply(1, fileReadReply(DATA));
+
+        assertArrayEquals(DATA, first.get());
+        assertSame(first.get(), second.get());
+        assertEquals(1, mDispatcher.getSent("fileRead").size());
+        assertEquals(1, mDispatcher.getSent("fileClose").size());
+
+        // Now it's cached
+        assertSame(first.get(), mFileCache.getIfPresent(PATH));
+        assertTrue(mFileCache.get(PATH).isDone());
+        assertEquals(1, mDispatcher.getSent("fileOpen").size());
+    }
+
+    @Test
+    public void cancellingOneCallerLeavesTheOthers() throws Exception {
+        final HtspFuture<byte[]> first = mFileCache.get(PATH);
+        final HtspFuture<byte[]> second = mFileCache.get(PATH);
+
+        first.cancel(false);
+
+        mDispatcher.reply(0, fileOpenReply(DATA.length));
+        mDispatcher.reply(1, fileReadReply(DATA));
+
+        assertTrue(first.isCancelled());
+        assertArrayEquals(DATA, second.get());
+    }
+
+    @Test
+    public void malformedReplyFailsTheFetch() throws Exception {
+        final HtspFuture<byte[]> future = mFileCache.get(PATH);
+
+        mDispatcher.reply(0, fileOpenReply(DATA.length));
+        // No data field
+        mDispatcher.reply(1, new HtspMessage());
+
+        assertFailure(future, RuntimeException.class);
+        assertEquals(1, mDispatcher.getSent("fileClose").size());
+
+        // The failed fetch isn't shared with later callers
+        mFileCache.get(PATH);
+        assertEquals(2, mDispatcher.getSent("fileOpen").size());
+    }
+
+    @Test
+    public void errorReplyFailsTheFetch() throws Exception {
+        final HtspFuture<byte[]> future = mFileCache.get(PATH);
+
+        final HtspMessage reply = new HtspMessage();
+        reply.put("error", "File not found");
+        mDispatcher.reply(0, reply);
+
+        assertFailure(future, IOException.class);
+        assertNull(mFileCache.getIfPresent(PATH));
+        assertTrue(mDispatcher.getSent("fileClose").isEmpty());
+    }
+
+    @Test
+    public void fileTooLargeToCacheIsNotRead() throws Exception {
+        final HtspFuture<byte[]> future = mFileCache.get(PATH);
+
+        // Over an eighth of the budget
+        mDispatcher.reply(0, fileOpenReply(1001));
+
+        assertFailure(future, IOException.class);
+        assertTrue(mDispatcher.getSent("fileRead").isEmpty());
+        assertEquals(1, mDispatcher.getSent("fileClose").size());
+    }
+
+    @Test
+    public void notConnected() throws Exception {
+        mDispatcher.setFailure(new HtspNotConnectedException("Not connected"));
+
+        assertFailure(mFileCache.get(PATH), HtspNotConnectedException.class);
+
+        mDispatcher.setFailure(null);
+        assertFalse(mFileCache.get(PATH).isDone());
+    }
+
+    // Internal Methods
+    private static HtspMessage fileOpenReply(long size) {
+        final HtspMessage reply = new HtspMessage();
+        reply.put("id", 7);
+        reply.put("size", size);
+        return reply;
+    }
+
+    private static HtspMessage fileReadReply(byte[] data) {
+        final HtspMessage reply = new HtspMessage();
+        reply.put("data", data);
+        return reply;
+    }
+
+    private static void assertFailure(HtspFuture<byte[]> future, Class<? extends Exception> type) throws InterruptedException {
+        assertTrue(future.isDone());
+
+        try {
+            future.get();
+            fail("Expected " + type.getSimpleName());
+        } catch (CancellationException e) {
+            fail("Unexpected cancellation");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), type.isInstance(e.getCause()));
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HtspFileChannelTest {
+    private static final long SIZE = 3 * 1024 * 1024 + 123;
+
+    private final FakeFileServer mServer = new FakeFileServer(SIZE);
+    private final FakeDispatcher mDispatcher = new FakeDispatcher();
+
+    public HtspFileChannelTest() {
+        mDispatcher.setResponder(mServer);
+    }
+
+    @Test
+    public void sequentialRead() throws IOException {
+        final HtspFileChannel channel = new HtspFileChannel(mDispatcher, "dvrfile/1");
+
+        assertEquals(SIZE, readToEnd(channel, 0));
+        assertEquals(SIZE, channel.position());
+        assertEquals(-1, channel.read(ByteBuffer.allocate(10)));
+    }
+
+    @Test
+    public void seekBackWithinFetchedData() throws IOException {
+        final HtspFileChannel channel = new HtspFileChannel(mDispatcher, "dvrfile/1");
+
+        assertRead(channel, 0, 1000);
+        final int reads = mDispatcher.getSent("fileRead").size();
+
+        channel.position(10);
+        assertRead(channel, 10, 100);
+
+        assertEquals(reads, mDispatcher.getSent("fileRead").size());
+    }
+
+    @Test
+    public void seekForward() throws IOException {
+        final HtspFileChannel channel = new HtspFileChannel(mDispatcher, "dvrfile/1");
+
+        assertRead(channel, 0, 1000);
+
+        channel.position(2 * 1024 * 1024 + 7);
+        assertRead(channel, 2 * 1024 * 1024 + 7, 1000);
+
+        // The read-ahead restarted at the new position
+        final HtspMessage lastRead = last(mDispatcher.getSent("fileRead"));
+        assertTrue(lastRead.getLong("offset") >= 2 * 1024 * 1024);
+
+        channel.position(0);
+        assertEquals(SIZE, readToEnd(channel, 0));
+    }
+
+    @Test
+    public void seekPastEnd() throws IOException {
+        final HtspFileChannel channel = new HtspFileChannel(mDispatcher, "dvrfile/1");
+
+        channel.position(SIZE + 10);
+
+        assertEquals(-1, channel.read(ByteBuffer.allocate(10)));
+        assertTrue(mDispatcher.getSent("fileRead").isEmpty());
+    }
+
+    @Test
+    public void positionedReadLeavesPosition() throws IOException {
+        final HtspFileChannel channel = new HtspFileChannel(mDispatcher, "dvrfile/1");
+        final ByteBuffer buffer = ByteBuffer.allocate(500);
+
+        assertEquals(500, channel.read(buffer, 1000000));
+        assertTrue(FakeFileServer.isPattern(buffer.array(), 1000000));
+        assertEquals(0, channel.position());
+
+        assertEquals(-1, channel.read(ByteBuffer.allocate(10), SIZE));
+    }
+
+    @Test
+    public void unknownSize() throws IOException {
+        mServer.setReportSize(false);
+        final HtspFileChannel channel = new HtspFileChannel(mDispatcher, "dvrfile/1");
+
+        assertEquals(-1, channel.getFileSize());
+        assertEquals(SIZE, readToEnd(channel, 0));
+
+        // Only found out if asked for
+        assertTrue(mDispatcher.getSent("fileStat").isEmpty());
+        assertEquals(SIZE, channel.size());
+        assertEquals(1, mDispatcher.getSent("fileStat").size());
+    }
+
+    @Test
+    public void closedChannel() throws IOException {
+        final HtspFileChannel channel = new HtspFileChannel(mDispatcher, "dvrfile/1");
+        channel.close();
+        channel.close();
+
+        assertFalse(channel.isOpen());
+        assertEquals(1, mDispatcher.getSent("fileClose").size());
+
+        try {
+            channel.read(ByteBuffer.allocate(10));
+            fail("Expected ClosedChannelException");
+        } catch (ClosedChannelException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void readErrorIsThrown() throws IOException {
+        final HtspFileChannel channel = new HtspFileChannel(mDispatcher, "dvrfile/1");
+        mServer.setFailReads(true);
+
+        try {
+            channel.read(ByteBuffer.allocate(10));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Read failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void inputStreamSingleBytesAndSkip() throws IOException {
+        final HtspFileInputStream stream = new HtspFileInputStream(mDispatcher, "dvrfile/1");
+
+        assertEquals(FakeFileServer.getByte(0) & 0xff, stream.read());
+        assertEquals(FakeFileServer.getByte(1) & 0xff, stream.read());
+
+        assertEquals(1000, stream.skip(1000));
+        assertEquals(FakeFileServer.getByte(1002) & 0xff, stream.read());
+
+        // Capped by the known size
+        assertEquals(SIZE - 1003, stream.skip(SIZE));
+        assertEquals(-1, stream.read());
+        assertEquals(0, stream.skip(10));
+    }
+
+    @Test
+    public void inputStreamSkipWithUnknownSize() throws IOException {
+        mServer.setReportSize(false);
+        final HtspFileInputStream stream = new HtspFileInputStream(mDispatcher, "dvrfile/1");
+
+        assertEquals(SIZE + 100, stream.skip(SIZE + 100));
+        assertTrue(mDispatcher.getSent("fileStat").isEmpty());
+        assertEquals(-1, stream.read());
+    }
+
+    @Test
+    public void inputStreamMarkAndReset() throws IOException {
+        final HtspFileInputStream stream = new HtspFileInputStream(mDispatcher, "dvrfile/1");
+
+        stream.skip(5000);
+        stream.mark(0);
+        final byte[] first = new byte[100];
+        assertEquals(100, stream.read(first));
+
+        stream.reset();
+        final byte[] second = new byte[100];
+        assertEquals(100, stream.read(second));
+
+        assertTrue(Arrays.equals(first, second));
+        assertTrue(FakeFileServer.isPattern(first, 5000));
+    }
+
+    @Test
+    public void readLimitStopsReadAhead() throws IOException {
+        final long limit = 1024 * 1024;
+        final HtspFileChannel channel = new HtspFileChannel(mDispatcher, "dvrfile/1");
+        channel.setReadLimit(limit);
+
+        assertEquals(limit, readToEnd(channel, 0));
+
+        for (HtspMessage read : mDispatcher.getSent("fileRead")) {
+            assertTrue(read.getLong("offset") + read.getLong("size") <= limit);
+        }
+    }
+
+    @Test
+    public void readLimitMovedBack() throws IOException {
+        final HtspFileChannel channel = new HtspFileChannel(mDispatcher, "dvrfile/1");
+
+        assertRead(channel, 0, 1000);
+
+        final long limit = 1000 + FileReadController.MAX_CHUNK_SIZE;
+        channel.setReadLimit(limit);
+
+        // Reads already requested are kept, nothing new starts at or past the limit
+        final long read = readToEnd(channel, 1000);
+        assertTrue(1000 + read >= limit);
+        assertTrue(1000 + read < SIZE);
+
+        final int reads = mDispatcher.getSent("fileRead").size();
+        channel.setReadLimit(Long.MAX_VALUE);
+        assertEquals(SIZE, 1000 + read + readToEnd(channel, 1000 + read));
+        assertTrue(mDispatcher.getSent("fileRead").size() > reads);
+    }
+
+    @Test
+    public void resumesAfterConnectionLoss() throws IOException {
+        final HtspFileChannel channel = new HtspFileChannel(mDispatcher, "dvrfile/1");
+
+        assertRead(channel, 0, 1000);
+
+        mDispatcher.setFailure(new HtspNotConnectedException("Not connected"));
+        reconnectAfter(1500);
+
+        assertEquals(SIZE - 1000, readToEnd(channel, 1000));
+        assertEquals(2, mDispatcher.getSent("fileOpen").size());
+    }
+
+    @Test
+    public void resumeFailsIfFileShrank() throws IOException {
+        final HtspFileChannel channel = new HtspFileChannel(mDispatcher, "dvrfile/1");
+
+        assertRead(channel, 0, 1000);
+
+        mServer.setSize(SIZE / 2);
+        mDispatcher.setFailure(new HtspNotConnectedException("Not connected"));
+        reconnectAfter(100);
+
+        try {
+            readToEnd(channel, 1000);
+            fail("Expected the replaced file to fail the read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("shrank"));
+        }
+    }
+
+    @Test
+    public void resumeTimesOut() throws IOException {
+        final HtspFileChannel channel = new HtspFileChannel(mDispatcher, "dvrfile/1");
+        channel.setResumeTimeout(1500);
+
+        assertRead(channel, 0, 1000);
+
+        mDispatcher.setFailure(new HtspNotConnectedException("Not connected"));
+
+        try {
+            readToEnd(channel, 1000);
+            fail("Expected the read to fail");
+        } catch (IOException e) {
+            // The original failure
+            assertTrue(e.getCause() instanceof HtspNotConnectedException);
+        }
+
+        assertEquals(1, mDispatcher.getSent("fileOpen").size());
+    }
+
+    @Test
+    public void resumeDisabled() throws IOException {
+        final HtspFileChannel channel = new HtspFileChannel(mDispatcher, "dvrfile/1");
+        channel.setResumeTimeout(0);
+
+        assertRead(channel, 0, 1000);
+
+        mDispatcher.setFailure(new HtspNotConnectedException("Not connected"));
+        final long start = System.currentTimeMillis();
+
+        try {
+            readToEnd(channel, 1000);
+            fail("Expected the read to fail");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof HtspNotConnectedException);
+        }
+
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    // Internal Methods
+    static void assertRead(HtspFileChannel channel, long position, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            assertTrue(channel.read(buffer) > 0);
+        }
+        assertTrue("Wrong data at " + position, FakeFileServer.isPattern(buffer.array(), position));
+    }
+
+    /**
+     * @return The number of bytes read, all of which are checked
+     */
+    static long readToEnd(HtspFileChannel channel, long position) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(100000);
+        long total = 0;
+        int read;
+
+        while ((read = channel.read(buffer)) != -1) {
+            if (!buffer.hasRemaining()) {
+                assertTrue("Wrong data at " + (position + total),
+                        FakeFileServer.isPattern(buffer.array(), position + total));
+                total += buffer.position();
+                buffer.clear();
+            }
+        }
+
+        final byte[] rest = Arrays.copyOf(buffer.array(), buffer.position());
+        assertTrue("Wrong data at " + (position + total), FakeFileServer.isPattern(rest, position + total));
+
+        return total + rest.length;
+    }
+
+    private void reconnectAfter(final long delay) {
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mDispatcher.setFailure(null);
+            }
+        }.start();
+    }
+
+    private static HtspMessage last(java.util.List<HtspMessage> messages) {
+        return messages.get(messages.size() - 1);
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HtspFilePrefetcherTest {
+    private static final String MISSING = "imagecache/missing";
+
+    private FakeDispatcher mDispatcher;
+    private FakeFileServer mServer;
+    private HtspFileCache mCache;
+
+    @Before
+    public void setUp() {
+        mDispatcher = new FakeDispatcher();
+        mServer = new FakeFileServer(100);
+        mCache = new HtspFileCache(mDispatcher, 100000);
+    }
+
+    @Test
+    public void fetchesEachFileOnce() throws InterruptedException {
+        serve();
+
+        final Recorder recorder = new Recorder();
+        new HtspFilePrefetcher(mCache, 2).prefetch(
+                Arrays.asList("imagecache/1", "imagecache/2", "imagecache/1", "imagecache/3"), recorder);
+
+        recorder.awaitComplete();
+        assertEquals(3, recorder.mFetched.size());
+        assertEquals(0, recorder.mFailed.size());
+        assertEquals(3, recorder.mCompleteFetched);
+        assertEquals(3, mDispatcher.getSent("fileOpen").size());
+        assertTrue(FakeFileServer.isPattern(mCache.getIfPresent("imagecache/2"), 0));
+    }
+
+    @Test
+    public void cachedFilesAreReportedWithoutFetching() throws InterruptedException {
+        serve();
+        mCache.get("imagecache/1");
+        mCache.get("imagecache/2");
+
+        final Recorder recorder = new Recorder();
+        new HtspFilePrefetcher(mCache, 1).prefetch(Arrays.asList("imagecache/1", "imagecache/2"), recorder);
+
+        recorder.awaitComplete();
+        assertEquals(2, recorder.mCompleteFetched);
+        assertEquals(2, mDispatcher.getSent("fileOpen").size());
+    }
+
+    @Test
+    public void concurrencyIsLimited() throws InterruptedException {
+        // Nothing is replied to until the test does so
+        final Recorder recorder = new Recorder();
+        final HtspFilePrefetcher.Prefetch prefetch = new HtspFilePrefetcher(mCache, 2).prefetch(
+                Arrays.asList("imagecache/1", "imagecache/2", "imagecache/3"), recorder);
+
+        assertEquals(2, mDispatcher.getSent().size());
+        assertEquals(3, prefetch.getRemainingCount());
+
+        serve();
+        replyAll();
+
+        // The third file's requests are answered as they're sent
+        recorder.awaitComplete();
+        assertEquals(3, recorder.mCompleteFetched);
+        assertEquals(0, prefetch.getRemainingCount());
+        assertEquals(3, mDispatcher.getSent("fileOpen").size());
+    }
+
+    @Test
+    public void missingFileFailsWithoutRetry() throws InterruptedException {
+        serve();
+
+        final Recorder recorder = new Recorder();
+        new HtspFilePrefetcher(mCache).prefetch(Arrays.asList("imagecache/1", MISSING), recorder);
+
+        recorder.awaitComplete();
+        assertEquals(Collections.singletonList("imagecache/1"), recorder.mFetched);
+        assertEquals(Collections.singletonList(MISSING), recorder.mFailed);
+        assertEquals(1, recorder.mCompleteFetched);
+        assertEquals(1, recorder.mCompleteFailed);
+        assertEquals(2, mDispatcher.getSent("fileOpen").size());
+    }
+
+    @Test
+    public void rateLimitedFilesAreRetried() throws InterruptedException {
+        serve();
+        mDispatcher.setFailure(new HtspRateLimitedException("Rate limited"));
+
+        final Recorder recorder = new Recorder();
+        new HtspFilePrefetcher(mCache).prefetch(Arrays.asList("imagecache/1", "imagecache/2"), recorder);
+
+        // Lifted before the first retry
+        Thread.sleep(100);
+        assertFalse(recorder.isComplete());
+        mDispatcher.setFailure(null);
+
+        recorder.awaitComplete();
+        assertEquals(2, recorder.mCompleteFetched);
+        assertEquals(0, recorder.mCompleteFailed);
+        assertEquals(2, mDispatcher.getSent("fileOpen").size());
+    }
+
+    @Test
+    public void rateLimitedFilesFailEventually() throws InterruptedException {
+        serve();
+        mDispatcher.setFailure(new HtspRateLimitedException("Rate limited"));
+
+        final Recorder recorder = new Recorder();
+        new HtspFilePrefetcher(mCache).prefetch(Arrays.asList("imagecache/1", "imagecache/2"), recorder);
+
+        recorder.awaitComplete();
+        assertEquals(0, recorder.mCompleteFetched);
+        assertEquals(2, recorder.mCompleteFailed);
+        assertTrue(recorder.mLastException instanceof HtspRateLimitedException);
+    }
+
+    @Test
+    public void notConnectedFailsWithoutRetry() throws InterruptedException {
+        mDispatcher.setFailure(new HtspNotConnectedException("Not connected"));
+
+        final Recorder recorder = new Recorder();
+        new HtspFilePrefetcher(mCache).prefetch(Arrays.asList("imagecache/1", "imagecache/2"), recorder);
+
+        // Completes inline, nothing was retried
+        assertTrue(recorder.isComplete());
+        assertEquals(2, recorder.mCompleteFailed);
+        assertTrue(recorder.mLastException instanceof HtspNotConnectedException);
+    }
+
+    @Test
+    public void cancelWaitsForFetchesInFlight() throws InterruptedException {
+        final Recorder recorder = new Recorder();
+        final HtspFilePrefetcher.Prefetch prefetch = new HtspFilePrefetcher(mCache, 1).prefetch(
+                Arrays.asList("imagecache/1", "imagecache/2"), recorder);
+
+        prefetch.cancel();
+        assertFalse(recorder.isComplete());
+
+        serve();
+        replyAll();
+
+        recorder.awaitComplete();
+        assertEquals(0, recorder.mCompleteFetched);
+        assertEquals(0, recorder.mFetched.size());
+        assertEquals(1, mDispatcher.getSent("fileOpen").size());
+
+        // The fetch still landed in the cache
+        assertTrue(mCache.getIfPresent("imagecache/1") != null);
+    }
+
+    @Test
+    public void cancelDuringRetryCompletes() throws InterruptedException {
+        mDispatcher.setFailure(new HtspRateLimitedException("Rate limited"));
+
+        final Recorder recorder = new Recorder();
+        final HtspFilePrefetcher.Prefetch prefetch = new HtspFilePrefetcher(mCache).prefetch(
+                Collections.singletonList("imagecache/1"), recorder);
+
+        prefetch.cancel();
+        mDispatcher.setFailure(null);
+        serve();
+
+        recorder.awaitComplete();
+        assertEquals(0, recorder.mCompleteFetched);
+        assertEquals(0, mDispatcher.getSent("fileOpen").size());
+    }
+
+    // Internal Methods
+    private void serve() {
+        mDispatcher.setResponder(new FakeDispatcher.Responder() {
+            @Override
+            public HtspMessage respond(@NonNull HtspMessage request) {
+                if (MISSING.equals(request.getString("file", null))) {
+                    final HtspMessage reply = new HtspMessage();
+                    reply.put("error", "File not found");
+                    return reply;
+                }
+                return mServer.respond(request);
+            }
+        });
+    }
+
+    /**
+     * Replies to every request sent so far, and any they lead to
+     */
+    private void replyAll() {
+        final List<HtspMessage> sent = mDispatcher.getSent();
+        for (int i = 0; i < sent.size(); i++) {
+            mDispatcher.reply(i, mServer.respond(sent.get(i)));
+        }
+    }
+
+    private static class Recorder implements HtspFilePrefetcher.Listener {
+        final List<String> mFetched = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> mFailed = Collections.synchronizedList(new ArrayList<String>());
+        volatile Exception mLastException;
+        volatile int mCompleteFetched = -1;
+        volatile int mCompleteFailed = -1;
+
+        private final CountDownLatch mComplete = new CountDownLatch(1);
+
+        boolean isComplete() {
+            return mComplete.getCount() == 0;
+        }
+
+        void awaitComplete() throws InterruptedException {
+            assertTrue("Prefetch didn't complete", mComplete.await(5, TimeUnit.SECONDS));
+        }
+
+        @Override
+        public Handler getHandler() {
+            return null;
+        }
+
+        @Override
+        public void onFileFetched(@NonNull String path, @NonNull byte[] data) {
+            mFetched.add(path);
+        }
+
+        @Override
+        public void onFileFailed(@NonNull String path, @NonNull Exception exception) {
+            mFailed.add(path);
+            mLastException = exception;
+        }
+
+        @Override
+        public void onPrefetchComplete(int fetched, int failed) {
+            mCompleteFetched = fetched;
+            mCompleteFailed = failed;
+            mComplete.countDown();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HtspMessageQueueTest {
+    @Test
+    public void lanes() {
+        assertEquals(HtspMessageQueue.Lane.CONTROL, HtspMessageQueue.getLane(message("subscribe")));
+        assertEquals(HtspMessageQueue.Lane.CONTROL, HtspMessageQueue.getLane(message("getSysTime")));
+        assertEquals(HtspMessageQueue.Lane.BULK, HtspMessageQueue.getLane(message("fileRead")));
+        assertEquals(HtspMessageQueue.Lane.INTERACTIVE, HtspMessageQueue.getLane(message("getChannel")));
+        assertEquals(HtspMessageQueue.Lane.INTERACTIVE, HtspMessageQueue.getLane(new HtspMessage()));
+    }
+
+    @Test
+    public void priorityOrder() {
+        final HtspMessageQueue queue = new HtspMessageQueue();
+        final HtspMessage bulk = message("fileRead");
+        final HtspMessage interactive = message("getChannel");
+        final HtspMessage control = message("subscribe");
+
+        queue.add(bulk);
+        queue.add(interactive);
+        queue.add(control);
+
+        assertSame(control, queue.poll());
+        assertSame(interactive, queue.poll());
+        assertSame(bulk, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void fifoWithinLane() {
+        final HtspMessageQueue queue = new HtspMessageQueue();
+        final HtspMessage first = message("getChannel");
+        final HtspMessage second = message("getEvent");
+
+        queue.add(first);
+        queue.add(second);
+
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+    }
+
+    @Test
+    public void starvedLaneGetsAGo() {
+        final HtspMessageQueue queue = new HtspMessageQueue();
+        final HtspMessage bulk = message("fileRead");
+
+        queue.add(bulk);
+        for (int i = 0; i < 17; i++) {
+            queue.add(message("getChannel"));
+        }
+
+        for (int i = 0; i < 16; i++) {
+            assertEquals("getChannel", queue.poll().getString("method"));
+        }
+
+        assertSame(bulk, queue.poll());
+        assertEquals("getChannel", queue.poll().getString("method"));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void pollControl() {
+        final HtspMessageQueue queue = new HtspMessageQueue();
+        final HtspMessage control = message("authenticate");
+
+        queue.add(message("getChannel"));
+        assertNull(queue.pollControl());
+
+        queue.add(control);
+        assertTrue(queue.hasControl());
+        assertSame(control, queue.pollControl());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void clear() {
+        final HtspMessageQueue queue = new HtspMessageQueue();
+
+        queue.add(message("subscribe"));
+        queue.add(message("getChannel"));
+        queue.add(message("fileRead"));
+        assertEquals(3, queue.size());
+
+        queue.clear();
+
+        assertEquals(0, queue.size());
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+    // Internal Methods
+    private static HtspMessage message(String method) {
+        final HtspMessage message = new HtspMessage();
+        message.put("method", method);
+        return message;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HtspMessageRouterTest {
+    private final FakeDispatcher mFirst = new FakeDispatcher();
+    private final FakeDispatcher mSecond = new FakeDispatcher();
+    private final TestSelector mSelector = new TestSelector();
+    private final HtspMessageRouter mRouter = new HtspMessageRouter(mSelector);
+
+    @Test
+    public void subscriptionFollowsPin() throws Exception {
+        mSelector.mDispatcher = mFirst;
+        mRouter.sendMessage(subscriptionMessage("subscribe", 1));
+
+        mSelector.mDispatcher = mSecond;
+        mRouter.sendMessage(subscriptionMessage("subscriptionSkip", 1));
+        mRouter.sendMessage(subscriptionMessage("subscribe", 1));
+        mRouter.sendMessage(subscriptionMessage("unsubscribe", 1));
+
+        assertEquals(4, mFirst.getSent().size());
+        assertTrue(mSecond.getSent().isEmpty());
+
+        // Released by the unsubscribe
+        assertEquals(0, mRouter.getSubscriptionCount(mFirst));
+        mRouter.sendMessage(subscriptionMessage("subscribe", 1));
+        assertEquals(1, mSecond.getSent().size());
+    }
+
+    @Test
+    public void failedSubscribeIsNotPinned() throws Exception {
+        mSelector.mDispatcher = mFirst;
+        mFirst.setFailure(new HtspNotConnectedException("Not connected"));
+
+        try {
+            mRouter.sendMessage(subscriptionMessage("subscribe", 1));
+            fail("Expected HtspNotConnectedException");
+        } catch (HtspNotConnectedException e) {
+            // Expected
+        }
+
+        assertEquals(0, mRouter.getSubscriptionCount(mFirst));
+        assertTrue(mRouter.release(mFirst).isEmpty());
+
+        mSelector.mDispatcher = mSecond;
+        mRouter.sendMessage(subscriptionMessage("subscribe", 1));
+        assertEquals(1, mRouter.getSubscriptionCount(mSecond));
+    }
+
+    @Test
+    public void rejectedSubscribeIsNotPinned() throws Exception {
+        mSelector.mDispatcher = mFirst;
+        mFirst.setFailure(new HtspRateLimitedException("Rate limited"));
+
+        assertTrue(mRouter.sendRequest(subscriptionMessage("subscribe", 1), 1000).isDone());
+        assertEquals(0, mRouter.getSubscriptionCount(mFirst));
+
+        mFirst.setFailure(null);
+        mRouter.sendRequest(subscriptionMessage("subscribe", 1), 1000);
+        assertEquals(1, mRouter.getSubscriptionCount(mFirst));
+    }
+
+    @Test
+    public void releaseReturnsSubscribeRequests() throws Exception {
+        mSelector.mDispatcher = mFirst;
+        mRouter.sendMessage(subscriptionMessage("subscribe", 1));
+        mRouter.sendMessage(subscriptionMessage("subscribe", 2));
+
+        final List<HtspMessage> subscribeRequests = mRouter.release(mFirst);
+
+        assertEquals(2, subscribeRequests.size());
+        assertEquals(0, mRouter.getSubscriptionCount(mFirst));
+
+        // Resent elsewhere, they pin to their new Dispatcher
+        mSelector.mDispatcher = mSecond;
+        for (HtspMessage subscribeRequest : subscribeRequests) {
+            mRouter.sendMessage(subscribeRequest);
+        }
+        assertEquals(2, mRouter.getSubscriptionCount(mSecond));
+    }
+
+    @Test
+    public void fileIdsAreRemapped() throws Exception {
+        // Both hand out the same file id
+        mFirst.setResponder(new FileOpenResponder(5));
+        mSecond.setResponder(new FileOpenResponder(5));
+
+        mSelector.mDispatcher = mFirst;
+        final int firstId = mRouter.sendMessage(fileMessage("fileOpen"), 1000).getInteger("id");
+        mSelector.mDispatcher = mSecond;
+        final int secondId = mRouter.sendMessage(fileMessage("fileOpen"), 1000).getInteger("id");
+
+        assertNotEquals(firstId, secondId);
+
+        // Reads go to the Dispatcher that opened the file, with it's own id
+        mSelector.mDispatcher = null;
+        mRouter.sendMessage(fileMessage("fileRead", firstId));
+        mRouter.sendMessage(fileMessage("fileClose", firstId));
+
+        final List<HtspMessage> sent = mFirst.getSent();
+        assertEquals(3, sent.size());
+        assertEquals(5, sent.get(1).getInteger("id"));
+        assertEquals(5, sent.get(2).getInteger("id"));
+        assertEquals(1, mSecond.getSent().size());
+
+        try {
+            mRouter.sendMessage(fileMessage("fileRead", firstId));
+            fail("Expected HtspNotConnectedException for a closed file");
+        } catch (HtspNotConnectedException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void releaseDropsOpenFiles() throws Exception {
+        mFirst.setResponder(new FileOpenResponder(5));
+        mSelector.mDispatcher = mFirst;
+        final int fileId = mRouter.sendMessage(fileMessage("fileOpen"), 1000).getInteger("id");
+
+        mRouter.release(mFirst);
+
+        try {
+            mRouter.sendMessage(fileMessage("fileRead", fileId));
+            fail("Expected HtspNotConnectedException for a released file");
+        } catch (HtspNotConnectedException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void asyncFileOpenIsDeliveredRemapped() throws Exception {
+        mSelector.mDispatcher = mFirst;
+        mRouter.sendMessage(fileMessage("fileOpen"));
+
+        final HtspMessage reply = new HtspMessage();
+        reply.put("id", 5);
+        mFirst.reply(0, reply);
+
+        assertEquals(1, mSelector.mReplies.size());
+        assertSame(mFirst, mSelector.mReplyDispatchers.get(0));
+
+        // The delivered id is the router's, which reaches the real file
+        final int fileId = mSelector.mReplies.get(0).getInteger("id");
+        mRouter.sendMessage(fileMessage("fileRead", fileId));
+        assertEquals(5, mFirst.getSent().get(1).getInteger("id"));
+    }
+
+    @Test
+    public void noDispatcherAvailable() throws Exception {
+        try {
+            mRouter.sendMessage(subscriptionMessage("subscribe", 1));
+            fail("Expected HtspNotConnectedException");
+        } catch (HtspNotConnectedException e) {
+            // Expected
+        }
+    }
+
+    // Internal Methods
+    private static HtspMessage subscriptionMessage(String method, int subscriptionId) {
+        final HtspMessage message = new HtspMessage();
+        message.put("method", method);
+        message.put("subscriptionId", subscriptionId);
+        return message;
+    }
+
+    private static HtspMessage fileMessage(String method) {
+        final HtspMessage message = new HtspMessage();
+        message.put("method", method);
+        message.put("file", "dvrfile/1");
+        message.put("seq", 1L);
+        return message;
+    }
+
+    private static HtspMessage fileMessage(String method, int fileId) {
+        final HtspMessage message = new HtspMessage();
+        message.put("method", method);
+        message.put("id", fileId);
+        return message;
+    }
+
+    private static class TestSelector implements HtspMessageRouter.Selector {
+        HtspMessage.Dispatcher mDispatcher;
+        final List<HtspMessage.Dispatcher> mReplyDispatchers = new ArrayList<>();
+        final List<HtspMessage> mReplies = new ArrayList<>();
+
+        @Override
+        public HtspMessage.Dispatcher select(@NonNull HtspMessage message) {
+            return mDispatcher;
+        }
+
+        @Override
+        public void deliverReply(@NonNull HtspMessage.Dispatcher dispatcher, @NonNull HtspMessage reply) {
+            mReplyDispatchers.add(dispatcher);
+            mReplies.add(reply);
+        }
+    }
+
+    private static class FileOpenResponder implements FakeDispatcher.Responder {
+        private final int mFileId;
+
+        FileOpenResponder(int fileId) {
+            mFileId = fileId;
+        }
+
+        @Override
+        public HtspMessage respond(@NonNull HtspMessage request) {
+            if (!"fileOpen".equals(request.getString("method"))) {
+                return null;
+            }
+
+            final HtspMessage reply = new HtspMessage();
+            reply.put("id", mFileId);
+            return reply;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HtspRangeDownloaderTest {
+    private File mFile;
+    private RandomAccessFile mTarget;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("download", null);
+        mTarget = new RandomAccessFile(mFile, "rw");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mTarget.close();
+        mFile.delete();
+    }
+
+    @Test
+    public void smallFileIsOneRange() throws IOException {
+        final long size = HtspRangeDownloader.MIN_RANGE_SIZE + 1000;
+        final FakeDispatcher first = dispatcher(size);
+        final FakeDispatcher second = dispatcher(size);
+
+        assertEquals(size, new HtspRangeDownloader(Arrays.asList(first, second))
+                .download("dvrfile/1", mTarget.getChannel(), null));
+
+        assertDownloaded(size);
+        // Whichever connection gets to the only range first fetches all of it
+        assertTrue(first.getSent("fileRead").isEmpty() != second.getSent("fileRead").isEmpty());
+    }
+
+    @Test
+    public void largeFileIsSplitAcrossConnections() throws IOException {
+        final long size = 3 * HtspRangeDownloader.MIN_RANGE_SIZE + 12345;
+        final FakeDispatcher[] dispatchers = {dispatcher(size), dispatcher(size), dispatcher(size)};
+
+        new HtspRangeDownloader(Arrays.asList(dispatchers)).download("dvrfile/1", mTarget.getChannel(), null);
+
+        assertDownloaded(size);
+        for (FakeDispatcher dispatcher : dispatchers) {
+            assertFalse(dispatcher.getSent("fileRead").isEmpty());
+            // Every file opened is closed
+            assertEquals(dispatcher.getSent("fileOpen").size(), dispatcher.getSent("fileClose").size());
+        }
+    }
+
+    @Test
+    public void deadConnectionsRangeIsTakenOver() throws IOException {
+        final long size = 2 * HtspRangeDownloader.MIN_RANGE_SIZE;
+        final FakeDispatcher dead = dispatcher(size);
+        dead.setFailure(new HtspNotConnectedException("Not connected"));
+
+        new HtspRangeDownloader(Arrays.asList(dispatcher(size), dead))
+                .download("dvrfile/1", mTarget.getChannel(), null);
+
+        assertDownloaded(size);
+    }
+
+    @Test
+    public void failsWhenEveryConnectionIsDropped() throws IOException {
+        final long size = 2 * HtspRangeDownloader.MIN_RANGE_SIZE;
+        final FakeFileServer server = new FakeFileServer(size);
+        server.setFailReads(true);
+
+        final FakeDispatcher first = new FakeDispatcher();
+        first.setResponder(server);
+        final FakeDispatcher dead = dispatcher(size);
+        dead.setFailure(new HtspNotConnectedException("Not connected"));
+
+        try {
+            new HtspRangeDownloader(Arrays.asList(first, dead)).download("dvrfile/1", mTarget.getChannel(), null);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void targetIsTruncated() throws IOException {
+        mTarget.setLength(5000);
+
+        new HtspRangeDownloader(Arrays.asList(dispatcher(1000))).download("dvrfile/1", mTarget.getChannel(), null);
+
+        assertDownloaded(1000);
+    }
+
+    // Internal Methods
+    private static FakeDispatcher dispatcher(long size) {
+        final FakeDispatcher dispatcher = new FakeDispatcher();
+        dispatcher.setResponder(new FakeFileServer(size));
+        return dispatcher;
+    }
+
+    private void assertDownloaded(long size) throws IOException {
+        final FileChannel channel = mTarget.getChannel();
+        assertEquals(size, channel.size());
+
+        final ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        long position = 0;
+
+        while (position < size) {
+            buffer.clear();
+            final int read = channel.read(buffer, position);
+
+            final byte[] data = Arrays.copyOf(buffer.array(), read);
+            assertTrue("Wrong data at " + position, FakeFileServer.isPattern(data, position));
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HtspRateLimiterTest {
+    @Test
+    public void noLimits() {
+        final HtspRateLimiter rateLimiter = new HtspRateLimiter(0, 0, 0, HtspRateLimiter.Policy.QUEUE);
+
+        for (int i = 0; i < 100; i++) {
+            rateLimiter.onRequestSent();
+            rateLimiter.onBytesSent(1000000);
+        }
+
+        assertEquals(0, rateLimiter.getDelay(100, 100));
+    }
+
+    @Test
+    public void maxInFlight() {
+        final HtspRateLimiter rateLimiter = new HtspRateLimiter(0, 0, 2, HtspRateLimiter.Policy.QUEUE);
+
+        assertEquals(0, rateLimiter.getDelay(1, 0));
+        assertEquals(-1, rateLimiter.getDelay(2, 0));
+        // Queued messages will be in flight by the time this one is sent
+        assertEquals(-1, rateLimiter.getDelay(1, 1));
+    }
+
+    @Test
+    public void requestRate() {
+        final HtspRateLimiter rateLimiter = new HtspRateLimiter(10, 0, 0, HtspRateLimiter.Policy.QUEUE);
+
+        // A burst of 10 is allowed, including those queued ahead
+        assertEquals(0, rateLimiter.getDelay(0, 9));
+        assertTrue(rateLimiter.getDelay(0, 10) > 0);
+
+        for (int i = 0; i < 10; i++) {
+            rateLimiter.onRequestSent();
+        }
+
+        // Roughly 100ms until the next token
+        final long delay = rateLimiter.getDelay(0, 0);
+        assertTrue("Delay was " + delay, delay > 0 && delay <= 100);
+    }
+
+    @Test
+    public void byteRate() {
+        final HtspRateLimiter rateLimiter = new HtspRateLimiter(0, 1000, 0, HtspRateLimiter.Policy.QUEUE);
+
+        assertEquals(0, rateLimiter.getDelay(0, 0));
+
+        // 2 seconds in debt
+        rateLimiter.onBytesSent(3000);
+
+        final long delay = rateLimiter.getDelay(0, 0);
+        assertTrue("Delay was " + delay, delay > 1500 && delay <= 2001);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HtspTimerWheelTest {
+    private final HtspTimerWheel mTimerWheel = new HtspTimerWheel(10, 8);
+
+    @Test
+    public void runsTask() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        mTimerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 20);
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancelledTaskDoesNotRun() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+
+        HtspTimerWheel.Timeout timeout = mTimerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 50);
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+
+        Thread.sleep(150);
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void delayLongerThanOneRotation() throws InterruptedException {
+        // 8 ticks of 10ms is an 80ms rotation
+        final long start = System.nanoTime();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long[] elapsed = new long[1];
+
+        mTimerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                elapsed[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                latch.countDown();
+            }
+        }, 200);
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue("Ran after " + elapsed[0] + "ms", elapsed[0] >= 200);
+    }
+
+    @Test
+    public void pendingCount() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        mTimerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 20);
+        HtspTimerWheel.Timeout cancelled = mTimerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 500);
+
+        assertEquals(2, mTimerWheel.getPendingCount());
+
+        cancelled.cancel();
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+
+        // The count drops just after the task has run
+        Thread.sleep(50);
+        assertEquals(0, mTimerWheel.getPendingCount());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.macinnes.htsp.tasks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ie.macinnes.htsp.HtspConnection;
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.htsp.HtspRateLimitedException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LivenessMonitorTest {
+    private final ProbeDispatcher mDispatcher = new ProbeDispatcher();
+    private final IdleConnection mConnection = new IdleConnection();
+    private final LivenessMonitor mLivenessMonitor = new LivenessMonitor(mDispatcher);
+
+    @Before
+    public void setUp() {
+        mLivenessMonitor.setIdleTimeout(20);
+        mLivenessMonitor.setProbeTimeout(40);
+        mLivenessMonitor.setConnection(mConnection);
+    }
+
+    @After
+    public void tearDown() {
+        mLivenessMonitor.onConnectionStateChange(HtspConnection.State.CLOSED);
+    }
+
+    @Test
+    public void unansweredProbeFailsConnection() throws InterruptedException {
+        mLivenessMonitor.onConnectionStateChange(HtspConnection.State.CONNECTED);
+
+        assertTrue(mConnection.mFailed.await(1, TimeUnit.SECONDS));
+        assertTrue(mDispatcher.mProbes > 0);
+    }
+
+    @Test
+    public void rateLimitedProbeDoesNotFailConnection() throws InterruptedException {
+        mDispatcher.mRateLimited = true;
+        mLivenessMonitor.onConnectionStateChange(HtspConnection.State.CONNECTED);
+
+        // Many times the probe timeout
+        assertFalse(mConnection.mFailed.await(300, TimeUnit.MILLISECONDS));
+        assertEquals(0, mDispatcher.mProbes);
+
+        // Once a probe gets out, it's timeout applies as usual
+        mDispatcher.mRateLimited = false;
+        assertTrue(mConnection.mFailed.await(1, TimeUnit.SECONDS));
+        assertTrue(mDispatcher.mProbes > 0);
+    }
+
+    @Test
+    public void dataReceivedAfterProbe() throws InterruptedException {
+        mLivenessMonitor.onConnectionStateChange(HtspConnection.State.CONNECTED);
+
+        // Something arrives each time a probe is sent
+        mDispatcher.mConnection = mConnection;
+
+        assertFalse(mConnection.mFailed.await(300, TimeUnit.MILLISECONDS));
+        assertTrue(mDispatcher.mProbes > 0);
+    }
+
+    /**
+     * A connection which never receives anything, unless told to
+     */
+    private static class IdleConnection extends HtspConnection {
+        final CountDownLatch mFailed = new CountDownLatch(1);
+        private volatile long mLastReadTime = System.nanoTime();
+
+        IdleConnection() {
+            super(null, null, null);
+        }
+
+        void onDataReceived() {
+            mLastReadTime = System.nanoTime();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public long getIdleTime() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mLastReadTime);
+        }
+
+        @Override
+        public void failConnection() {
+            mFailed.countDown();
+        }
+    }
+
+    private static class ProbeDispatcher extends ie.macinnes.htsp.HtspMessageDispatcher {
+        volatile boolean mRateLimited = false;
+        volatile IdleConnection mConnection;
+        volatile int mProbes = 0;
+
+        @Override
+        public long sendMessage(HtspMessage message) throws HtspRateLimitedException {
+            if (mRateLimited) {
+                throw new HtspRateLimitedException("Rate limited");
+            }
+
+            mProbes++;
+
+            if (mConnection != null) {
+                mConnection.onDataReceived();
+            }
+
+            return 0;
+        }
+    }
+}